@@ -0,0 +1,225 @@
+package com.rsb.splyt;
+
+import java.net.URL;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+/**
+ * <p>This is an internal class that schedules the upload of any events left in the event depot once the app has been
+ * put into the background.  This way, the backlog is delivered while the app isn't running, rather than competing
+ * with the app the next time it's brought into the foreground.</p>
+ *
+ * <p>On API level 21 (Lollipop) and above, the upload is scheduled with the {@code JobScheduler} (see {@link SplytUploadJobService}).
+ * On older devices, we fall back to an inexact alarm that starts {@link SplytUploadService}.  In both cases, the constraints
+ * the system can't enforce for us are checked when the upload is about to run.</p>
+ */
+class BackgroundUploader
+{
+    // Extras used to pass everything the depot needs to upload the backlog to a process in which Splyt may not have been initialized
+    static final String EXTRA_URL                = "com.rsb.splyt.upload.url";
+    static final String EXTRA_REQUEST_TIMEOUT    = "com.rsb.splyt.upload.requestTimeout";
+    static final String EXTRA_REQUIRE_UNMETERED  = "com.rsb.splyt.upload.requireUnmetered";
+    static final String EXTRA_REQUIRE_CHARGING   = "com.rsb.splyt.upload.requireCharging";
+    static final String EXTRA_REQUIRE_BATTERY_OK = "com.rsb.splyt.upload.requireBatteryNotLow";
+
+    // An arbitrary id that identifies our job with the JobScheduler
+    private static final int JOB_ID = 0x5971;
+
+    // How long we wait after the app is put into the background before attempting an upload on older devices,
+    // as well as how long we wait before trying again if the constraints are not met
+    private static final long FALLBACK_DELAY = AlarmManager.INTERVAL_FIFTEEN_MINUTES;   // In ms
+
+    // The battery level (in percent) below which the battery is considered to be low.  This matches the system's own threshold
+    private static final int BATTERY_LOW_PERCENT = 15;
+
+    private static boolean sEnabled = false;
+    private static boolean sRequireUnmetered = true;
+    private static boolean sRequireCharging = false;
+    private static boolean sRequireBatteryNotLow = true;
+
+    static void configure(boolean enabled, boolean requireUnmetered, boolean requireCharging, boolean requireBatteryNotLow)
+    {
+        sEnabled = enabled;
+        sRequireUnmetered = requireUnmetered;
+        sRequireCharging = requireCharging;
+        sRequireBatteryNotLow = requireBatteryNotLow;
+    }
+
+    static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+
+    /**
+     * Schedule an upload of the depot's backlog.
+     *
+     * @param context       The application context
+     * @param url           The URL of the data collector
+     * @param reqTimeout    The timeout, in milliseconds, to use for the upload requests
+     */
+    static void schedule(Context context, URL url, int reqTimeout)
+    {
+        if (!sEnabled || (null == context) || (null == url))
+        {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            scheduleJob(context, url.toString(), reqTimeout, sRequireUnmetered, sRequireCharging, sRequireBatteryNotLow);
+        }
+        else
+        {
+            scheduleAlarm(context, url.toString(), reqTimeout, sRequireUnmetered, sRequireCharging, sRequireBatteryNotLow);
+        }
+
+        Util.logDebug("Background upload of the event backlog scheduled");
+    }
+
+    /**
+     * Cancel any pending upload (e.g., because the app has come back into the foreground and the depot will send the events itself).
+     *
+     * @param context       The application context
+     */
+    static void cancel(Context context)
+    {
+        if (null == context)
+        {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            cancelJob(context);
+        }
+        else
+        {
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(getAlarmIntent(context, new Intent(context, SplytUploadService.class)));
+        }
+    }
+
+    /**
+     * Re-schedule an upload on older devices (e.g., the constraints were not met or part of the backlog could not be sent).
+     * Note that the JobScheduler handles this for us on newer devices.
+     *
+     * @param context       The current context
+     * @param intent        The intent that started {@link SplytUploadService}
+     */
+    static void reschedule(Context context, Intent intent)
+    {
+        scheduleAlarm(context,
+            intent.getStringExtra(EXTRA_URL),
+            intent.getIntExtra(EXTRA_REQUEST_TIMEOUT, SplytConstants.DEFAULT_REQUEST_TIMEOUT),
+            intent.getBooleanExtra(EXTRA_REQUIRE_UNMETERED, true),
+            intent.getBooleanExtra(EXTRA_REQUIRE_CHARGING, false),
+            intent.getBooleanExtra(EXTRA_REQUIRE_BATTERY_OK, true));
+    }
+
+    /**
+     * Checks the upload constraints against the current state of the device.
+     *
+     * @return true if the upload may proceed
+     */
+    static boolean constraintsMet(Context context, boolean requireUnmetered, boolean requireCharging, boolean requireBatteryNotLow)
+    {
+        // Check the network
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = (null != connectivityManager) ? connectivityManager.getActiveNetworkInfo() : null;
+        if ((null == networkInfo) || !networkInfo.isConnected())
+        {
+            return false;
+        }
+        if (requireUnmetered && ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager))
+        {
+            return false;
+        }
+
+        if (requireCharging || requireBatteryNotLow)
+        {
+            // The battery status is a sticky broadcast, so we can just grab the last one without registering a receiver
+            Intent batteryStatus = context.getApplicationContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (null != batteryStatus)
+            {
+                boolean charging = (0 != batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0));
+                if (requireCharging && !charging)
+                {
+                    return false;
+                }
+
+                int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (requireBatteryNotLow && !charging && (level >= 0) && (scale > 0) && ((level * 100 / scale) < BATTERY_LOW_PERCENT))
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, String url, int reqTimeout, boolean requireUnmetered, boolean requireCharging, boolean requireBatteryNotLow)
+    {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_URL, url);
+        extras.putInt(EXTRA_REQUEST_TIMEOUT, reqTimeout);
+        // PersistableBundle doesn't support booleans until API level 22
+        extras.putInt(EXTRA_REQUIRE_BATTERY_OK, requireBatteryNotLow ? 1 : 0);
+
+        // Note that the "battery not low" constraint isn't supported by the JobScheduler at this API level, so it's checked when the job runs
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, SplytUploadJobService.class))
+            .setRequiredNetworkType(requireUnmetered ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+            .setRequiresCharging(requireCharging)
+            .setExtras(extras)
+            .build();
+
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (JobScheduler.RESULT_SUCCESS != jobScheduler.schedule(job))
+        {
+            Util.logError("Failed to schedule the background upload job");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void cancelJob(Context context)
+    {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(JOB_ID);
+    }
+
+    private static void scheduleAlarm(Context context, String url, int reqTimeout, boolean requireUnmetered, boolean requireCharging, boolean requireBatteryNotLow)
+    {
+        Intent intent = new Intent(context, SplytUploadService.class)
+            .putExtra(EXTRA_URL, url)
+            .putExtra(EXTRA_REQUEST_TIMEOUT, reqTimeout)
+            .putExtra(EXTRA_REQUIRE_UNMETERED, requireUnmetered)
+            .putExtra(EXTRA_REQUIRE_CHARGING, requireCharging)
+            .putExtra(EXTRA_REQUIRE_BATTERY_OK, requireBatteryNotLow);
+
+        // Use an inexact alarm that doesn't wake the device.  The upload is not urgent, so it can wait until the device is awake anyhow
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + FALLBACK_DELAY, getAlarmIntent(context, intent));
+    }
+
+    private static PendingIntent getAlarmIntent(Context context, Intent intent)
+    {
+        return PendingIntent.getService(context, JOB_ID, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,271 @@
+package com.rsb.splyt;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rsb.gson.stream.JsonReader;
+import com.rsb.gson.stream.JsonToken;
+
+/**
+ * <p>This is an internal class that represents the data collector's response to a batch of events sent by the
+ * {@link EventDepot}.  The response has the form:
+ * <pre>
+ *   { "error": 0, "data": { "datacollector_batch": { "error": 0, "data": [ ... ] } } }
+ * </pre>
+ * where the batch context's {@code data}, if present, holds the status of each event in the batch, in order, either as
+ * an error code or as an object with an {@code error} field.</p>
+ *
+ * <p>The response is read with a streaming reader, picking out the error codes and skipping everything else, so no tree of
+ * the response is built.  Responses that can't be read are logged and treated as accepting the whole batch, as they always
+ * have been, so that a misbehaving data collector can't have us send the same events over and over.  For the same reason,
+ * an error for the batch as a whole only counts if it means the events are invalid; any other is logged and the batch is
+ * taken as accepted.  Only the errors of individual events ask for those events to be sent again.</p>
+ */
+class BatchResponse
+{
+    // The response to a batch that the data collector accepted as a whole
+    static final BatchResponse ACCEPTED = new BatchResponse(SplytError.Success.getValue(), null);
+
+    private final int mError;           // The error of the batch as a whole (i.e., the top-level or batch context error)
+    private final int[] mEventErrors;   // The error of each event, or null if the data collector didn't report them
+
+    private BatchResponse(int error, int[] eventErrors)
+    {
+        mError = error;
+        mEventErrors = eventErrors;
+    }
+
+    /**
+     * @param response  The body of the response, or null if there was none
+     */
+    static BatchResponse parse(String response)
+    {
+        if (null == response)
+        {
+            return ACCEPTED;
+        }
+
+        Integer error = null;
+        int[] context = null;
+        try
+        {
+            JsonReader reader = new JsonReader(new StringReader(response));
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                String name = reader.nextName();
+                if ("error".equals(name))
+                {
+                    error = Integer.valueOf(reader.nextInt());
+                }
+                else if ("data".equals(name) && (JsonToken.BEGIN_OBJECT == reader.peek()))
+                {
+                    reader.beginObject();
+                    while (reader.hasNext())
+                    {
+                        if ("datacollector_batch".equals(reader.nextName()) && (JsonToken.BEGIN_OBJECT == reader.peek()))
+                        {
+                            context = readContext(reader);
+                        }
+                        else
+                        {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                else
+                {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            reader.close();
+        }
+        catch (Exception e)
+        {
+            Util.logError("Exception parsing server response: {}", response);
+            return ACCEPTED;
+        }
+
+        if (null == error)
+        {
+            Util.logError("Unexpected response returned from data collector, error missing");
+            return ACCEPTED;
+        }
+        if (SplytError.Success.getValue() != error.intValue())
+        {
+            Util.logError("Top-level error [{}] returned from data collector", error);
+            return isPermanent(error.intValue()) ? new BatchResponse(error.intValue(), null) : ACCEPTED;
+        }
+        if (null == context)
+        {
+            Util.logError("Unexpected response returned from data collector, context missing");
+            return ACCEPTED;
+        }
+
+        // The first entry of the context is its error, and the rest are those of the events
+        if (SplytError.Success.getValue() != context[0])
+        {
+            Util.logError("datacollector_batch error [{}] returned from data collector", Integer.valueOf(context[0]));
+            return isPermanent(context[0]) ? new BatchResponse(context[0], null) : ACCEPTED;
+        }
+
+        int[] eventErrors = null;
+        if (context.length > 1)
+        {
+            eventErrors = new int[context.length - 1];
+            System.arraycopy(context, 1, eventErrors, 0, eventErrors.length);
+        }
+
+        return new BatchResponse(SplytError.Success.getValue(), eventErrors);
+    }
+
+    // Read the batch context.  Returns its error followed by the errors of the events (if any)
+    private static int[] readContext(JsonReader reader) throws IOException
+    {
+        int error = SplytError.Success.getValue();
+        List<Integer> eventErrors = new ArrayList<Integer>();
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if ("error".equals(name))
+            {
+                error = reader.nextInt();
+            }
+            else if ("data".equals(name) && (JsonToken.BEGIN_ARRAY == reader.peek()))
+            {
+                reader.beginArray();
+                while (reader.hasNext())
+                {
+                    eventErrors.add(Integer.valueOf(readEventError(reader)));
+                }
+                reader.endArray();
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        int[] context = new int[eventErrors.size() + 1];
+        context[0] = error;
+        for (int i = 0; i < eventErrors.size(); ++i)
+        {
+            context[i + 1] = eventErrors.get(i).intValue();
+        }
+
+        return context;
+    }
+
+    // Read the status of an event.  Anything we don't recognize is taken as success
+    private static int readEventError(JsonReader reader) throws IOException
+    {
+        int error = SplytError.Success.getValue();
+        if (JsonToken.NUMBER == reader.peek())
+        {
+            error = reader.nextInt();
+        }
+        else if (JsonToken.BEGIN_OBJECT == reader.peek())
+        {
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                if ("error".equals(reader.nextName()) && (JsonToken.NUMBER == reader.peek()))
+                {
+                    error = reader.nextInt();
+                }
+                else
+                {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        else
+        {
+            reader.skipValue();
+        }
+
+        return error;
+    }
+
+    /**
+     * @return true if an error means that the event is invalid, and will never be accepted no matter how often it's sent
+     */
+    static boolean isPermanent(int error)
+    {
+        return (SplytError.ErrorInvalidArgs.getValue() == error) || (SplytError.ErrorMissingId.getValue() == error);
+    }
+
+    /**
+     * @return The error of an event in the batch
+     */
+    int getEventError(int index)
+    {
+        if (SplytError.Success.getValue() != mError)
+        {
+            return mError;
+        }
+
+        return ((null != mEventErrors) && (index < mEventErrors.length)) ? mEventErrors[index] : SplytError.Success.getValue();
+    }
+
+    /**
+     * @return The number of events in a batch of the given size that were rejected as invalid
+     */
+    int countRejected(int eventCount)
+    {
+        int count = 0;
+        for (int i = 0; i < eventCount; ++i)
+        {
+            if (isPermanent(getEventError(i)))
+            {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The number of events in a batch of the given size that failed for a reason that may pass, and should be sent again
+     */
+    int countResend(int eventCount)
+    {
+        int count = 0;
+        for (int i = 0; i < eventCount; ++i)
+        {
+            int error = getEventError(i);
+            if ((SplytError.Success.getValue() != error) && !isPermanent(error))
+            {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The events of the batch that should be sent again, in order
+     */
+    List<Object> selectResend(List<Object> events)
+    {
+        List<Object> resend = new ArrayList<Object>();
+        for (int i = 0; i < events.size(); ++i)
+        {
+            int error = getEventError(i);
+            if ((SplytError.Success.getValue() != error) && !isPermanent(error))
+            {
+                resend.add(events.get(i));
+            }
+        }
+
+        return resend;
+    }
+}
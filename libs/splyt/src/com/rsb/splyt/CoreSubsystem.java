@@ -10,6 +10,7 @@ import java.util.Map;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.StrictMode;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.rsb.gson.Gson;
@@ -82,182 +83,235 @@ class CoreSubsystem
      */
     static void init(Context context, String customerId, SplytListener listener, TuningUpdater tuningUpdater, String userEntityType, String userId, Map<String, Object> userProperties, String deviceEntityType, String deviceId, Map<String, Object> deviceProperties, int reqTimeout, String host, boolean logEnabled, String sdkName, String sdkVersion)
     {
-        // Have we already attempted to initialize Splyt Core?
-        if (InitializationState.Uninitialized == sInitializationState)
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            // Assume success
-            SplytError ret = SplytError.Success;
-
-            // Enable/disable logging
-            Util.setLogEnabled(logEnabled);
-
-            // Verify that we've been passed a valid context
-            if (null == context)
+            // Have we already attempted to initialize Splyt Core?
+            if (InitializationState.Uninitialized == sInitializationState)
             {
-                Util.logError("Context is null.  Please pass in a valid context");
-                ret = SplytError.ErrorInvalidArgs;
-            }
-            else if (null == listener)
-            {
-                Util.logError("Please provide a valid SplytListener implementation");
-                ret = SplytError.ErrorInvalidArgs;
-            }
-            else if (SplytConstants.ENTITY_TYPE_USER != userEntityType)
-            {
-                Util.logError("To provide intitial user settings, be sure to use createUserInfo()");
-                ret = SplytError.ErrorInvalidArgs;
-            }
-            else if (SplytConstants.ENTITY_TYPE_DEVICE != deviceEntityType)
-            {
-                Util.logError("To provide intitial device settings, be sure to use createDeviceInfo()");
-                ret = SplytError.ErrorInvalidArgs;
-            }
-
-            if (SplytError.Success == ret)
-            {
-                sCustomerId = customerId;
-                sReqTimeout = reqTimeout;
-                sHost = host;
-                sSDKName = sdkName;
-                sSDKVersion = sdkVersion;
-                sAppContext = context.getApplicationContext();
-                sInitializationState = InitializationState.Initializing;
+                // Assume success
+                SplytError ret = SplytError.Success;
 
-                Util.cacheDeviceAndAppInfo(sAppContext);
+                // Enable/disable logging
+                Util.setLogEnabled(logEnabled);
 
-                // First see if we have a deviceId stored off locally that we can use
-                SharedPreferences sharedPrefs = sAppContext.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE);
-
-                if (!isValidId(deviceId))
+                // Verify that we've been passed a valid context
+                if (null == context)
                 {
-                    String savedDeviceId = sharedPrefs.getString(DEVICEID_KEY_NAME, null);
-
-                    if (isValidId(savedDeviceId))
-                    {
-                        deviceId = savedDeviceId;
-                    }
-                    // else use proper device ID (ad id?)
+                    Util.logError("Context is null.  Please pass in a valid context");
+                    ret = SplytError.ErrorInvalidArgs;
                 }
-
-                // set up device id & user id now, in case initial server call doesn't make it back (offline usage, etc)
-                if (isValidId(deviceId)) setDeviceId(deviceId);
-                if (isValidId(userId)) setUserId(userId);
-
-                // add any auto-scraped device state
-                if (null == deviceProperties)
+                else if (null == listener)
                 {
-                    deviceProperties = Util.getDeviceAndAppInfo();
+                    Util.logError("Please provide a valid SplytListener implementation");
+                    ret = SplytError.ErrorInvalidArgs;
                 }
-                else
+                else if (SplytConstants.ENTITY_TYPE_USER != userEntityType)
                 {
-                    deviceProperties.putAll(Util.getDeviceAndAppInfo());
+                    Util.logError("To provide intitial user settings, be sure to use createUserInfo()");
+                    ret = SplytError.ErrorInvalidArgs;
                 }
-
-                // No device Id, so let's retrieve one and save it off
-                String url = sHost + "/isos-personalization/ws/interface/application_init" + getQueryParms();
-                List<Object> allArgs = new ArrayList<Object>(6);
-                Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
-                allArgs.add(curTimeStamp);
-                allArgs.add(curTimeStamp);
-                allArgs.add(userId);
-                allArgs.add(deviceId);
-                allArgs.add(userProperties);
-                allArgs.add(deviceProperties);
-
-                try
+                else if (SplytConstants.ENTITY_TYPE_DEVICE != deviceEntityType)
                 {
-                    // Create an (async) request to retrieve a device Id. The callback will be triggered when the request is completed
-                    new HttpRequest(new URL(url), sReqTimeout, new Gson().toJson(allArgs)).executeAsync(new InitRequestListener(sharedPrefs, tuningUpdater, userProperties, deviceProperties, listener));
+                    Util.logError("To provide intitial device settings, be sure to use createDeviceInfo()");
+                    ret = SplytError.ErrorInvalidArgs;
                 }
-                catch (MalformedURLException e)
+
+                if (SplytError.Success == ret)
                 {
-                    reset();
+                    sCustomerId = customerId;
+                    sReqTimeout = reqTimeout;
+                    sHost = host;
+                    sSDKName = sdkName;
+                    sSDKVersion = sdkVersion;
+                    sAppContext = context.getApplicationContext();
+                    sInitializationState = InitializationState.Initializing;
+
+                    // Reading the shared prefs and collecting the device info touches the disk, so do it in the background
+                    // and then send the initialization request from the main thread
+                    final String theDeviceId = deviceId;
+                    final String theUserId = userId;
+                    final Map<String, Object> theUserProperties = userProperties;
+                    final Map<String, Object> theDeviceProperties = deviceProperties;
+                    final TuningUpdater theTuningUpdater = tuningUpdater;
+                    final SplytListener theListener = listener;
+                    Util.runOnIoThread(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            // First see if we have a deviceId stored off locally that we can use
+                            final SharedPreferences sharedPrefs = sAppContext.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE);
 
-                    Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values");
-                    ret = SplytError.ErrorInvalidArgs;
+                            String deviceId = theDeviceId;
+                            if (!isValidId(deviceId))
+                            {
+                                String savedDeviceId = sharedPrefs.getString(DEVICEID_KEY_NAME, null);
+
+                                if (isValidId(savedDeviceId))
+                                {
+                                    deviceId = savedDeviceId;
+                                }
+                                // else use proper device ID (ad id?)
+                            }
+
+                            // Determine what auto-scraped device state has changed since it was last reported
+                            Util.cacheDeviceAndAppInfo(sAppContext, deviceId);
+
+                            final String resolvedDeviceId = deviceId;
+                            Util.runOnMainThread(new Runnable() {
+                                @Override
+                                public void run()
+                                {
+                                    sendInitRequest(sharedPrefs, theTuningUpdater, theUserId, theUserProperties, resolvedDeviceId, theDeviceProperties, theListener);
+                                }
+                            });
+                        }
+                    });
                 }
-                catch (Exception e)
-                {
-                    reset();
 
-                    Util.logError("Error during HttpRequest: " + e.getMessage());
-                    ret = SplytError.ErrorGeneric;
+                // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
+                if (SplytError.Success != ret && null != listener)
+                {
+                    listener.onComplete(ret);
                 }
             }
-
-            // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
-            if (SplytError.Success != ret && null != listener)
+            else
             {
-                listener.onComplete(ret);
+                // If the subsystem is already successfully initialized, return success, otherwise this call is an error.
+                if (null != listener)
+                {
+                    SplytError ret = (InitializationState.Initialized == sInitializationState) ? SplytError.Success : SplytError.ErrorGeneric;
+                    listener.onComplete(ret);
+                }
             }
         }
-        else
+        finally
         {
-            // If the subsystem is already successfully initialized, return success, otherwise this call is an error.
-            if (null != listener)
-            {
-                SplytError ret = (InitializationState.Initialized == sInitializationState) ? SplytError.Success : SplytError.ErrorGeneric;
-                listener.onComplete(ret);
-            }
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
-    static void registerUser(String userEntityType, String userId, Map<String, Object> userProperties, TuningUpdater tuningUpdater, SplytListener listener)
+    // The second half of init(), once the locally cached data has been read in
+    private static void sendInitRequest(SharedPreferences sharedPrefs, TuningUpdater tuningUpdater, String userId, Map<String, Object> userProperties, String deviceId, Map<String, Object> deviceProperties, SplytListener listener)
     {
         SplytError ret = SplytError.Success;
 
-        if (InitializationState.Initialized != sInitializationState)
+        // set up device id & user id now, in case initial server call doesn't make it back (offline usage, etc)
+        if (isValidId(deviceId)) setDeviceId(deviceId);
+        if (isValidId(userId)) setUserId(userId);
+
+        // add any auto-scraped device state
+        if (null == deviceProperties)
+        {
+            deviceProperties = Util.getDeviceAndAppInfo();
+        }
+        else
         {
-            Util.logError("Cannot registerUser before successful initialization");
-            ret = SplytError.ErrorNotInitialized;
+            deviceProperties.putAll(Util.getDeviceAndAppInfo());
         }
-        else if (!isValidId(getDeviceId()))
+
+        // No device Id, so let's retrieve one and save it off
+        String url = sHost + "/isos-personalization/ws/interface/application_init" + getQueryParms();
+        List<Object> allArgs = new ArrayList<Object>(6);
+        Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
+        allArgs.add(curTimeStamp);
+        allArgs.add(curTimeStamp);
+        allArgs.add(userId);
+        allArgs.add(deviceId);
+        allArgs.add(userProperties);
+        allArgs.add(deviceProperties);
+
+        try
         {
-            Util.logError("No device Id set.  Check for prior errors");
-            ret = SplytError.ErrorMissingId;
+            // Create an (async) request to retrieve a device Id. The callback will be triggered when the request is completed
+            new HttpRequest(new URL(url), sReqTimeout, Util.getGson().toJson(allArgs)).executeAsync(new InitRequestListener(SdkMetrics.LATENCY_APPLICATION_INIT, sharedPrefs, tuningUpdater, userProperties, deviceProperties, listener));
         }
-        else if (SplytConstants.ENTITY_TYPE_USER != userEntityType)
+        catch (MalformedURLException e)
         {
-            Util.logError("To provide intitial user settings, be sure to use createUserInfo()");
+            reset();
+
+            Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values");
             ret = SplytError.ErrorInvalidArgs;
         }
-
-        if (SplytError.Success == ret)
+        catch (Exception e)
         {
-            String deviceId = getDeviceId();
+            reset();
 
-            String url = sHost + "/isos-personalization/ws/interface/application_updateuser" + getQueryParms();
-            List<Object> allArgs = new ArrayList<Object>(2);
-            Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
-            allArgs.add(curTimeStamp);
-            allArgs.add(curTimeStamp);
-            allArgs.add(userId);
-            allArgs.add(deviceId);
+            Util.logError("Error during HttpRequest: " + e.getMessage());
+            ret = SplytError.ErrorGeneric;
+        }
 
-            // TODO: It's not a good idea to go around the event depot (out of order issue)
-            allArgs.add(userProperties);
+        // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
+        if (SplytError.Success != ret && null != listener)
+        {
+            listener.onComplete(ret);
+        }
+    }
 
-            try
+    static void registerUser(String userEntityType, String userId, Map<String, Object> userProperties, TuningUpdater tuningUpdater, SplytListener listener)
+    {
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
+        {
+            SplytError ret = SplytError.Success;
+
+            if (InitializationState.Initialized != sInitializationState)
+            {
+                Util.logError("Cannot registerUser before successful initialization");
+                ret = SplytError.ErrorNotInitialized;
+            }
+            else if (!isValidId(getDeviceId()))
             {
-                // Create an (async) request to retrieve a device Id. The callback will be triggered when the request is completed
-                new HttpRequest(new URL(url), sReqTimeout, new Gson().toJson(allArgs)).executeAsync(new InitRequestListener(null, tuningUpdater, userProperties, null, listener));
+                Util.logError("No device Id set.  Check for prior errors");
+                ret = SplytError.ErrorMissingId;
             }
-            catch (MalformedURLException e)
+            else if (SplytConstants.ENTITY_TYPE_USER != userEntityType)
             {
-                Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values");
+                Util.logError("To provide intitial user settings, be sure to use createUserInfo()");
                 ret = SplytError.ErrorInvalidArgs;
             }
-            catch (Exception e)
+
+            if (SplytError.Success == ret)
+            {
+                String deviceId = getDeviceId();
+
+                String url = sHost + "/isos-personalization/ws/interface/application_updateuser" + getQueryParms();
+                List<Object> allArgs = new ArrayList<Object>(2);
+                Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
+                allArgs.add(curTimeStamp);
+                allArgs.add(curTimeStamp);
+                allArgs.add(userId);
+                allArgs.add(deviceId);
+
+                // TODO: It's not a good idea to go around the event depot (out of order issue)
+                allArgs.add(userProperties);
+
+                try
+                {
+                    // Create an (async) request to retrieve a device Id. The callback will be triggered when the request is completed
+                    new HttpRequest(new URL(url), sReqTimeout, Util.getGson().toJson(allArgs)).executeAsync(new InitRequestListener(SdkMetrics.LATENCY_APPLICATION_UPDATEUSER, null, tuningUpdater, userProperties, null, listener));
+                }
+                catch (MalformedURLException e)
+                {
+                    Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values");
+                    ret = SplytError.ErrorInvalidArgs;
+                }
+                catch (Exception e)
+                {
+                    Util.logError("Error during HttpRequest: " + e.getMessage());
+                    ret = SplytError.ErrorGeneric;
+                }
+            }
+
+            // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
+            if (SplytError.Success != ret && null != listener)
             {
-                Util.logError("Error during HttpRequest: " + e.getMessage());
-                ret = SplytError.ErrorGeneric;
+                listener.onComplete(ret);
             }
         }
-
-        // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
-        if (SplytError.Success != ret && null != listener)
+        finally
         {
-            listener.onComplete(ret);
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
@@ -267,20 +321,28 @@ class CoreSubsystem
      */
     static SplytError setActiveUser(String userId)
     {
-        if (!isValidId(userId))
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            setUserId(null);
-            return SplytError.Success;
-        }
+            if (!isValidId(userId))
+            {
+                setUserId(null);
+                return SplytError.Success;
+            }
+
+            if (sRegisteredUsers.contains(userId))
+            {
+                setUserId(userId);
+                return SplytError.Success;
+            }
 
-        if (sRegisteredUsers.contains(userId))
+            Util.logError("User ID " + userId + " has not been registered.  Be sure to call registerUser to prep an id for usage.");
+            return SplytError.ErrorInvalidArgs;
+        }
+        finally
         {
-            setUserId(userId);
-            return SplytError.Success;
+            StrictModeAudit.exit(oldPolicy);
         }
-
-        Util.logError("User ID " + userId + " has not been registered.  Be sure to call registerUser to prep an id for usage.");
-        return SplytError.ErrorInvalidArgs;
     }
 
     /**
@@ -292,13 +354,21 @@ class CoreSubsystem
      */
     static void pause()
     {
-        // Pause the event depot
-        EventDepot.pause();
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
+        {
+            // Pause the event depot
+            EventDepot.pause();
 
-        // Broadcast that the core subsystem has been paused
-        if (null != sAppContext)
+            // Broadcast that the core subsystem has been paused
+            if (null != sAppContext)
+            {
+                LocalBroadcastManager.getInstance(sAppContext).sendBroadcast(new Intent(SplytConstants.ACTION_CORESUBSYSTEM_PAUSED));
+            }
+        }
+        finally
         {
-            LocalBroadcastManager.getInstance(sAppContext).sendBroadcast(new Intent(SplytConstants.ACTION_CORESUBSYSTEM_PAUSED));
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
@@ -308,13 +378,21 @@ class CoreSubsystem
      */
     static void resume()
     {
-        // Resume normal operations in the event depot
-        EventDepot.resume();
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
+        {
+            // Resume normal operations in the event depot
+            EventDepot.resume();
 
-        // Broadcast that the core subsystem has been resumed
-        if (null != sAppContext)
+            // Broadcast that the core subsystem has been resumed
+            if (null != sAppContext)
+            {
+                LocalBroadcastManager.getInstance(sAppContext).sendBroadcast(new Intent(SplytConstants.ACTION_CORESUBSYSTEM_RESUMED));
+            }
+        }
+        finally
         {
-            LocalBroadcastManager.getInstance(sAppContext).sendBroadcast(new Intent(SplytConstants.ACTION_CORESUBSYSTEM_RESUMED));
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
@@ -329,6 +407,10 @@ class CoreSubsystem
     {
         private final String       _call;
         private final List<Object> _args = new ArrayList<Object>();
+        private EventDepot.Lane    _lane = EventDepot.Lane.BestEffort;
+        private boolean            _hasEntityIds = false;
+        private String             _userId;
+        private String             _deviceId;
 
         DataPointBuilder(String call)
         {
@@ -337,35 +419,56 @@ class CoreSubsystem
 
         SplytError send()
         {
-            // Assume success
-            SplytError ret = SplytError.Success;
-
-            if (InitializationState.Initialized == sInitializationState)
+            SplytTrace.begin(SplytTrace.SEND_EVENT);
+            try
             {
-                // Build up the data object
-                List<Object> allArgs = new ArrayList<Object>();
+                // Assume success
+                SplytError ret = SplytError.Success;
 
-                Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
-                // The interface calls require two time stamps (to support batching), so we'll send the same one for both
-                allArgs.add(curTimeStamp);
-                allArgs.add(curTimeStamp);
-                allArgs.add(getUserId());
-                allArgs.add(getDeviceId());
-                allArgs.addAll(_args);
-
-                // Build the event and store it in the depot
-                Map<String, Object> event = new HashMap<String, Object>(2);
-                event.put("method", _call);
-                event.put("args", allArgs);
+                Map<String, Object> event = build();
+                if (null != event)
+                {
+                    // Store the event in the depot
+                    ret = EventDepot.store(event, _lane);
+                }
+                else
+                {
+                    ret = SplytError.ErrorNotInitialized;
+                }
 
-                ret = EventDepot.store(event);
+                return ret;
             }
-            else
+            finally
             {
-                ret = SplytError.ErrorNotInitialized;
+                SplytTrace.end();
             }
+        }
 
-            return ret;
+        // Build the event without storing it.  Returns null if Splyt is not initialized
+        Map<String, Object> build()
+        {
+            if (InitializationState.Initialized != sInitializationState)
+            {
+                return null;
+            }
+
+            // Build up the data object
+            List<Object> allArgs = new ArrayList<Object>();
+
+            Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
+            // The interface calls require two time stamps (to support batching), so we'll send the same one for both
+            allArgs.add(curTimeStamp);
+            allArgs.add(curTimeStamp);
+            allArgs.add(_hasEntityIds ? _userId : getUserId());
+            allArgs.add(_hasEntityIds ? _deviceId : getDeviceId());
+            allArgs.addAll(_args);
+
+            // Build the event
+            Map<String, Object> event = new HashMap<String, Object>(2);
+            event.put("method", _call);
+            event.put("args", allArgs);
+
+            return event;
         }
 
         DataPointBuilder setArg(Object obj)
@@ -373,6 +476,60 @@ class CoreSubsystem
             _args.add(obj);
             return this;
         }
+
+        // Set the user and device the event is attributed to (the current ones unless specified otherwise)
+        DataPointBuilder setEntityIds(String userId, String deviceId)
+        {
+            _hasEntityIds = true;
+            _userId = userId;
+            _deviceId = deviceId;
+            return this;
+        }
+
+        // Set the lane through which the event is sent (best-effort unless specified otherwise)
+        DataPointBuilder setLane(EventDepot.Lane lane)
+        {
+            _lane = lane;
+            return this;
+        }
+
+        EventDepot.Lane getLane()
+        {
+            return _lane;
+        }
+
+        // The time an event was captured, in seconds since the epoch (NaN if unknown)
+        static double getTimestamp(Object event)
+        {
+            Object timestamp = getArg(event, 0);
+            return (timestamp instanceof Number) ? ((Number) timestamp).doubleValue() : Double.NaN;
+        }
+
+        // The category of an event: the transaction category for transactions, or the name of the call otherwise
+        static String getCategory(Object event)
+        {
+            if (!(event instanceof Map))
+            {
+                return null;
+            }
+
+            Object call = ((Map<?, ?>) event).get("method");
+            if ((call instanceof String) && ((String) call).endsWith("Transaction"))
+            {
+                // The category is the first argument following the timestamps and ids
+                Object category = getArg(event, 4);
+                return (category instanceof String) ? (String) category : null;
+            }
+
+            return (call instanceof String) ? (String) call : null;
+        }
+
+        // An argument of an event, where 0 and 1 are the timestamps, 2 and 3 the user and device ids, and the call's own arguments follow
+        static Object getArg(Object event, int index)
+        {
+            Object args = (event instanceof Map) ? ((Map<?, ?>) event).get("args") : null;
+            return ((args instanceof List) && (((List<?>) args).size() > index)) ? ((List<?>) args).get(index) : null;
+        }
     }
 
     static boolean isValidId(String id)
@@ -424,6 +581,7 @@ class CoreSubsystem
         private final SplytListener       mListener;
         private final Map<String, Object> mUserProperties;
         private final Map<String, Object> mDeviceProperties;
+        private final String              mLatencyMetric;     // The SDK metric that the request's latency is recorded as
 
         class initRet
         {
@@ -435,8 +593,9 @@ class CoreSubsystem
             boolean             devicenew;
         }
 
-        InitRequestListener(SharedPreferences sharedPrefs, TuningUpdater tuningUpdater, Map<String, Object> userProperties, Map<String, Object> deviceProperties, SplytListener listener)
+        InitRequestListener(String latencyMetric, SharedPreferences sharedPrefs, TuningUpdater tuningUpdater, Map<String, Object> userProperties, Map<String, Object> deviceProperties, SplytListener listener)
         {
+            mLatencyMetric = latencyMetric;
             mSharedPrefs = sharedPrefs;
             mTuningUpdater = tuningUpdater;
 
@@ -452,6 +611,8 @@ class CoreSubsystem
         @Override
         public void onComplete(RequestResult result)
         {
+            SdkMetrics.recordLatency(mLatencyMetric, result.elapsed);
+
             SplytError retError = SplytError.ErrorGeneric;
             boolean userNew = false;
             boolean deviceNew = false;
@@ -460,7 +621,7 @@ class CoreSubsystem
             {
                 try
                 {
-                    Gson gson = new Gson();
+                    Gson gson = Util.getGson();
 
                     JsonParser parser = new JsonParser();
                     JsonObject obj = parser.parse(result.response).getAsJsonObject();
@@ -478,7 +639,7 @@ class CoreSubsystem
                             // Save it off
                             SharedPreferences.Editor editor = mSharedPrefs.edit();
                             editor.putString(DEVICEID_KEY_NAME, ret.deviceid);
-                            editor.commit();
+                            editor.apply();
 
                             mTuningUpdater.onUpdate(SplytConstants.ENTITY_TYPE_DEVICE, ret.deviceid, ret.devicetuning);
                             setDeviceId(ret.deviceid);
@@ -528,14 +689,16 @@ class CoreSubsystem
                 sInitializationState = InitializationState.Initialized;
 
                 // queue up some telemetry for the initial state...
-                if(null != mDeviceProperties)
+                if(null != mDeviceProperties && !mDeviceProperties.isEmpty())
                     new DataPointBuilder("datacollector_updateDeviceState").setArg(mDeviceProperties).send();
+                if(null != mSharedPrefs)
+                    Util.commitDeviceAndAppInfo(sAppContext, getDeviceId());
                 if(null != mUserProperties)
                     new DataPointBuilder("datacollector_updateUserState").setArg(mUserProperties).send();
                 if(deviceNew)
-                    new DataPointBuilder("datacollector_newDevice").send();
+                    new DataPointBuilder("datacollector_newDevice").setLane(EventDepot.Lane.Priority).send();
                 if(userNew)
-                    new DataPointBuilder("datacollector_newUser").send();
+                    new DataPointBuilder("datacollector_newUser").setLane(EventDepot.Lane.Priority).send();
 
                 // TODO - decide if we want to send a TuningFailed error at this point, if there was some kind of error?
 
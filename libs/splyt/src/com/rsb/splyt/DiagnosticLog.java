@@ -0,0 +1,120 @@
+package com.rsb.splyt;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * <p>This is an internal class that keeps the most recent of the SDK's log messages in memory, so that they can be
+ * retrieved (e.g., and attached to a crash report) with {@link Splyt.Core#getDiagnosticLog} even when logging to the
+ * device log is disabled.</p>
+ *
+ * <p>The log is a fixed-size ring of records that are allocated up front and overwritten in place, so once it's full,
+ * recording a message evicts the oldest one without allocating anything but the message itself.</p>
+ */
+class DiagnosticLog
+{
+    private static class Record
+    {
+        long time;
+        int level;
+        String thread;
+        String message;
+        Throwable error;
+    }
+
+    // Checked before anything is formatted, so that a disabled log costs a single read
+    private static volatile boolean sEnabled;
+
+    private static Record[] sRecords = new Record[0];
+    private static int sNext;   // Where the next record goes
+    private static int sCount;  // The number of records in use
+
+    /**
+     * Set the number of records to keep.  Any records already kept are discarded.
+     *
+     * @param capacity  The number of records, or 0 to disable the log
+     */
+    static synchronized void setCapacity(int capacity)
+    {
+        sRecords = new Record[Math.max(capacity, 0)];
+        for (int i = 0; i < sRecords.length; ++i)
+        {
+            sRecords[i] = new Record();
+        }
+        sNext = 0;
+        sCount = 0;
+        sEnabled = (sRecords.length > 0);
+    }
+
+    static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+
+    /**
+     * Record a message.
+     *
+     * @param level     The level of the message (e.g., Log.DEBUG)
+     * @param message   The message
+     * @param error     The exception that goes with the message, or null
+     */
+    static void record(int level, String message, Throwable error)
+    {
+        if (!sEnabled)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        String thread = Thread.currentThread().getName();
+        synchronized (DiagnosticLog.class)
+        {
+            if (0 == sRecords.length)
+            {
+                return;
+            }
+
+            Record record = sRecords[sNext];
+            record.time = now;
+            record.level = level;
+            record.thread = thread;
+            record.message = message;
+            record.error = error;
+
+            sNext = (sNext + 1) % sRecords.length;
+            sCount = Math.min(sCount + 1, sRecords.length);
+        }
+    }
+
+    /**
+     * @return The records kept, oldest first and one per line, in a form similar to that of the device log
+     */
+    static synchronized String dump()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; i < sCount; ++i)
+        {
+            Record record = sRecords[(sNext - sCount + i + sRecords.length) % sRecords.length];
+            dump.append(format.format(new Date(record.time)))
+                .append(' ').append((Log.ERROR == record.level) ? 'E' : 'D')
+                .append(" [").append(record.thread).append("] ")
+                .append(record.message)
+                .append('\n');
+
+            if (null != record.error)
+            {
+                StringWriter trace = new StringWriter();
+                record.error.printStackTrace(new PrintWriter(trace));
+                dump.append(trace);
+            }
+        }
+
+        return dump.toString();
+    }
+}
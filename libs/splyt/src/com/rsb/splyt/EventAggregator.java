@@ -0,0 +1,241 @@
+package com.rsb.splyt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>This is an internal class that rolls up the transactions in high-frequency categories (e.g., heartbeats) into
+ * aggregates.  Rather than storing an event for every transaction, we accumulate the count (and, optionally, the
+ * sum/min/max and a histogram of a numeric property) over a window of time, and store a single aggregate event per
+ * category (and per user and device the transactions were reported for) when the window closes.</p>
+ *
+ * <p>Only the end of a transaction is rolled up.  The beginning and updates of transactions in these categories aren't
+ * stored at all (see {@link #isRolledUp}), so there are no unmatched events for the data collector.</p>
+ *
+ * <p>Transactions are added from whichever thread the app reports them on, while the {@link EventDepot} flushes the
+ * aggregates from its own thread as part of processing its bins.</p>
+ */
+class EventAggregator
+{
+    // The properties of the aggregate events
+    static final String PROPERTY_COUNT               = "_SPLYT_rollupCount";
+    static final String PROPERTY_WINDOW_START        = "_SPLYT_rollupWindowStart";
+    static final String PROPERTY_WINDOW_LENGTH       = "_SPLYT_rollupWindowLength";
+    static final String PROPERTY_VALUE               = "_SPLYT_rollupValue";
+    static final String PROPERTY_SUM                 = "_SPLYT_rollupSum";
+    static final String PROPERTY_MIN                 = "_SPLYT_rollupMin";
+    static final String PROPERTY_MAX                 = "_SPLYT_rollupMax";
+    static final String PROPERTY_HISTOGRAM_BOUNDS    = "_SPLYT_rollupHistogramBounds";
+    static final String PROPERTY_HISTOGRAM_COUNTS    = "_SPLYT_rollupHistogramCounts";
+
+    /**
+     * Describes how the transactions in a category are rolled up.
+     */
+    static class Rollup
+    {
+        final String valueProperty;         // The numeric property to aggregate, or null to only count the transactions
+        final double[] histogramBounds;     // The (ascending) upper bounds of the histogram buckets, or null for no histogram
+
+        Rollup(String valueProperty, double[] histogramBounds)
+        {
+            this.valueProperty = valueProperty;
+            this.histogramBounds = ((null != histogramBounds) && (histogramBounds.length > 0)) ? sortedCopy(histogramBounds) : null;
+        }
+
+        private static double[] sortedCopy(double[] values)
+        {
+            double[] copy = values.clone();
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    // The running aggregate of a category over the current window, for a given user and device
+    private static class Aggregate
+    {
+        final String category;
+        final String userId;
+        final String deviceId;
+        long count;
+        long valueCount;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long[] histogram;   // One more bucket than there are bounds, for the values above the last bound
+
+        Aggregate(String category, String userId, String deviceId)
+        {
+            this.category = category;
+            this.userId = userId;
+            this.deviceId = deviceId;
+        }
+    }
+
+    private static Map<String, Rollup> sRollups = new HashMap<String, Rollup>();
+    private static long sWindowLength = SplytConstants.DEFAULT_ROLLUP_WINDOW;
+
+    // The aggregates of the current window, keyed by category, user id and device id, in the order in which they were first seen
+    private static final Map<List<String>, Aggregate> sAggregates = new LinkedHashMap<List<String>, Aggregate>();
+    private static long sWindowStart;
+
+    /**
+     * Configure the categories to roll up.
+     *
+     * @param rollups       The rollups, by category
+     * @param windowLength  The length of the aggregation window, in ms
+     */
+    static synchronized void configure(Map<String, Rollup> rollups, long windowLength)
+    {
+        sRollups = new HashMap<String, Rollup>(rollups);
+        sWindowLength = windowLength;
+    }
+
+    /**
+     * @return true if the transactions in a category are rolled up, in which case only their ends are reported (through {@link #add})
+     */
+    static synchronized boolean isRolledUp(String category)
+    {
+        return (null != category) && sRollups.containsKey(category);
+    }
+
+    /**
+     * Adds a completed transaction to its category's aggregate, for the current user and device.
+     *
+     * @param category      The category of the transaction
+     * @param properties    The properties of the transaction (may be null)
+     *
+     * @return true if the transaction was rolled up, false if its category isn't and it must be stored as usual
+     */
+    static synchronized boolean add(String category, Map<String, Object> properties)
+    {
+        Rollup rollup = (null != category) ? sRollups.get(category) : null;
+        if (null == rollup)
+        {
+            return false;
+        }
+
+        if (sAggregates.isEmpty())
+        {
+            // This is the first transaction of a new window
+            sWindowStart = System.currentTimeMillis();
+        }
+
+        // The aggregate is attributed to the user and device the transactions were reported for, rather than those current when it's flushed
+        String userId = CoreSubsystem.getUserId();
+        String deviceId = CoreSubsystem.getDeviceId();
+        List<String> key = Arrays.asList(category, userId, deviceId);
+        Aggregate aggregate = sAggregates.get(key);
+        if (null == aggregate)
+        {
+            aggregate = new Aggregate(category, userId, deviceId);
+            if (null != rollup.histogramBounds)
+            {
+                aggregate.histogram = new long[rollup.histogramBounds.length + 1];
+            }
+            sAggregates.put(key, aggregate);
+        }
+
+        aggregate.count++;
+
+        Object value = ((null != rollup.valueProperty) && (null != properties)) ? properties.get(rollup.valueProperty) : null;
+        if (value instanceof Number)
+        {
+            double v = ((Number) value).doubleValue();
+            aggregate.valueCount++;
+            aggregate.sum += v;
+            aggregate.min = Math.min(aggregate.min, v);
+            aggregate.max = Math.max(aggregate.max, v);
+
+            if (null != aggregate.histogram)
+            {
+                int bucket = Arrays.binarySearch(rollup.histogramBounds, v);
+                aggregate.histogram[(bucket >= 0) ? bucket : (-bucket - 1)]++;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes the current window if it's due (or if forced) and builds an aggregate event for each category (and user and device)
+     * seen in it.
+     *
+     * @param force true to close the window regardless of how long it has been open (e.g., when the app is paused)
+     *
+     * @return The aggregate events, in the order in which they were first seen.  Empty if the window is still open
+     */
+    static List<Map<String, Object>> flush(boolean force)
+    {
+        List<Aggregate> aggregates;
+        long windowStart;
+        long windowLength;
+        Map<String, Rollup> rollups;
+        synchronized (EventAggregator.class)
+        {
+            long now = System.currentTimeMillis();
+            if (sAggregates.isEmpty() || (!force && (now - sWindowStart < sWindowLength)))
+            {
+                return new ArrayList<Map<String, Object>>(0);
+            }
+
+            aggregates = new ArrayList<Aggregate>(sAggregates.values());
+            sAggregates.clear();
+            windowStart = sWindowStart;
+            windowLength = now - sWindowStart;
+            rollups = sRollups;
+        }
+
+        // Build the events outside of the lock so we don't hold up the app's threads
+        List<Map<String, Object>> events = new ArrayList<Map<String, Object>>(aggregates.size());
+        for (Aggregate aggregate : aggregates)
+        {
+            Rollup rollup = rollups.get(aggregate.category);
+
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(PROPERTY_COUNT, Long.valueOf(aggregate.count));
+            properties.put(PROPERTY_WINDOW_START, Double.valueOf(windowStart / 1000.0));
+            properties.put(PROPERTY_WINDOW_LENGTH, Long.valueOf(windowLength));
+            if ((null != rollup) && (null != rollup.valueProperty) && (aggregate.valueCount > 0))
+            {
+                properties.put(PROPERTY_VALUE, rollup.valueProperty);
+                properties.put(PROPERTY_SUM, Double.valueOf(aggregate.sum));
+                properties.put(PROPERTY_MIN, Double.valueOf(aggregate.min));
+                properties.put(PROPERTY_MAX, Double.valueOf(aggregate.max));
+
+                if (null != aggregate.histogram)
+                {
+                    List<Double> bounds = new ArrayList<Double>(rollup.histogramBounds.length);
+                    for (double bound : rollup.histogramBounds)
+                    {
+                        bounds.add(Double.valueOf(bound));
+                    }
+                    List<Long> counts = new ArrayList<Long>(aggregate.histogram.length);
+                    for (long count : aggregate.histogram)
+                    {
+                        counts.add(Long.valueOf(count));
+                    }
+                    properties.put(PROPERTY_HISTOGRAM_BOUNDS, bounds);
+                    properties.put(PROPERTY_HISTOGRAM_COUNTS, counts);
+                }
+            }
+
+            Map<String, Object> event = new CoreSubsystem.DataPointBuilder("datacollector_endTransaction")
+                .setEntityIds(aggregate.userId, aggregate.deviceId)
+                .setArg(aggregate.category)
+                .setArg(SplytConstants.TXN_SUCCESS)
+                .setArg(null)
+                .setArg(properties)
+                .build();
+            if (null != event)
+            {
+                events.add(event);
+            }
+        }
+
+        return events;
+    }
+}
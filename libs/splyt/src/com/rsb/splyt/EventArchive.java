@@ -0,0 +1,345 @@
+package com.rsb.splyt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.rsb.gson.Gson;
+
+/**
+ * <p>This is an internal class that represents a bin of events archived to disk by the {@link EventDepot}.</p>
+ *
+ * <p>The events are stored as the gzip-compressed JSON array that is sent to the data collector, so an archive holds several
+ * times more events than the Java-serialized lists we used to write, and it can be uploaded without being decoded again.
+ * The file layout is:
+ * <pre>
+ *   int     MAGIC
+ *   byte    VERSION
+ *   UTF     URL of the data collector
+ *   int     Number of events
+ *   For each event (version 2 and above):
+ *     long  The time the event expires (in ms since the epoch, Long.MAX_VALUE if it never does)
+ *     int   The length of the event's JSON (in chars)
+ *   int     Length of the payload
+ *   byte[]  Payload (gzip-compressed, UTF-8 encoded JSON array of events)
+ * </pre>
+ * The event table lets us tell which events have expired without decoding the payload, and splice the ones that
+ * haven't out of the JSON without parsing it.
+ * Archives written by older versions of the SDK (a serialized URL followed by a serialized list of events) are still read.</p>
+ */
+class EventArchive
+{
+    private static final int MAGIC = 0x53504C41;       // "SPLA"
+    private static final byte VERSION = 2;
+
+    // The first two bytes of a Java serialization stream, which is how archives were written before
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    final URL url;
+    final int eventCount;
+
+    // The compressed JSON array of events.  Null if this is a legacy archive (which we only have the decoded events for)
+    private final byte[] mPayload;
+    private List<Object> mEvents;
+
+    // The expiry time and JSON length of each event.  Null if the archive predates event expiry (i.e., its events never expire)
+    private final long[] mExpiryTimes;
+    private final int[] mLengths;
+
+    private EventArchive(URL url, int eventCount, byte[] payload, List<Object> events, long[] expiryTimes, int[] lengths)
+    {
+        this.url = url;
+        this.eventCount = eventCount;
+        mPayload = payload;
+        mEvents = events;
+        mExpiryTimes = expiryTimes;
+        mLengths = lengths;
+    }
+
+    /**
+     * @param now   The current time, in ms since the epoch
+     *
+     * @return The number of archived events that have expired
+     */
+    int countExpired(long now)
+    {
+        int count = 0;
+        if (null != mExpiryTimes)
+        {
+            for (long expiryTime : mExpiryTimes)
+            {
+                if (expiryTime <= now)
+                {
+                    ++count;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param now   The current time, in ms since the epoch
+     *
+     * @return The archived events that have not expired, as a JSON array
+     */
+    String getEventsJson(long now) throws IOException
+    {
+        String json = getEventsJson();
+        if (0 == countExpired(now))
+        {
+            return json;
+        }
+
+        // Splice the unexpired events out of the array
+        StringBuilder unexpired = new StringBuilder(json.length()).append('[');
+        int offset = 1;
+        for (int i = 0; i < eventCount; ++i)
+        {
+            if (mExpiryTimes[i] > now)
+            {
+                if (unexpired.length() > 1)
+                {
+                    unexpired.append(',');
+                }
+                unexpired.append(json, offset, offset + mLengths[i]);
+            }
+
+            offset += mLengths[i] + 1;
+        }
+
+        return unexpired.append(']').toString();
+    }
+
+    /**
+     * @param now   The current time, in ms since the epoch
+     *
+     * @return The archived events that have not expired, as a gzip-compressed JSON array.  If none have expired, this is the payload as stored on disk
+     */
+    byte[] getCompressedEventsJson(long now) throws IOException
+    {
+        return (0 == countExpired(now)) ? getCompressedEventsJson() : compress(getEventsJson(now));
+    }
+
+    /**
+     * @return The archived events, decoding them if necessary
+     */
+    List<Object> getEvents() throws IOException
+    {
+        if (null == mEvents)
+        {
+            Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(mPayload)), "UTF-8");
+            SplytTrace.begin(SplytTrace.DECODE_JSON);
+            try
+            {
+                @SuppressWarnings("unchecked")
+                List<Object> events = Util.getGson().fromJson(reader, ArrayList.class);
+                mEvents = (null != events) ? events : new ArrayList<Object>();
+            }
+            finally
+            {
+                SplytTrace.end();
+                reader.close();
+            }
+        }
+
+        return mEvents;
+    }
+
+    /**
+     * @param now   The current time, in ms since the epoch
+     *
+     * @return The archived events that have not expired, decoding them if necessary
+     */
+    List<Object> getEvents(long now) throws IOException
+    {
+        List<Object> events = getEvents();
+        if (0 == countExpired(now))
+        {
+            return events;
+        }
+
+        List<Object> unexpired = new ArrayList<Object>(events.size());
+        for (int i = 0; i < events.size(); ++i)
+        {
+            if (mExpiryTimes[i] > now)
+            {
+                unexpired.add(events.get(i));
+            }
+        }
+
+        return unexpired;
+    }
+
+    /**
+     * @return The archived events as a JSON array
+     */
+    String getEventsJson() throws IOException
+    {
+        if (null == mPayload)
+        {
+            return Util.getGson().toJson(mEvents);
+        }
+
+        return new String(decompress(mPayload), "UTF-8");
+    }
+
+    /**
+     * @return The archived events as a gzip-compressed JSON array, as stored on disk
+     */
+    byte[] getCompressedEventsJson() throws IOException
+    {
+        return (null != mPayload) ? mPayload : compress(getEventsJson());
+    }
+
+    /**
+     * Write a bin of events.
+     *
+     * @param out           The stream to write to.  Note that this does not close the stream
+     * @param url           The URL of the data collector the events are bound for
+     * @param events        The events
+     * @param expiryTimes   The time each event expires, in ms since the epoch (Long.MAX_VALUE if it never does)
+     */
+    static void write(OutputStream out, URL url, List<Object> events, long[] expiryTimes) throws IOException
+    {
+        // Encode the events one at a time so that we know where each one lies in the array
+        Gson gson = Util.getGson();
+        StringBuilder json = new StringBuilder("[");
+        int[] lengths = new int[events.size()];
+        SplytTrace.begin(SplytTrace.ENCODE_JSON);
+        try
+        {
+            for (int i = 0; i < events.size(); ++i)
+            {
+                String eventJson = gson.toJson(events.get(i));
+                lengths[i] = eventJson.length();
+                json.append((i > 0) ? "," : "").append(eventJson);
+            }
+        }
+        finally
+        {
+            SplytTrace.end();
+        }
+        byte[] payload = compress(json.append(']').toString());
+
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeByte(VERSION);
+        dataOut.writeUTF(url.toString());
+        dataOut.writeInt(events.size());
+        for (int i = 0; i < events.size(); ++i)
+        {
+            dataOut.writeLong(expiryTimes[i]);
+            dataOut.writeInt(lengths[i]);
+        }
+        dataOut.writeInt(payload.length);
+        dataOut.write(payload);
+        dataOut.flush();
+    }
+
+    /**
+     * Read a bin of events.  Note that the events themselves are only decoded on demand.
+     *
+     * @param in    The stream to read from.  Note that this does not close the stream
+     */
+    static EventArchive read(InputStream in) throws IOException
+    {
+        BufferedInputStream bufferedIn = new BufferedInputStream(in);
+        DataInputStream dataIn = new DataInputStream(bufferedIn);
+
+        bufferedIn.mark(4);
+        int magic = dataIn.readInt();
+        if (MAGIC == magic)
+        {
+            byte version = dataIn.readByte();
+            if (version > VERSION)
+            {
+                throw new IOException("Unsupported archive version " + version);
+            }
+
+            URL url = new URL(dataIn.readUTF());
+            int eventCount = dataIn.readInt();
+
+            long[] expiryTimes = null;
+            int[] lengths = null;
+            if (version >= 2)
+            {
+                expiryTimes = new long[eventCount];
+                lengths = new int[eventCount];
+                for (int i = 0; i < eventCount; ++i)
+                {
+                    expiryTimes[i] = dataIn.readLong();
+                    lengths[i] = dataIn.readInt();
+                }
+            }
+
+            byte[] payload = new byte[dataIn.readInt()];
+            dataIn.readFully(payload);
+
+            return new EventArchive(url, eventCount, payload, null, expiryTimes, lengths);
+        }
+        else if (LEGACY_MAGIC == (magic >>> 16))
+        {
+            bufferedIn.reset();
+            return readLegacy(bufferedIn);
+        }
+
+        throw new IOException("Unrecognized archive format");
+    }
+
+    private static EventArchive readLegacy(InputStream in) throws IOException
+    {
+        try
+        {
+            ObjectInputStream inputStream = new ObjectInputStream(in);
+            URL url = (URL) inputStream.readObject();
+            @SuppressWarnings("unchecked")
+            ArrayList<Object> events = (ArrayList<Object>) inputStream.readObject();
+
+            return new EventArchive(url, events.size(), null, events, null, null);
+        }
+        catch (ClassNotFoundException clnex)
+        {
+            // Contents of the archive are corrupted
+            throw new IOException("Corrupted legacy archive");
+        }
+    }
+
+    static byte[] compress(String data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(data.getBytes("UTF-8"));
+        gzip.close();
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException
+    {
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = gzip.read(buffer)) > 0)
+        {
+            bytes.write(buffer, 0, count);
+        }
+        gzip.close();
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,321 @@
+package com.rsb.splyt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>This is an internal class that coalesces bursts of state and collection updates in a bin of events before it's sent,
+ * so that we send one event per entity rather than one per call:
+ * - User and device state updates are merged, with the last value written to each property winning
+ * - Collection updates are merged into one with the summed balance modification and the final balance
+ * - Transactions that begin, (optionally) update and end within the bin are collapsed into a single end event that carries
+ *   the properties of all of them and the duration of the transaction
+ * The merged event takes the place (and the timestamps) of the last of the events it replaces.</p>
+ */
+class EventCoalescer
+{
+    private static final String CALL_UPDATE_USER_STATE   = "datacollector_updateUserState";
+    private static final String CALL_UPDATE_DEVICE_STATE = "datacollector_updateDeviceState";
+    private static final String CALL_UPDATE_COLLECTION   = "datacollector_updateCollection";
+    private static final String CALL_BEGIN_TRANSACTION   = "datacollector_beginTransaction";
+    private static final String CALL_UPDATE_TRANSACTION  = "datacollector_updateTransaction";
+    private static final String CALL_END_TRANSACTION     = "datacollector_endTransaction";
+
+    // The positions of the call's own arguments (see CoreSubsystem.DataPointBuilder)
+    private static final int ARG_STATE_PROPERTIES        = 4;
+    private static final int ARG_COLLECTION_NAME         = 4;
+    private static final int ARG_COLLECTION_MODIFICATION = 6;
+    private static final int ARG_TRANSACTION_CATEGORY    = 4;
+    private static final int ARG_BEGIN_TRANSACTION_ID    = 7;
+    private static final int ARG_BEGIN_PROPERTIES        = 8;
+    private static final int ARG_TRANSACTION_ID          = 6;    // For updates and ends
+    private static final int ARG_TRANSACTION_PROPERTIES  = 7;    // For updates and ends
+
+    // The property of a collapsed transaction that holds its duration, in seconds
+    static final String PROPERTY_DURATION = "_SPLYT_duration";
+
+    // A transaction that is open (i.e., has begun) in the bin being collapsed
+    private static class OpenTransaction
+    {
+        int beginIndex;
+        List<Integer> updateIndices = new ArrayList<Integer>();
+        int endIndex = -1;
+    }
+
+    // The updates to an entity accumulated so far
+    private static class Merge
+    {
+        int lastIndex;                      // The position of the last update in the bin
+        int count;                          // The number of updates
+        Map<String, Object> properties;     // State updates only
+        Double modification;                // Collection updates only
+    }
+
+    /**
+     * Coalesce the updates in a bin of events.
+     *
+     * @param bin   The bin, which is modified in place
+     *
+     * @return The number of events that were coalesced away
+     */
+    @SuppressWarnings("unchecked")
+    static int coalesce(List<Object> bin)
+    {
+        Map<String, Merge> merges = null;
+        int removed = 0;
+
+        for (int i = 0; i < bin.size(); ++i)
+        {
+            Object event = bin.get(i);
+            String key = getKey(event);
+            if (null == key)
+            {
+                continue;
+            }
+
+            if (null == merges)
+            {
+                merges = new HashMap<String, Merge>();
+            }
+
+            Merge merge = merges.get(key);
+            if (null == merge)
+            {
+                merge = new Merge();
+                merges.put(key, merge);
+            }
+            else
+            {
+                ++removed;
+            }
+
+            merge.lastIndex = i;
+            merge.count++;
+
+            Object call = ((Map<String, Object>) event).get("method");
+            if (CALL_UPDATE_COLLECTION.equals(call))
+            {
+                Object modification = CoreSubsystem.DataPointBuilder.getArg(event, ARG_COLLECTION_MODIFICATION);
+                if (modification instanceof Number)
+                {
+                    double sum = ((null != merge.modification) ? merge.modification.doubleValue() : 0.0) + ((Number) modification).doubleValue();
+                    merge.modification = Double.valueOf(sum);
+                }
+            }
+            else
+            {
+                Object properties = CoreSubsystem.DataPointBuilder.getArg(event, ARG_STATE_PROPERTIES);
+                if (properties instanceof Map)
+                {
+                    if (null == merge.properties)
+                    {
+                        merge.properties = new HashMap<String, Object>();
+                    }
+                    merge.properties.putAll((Map<String, Object>) properties);
+                }
+            }
+        }
+
+        if (0 == removed)
+        {
+            // Nothing to coalesce, so leave the bin be
+            return 0;
+        }
+
+        // Rebuild the bin, replacing the last update to each entity with the merged one and dropping the others
+        List<Object> coalesced = new ArrayList<Object>(bin.size() - removed);
+        for (int i = 0; i < bin.size(); ++i)
+        {
+            Object event = bin.get(i);
+            String key = getKey(event);
+            Merge merge = (null != key) ? merges.get(key) : null;
+            if (null == merge)
+            {
+                coalesced.add(event);
+            }
+            else if (i == merge.lastIndex)
+            {
+                coalesced.add((merge.count > 1) ? buildMerged((Map<String, Object>) event, merge) : event);
+            }
+        }
+
+        bin.clear();
+        bin.addAll(coalesced);
+
+        return removed;
+    }
+
+    /**
+     * Collapse the transactions that begin and end within a bin of events.
+     *
+     * @param bin   The bin, which is modified in place
+     *
+     * @return The number of events that were collapsed away
+     */
+    @SuppressWarnings("unchecked")
+    static int collapseTransactions(List<Object> bin)
+    {
+        Map<String, OpenTransaction> open = null;
+        List<OpenTransaction> completed = null;
+
+        for (int i = 0; i < bin.size(); ++i)
+        {
+            Object event = bin.get(i);
+            Object call = (event instanceof Map) ? ((Map<String, Object>) event).get("method") : null;
+            if (CALL_BEGIN_TRANSACTION.equals(call))
+            {
+                if (null == open)
+                {
+                    open = new HashMap<String, OpenTransaction>();
+                }
+
+                // Note that if the same transaction begins again, we leave the earlier begin as is
+                OpenTransaction transaction = new OpenTransaction();
+                transaction.beginIndex = i;
+                open.put(getTransactionKey(event, ARG_BEGIN_TRANSACTION_ID), transaction);
+            }
+            else if ((null != open) && CALL_UPDATE_TRANSACTION.equals(call))
+            {
+                OpenTransaction transaction = open.get(getTransactionKey(event, ARG_TRANSACTION_ID));
+                if (null != transaction)
+                {
+                    transaction.updateIndices.add(Integer.valueOf(i));
+                }
+            }
+            else if ((null != open) && CALL_END_TRANSACTION.equals(call))
+            {
+                OpenTransaction transaction = open.remove(getTransactionKey(event, ARG_TRANSACTION_ID));
+                if (null != transaction)
+                {
+                    transaction.endIndex = i;
+                    if (null == completed)
+                    {
+                        completed = new ArrayList<OpenTransaction>();
+                    }
+                    completed.add(transaction);
+                }
+            }
+        }
+
+        if (null == completed)
+        {
+            // No transaction both began and ended in this bin
+            return 0;
+        }
+
+        // Work out which events go away and which are replaced by a collapsed transaction
+        Object[] events = bin.toArray();
+        int removed = 0;
+        for (OpenTransaction transaction : completed)
+        {
+            Map<String, Object> begin = (Map<String, Object>) events[transaction.beginIndex];
+            Map<String, Object> end = (Map<String, Object>) events[transaction.endIndex];
+
+            List<Object> args = new ArrayList<Object>((List<Object>) end.get("args"));
+            if (args.size() <= ARG_TRANSACTION_PROPERTIES)
+            {
+                // Not an event we know how to collapse
+                continue;
+            }
+
+            // Merge the properties in the order in which they were reported, so that the latest value of each wins
+            Map<String, Object> properties = new HashMap<String, Object>();
+            putAll(properties, CoreSubsystem.DataPointBuilder.getArg(begin, ARG_BEGIN_PROPERTIES));
+            for (Integer updateIndex : transaction.updateIndices)
+            {
+                putAll(properties, CoreSubsystem.DataPointBuilder.getArg(events[updateIndex.intValue()], ARG_TRANSACTION_PROPERTIES));
+                events[updateIndex.intValue()] = null;
+            }
+            putAll(properties, CoreSubsystem.DataPointBuilder.getArg(end, ARG_TRANSACTION_PROPERTIES));
+
+            double duration = CoreSubsystem.DataPointBuilder.getTimestamp(end) - CoreSubsystem.DataPointBuilder.getTimestamp(begin);
+            if (!Double.isNaN(duration))
+            {
+                properties.put(PROPERTY_DURATION, Double.valueOf(Math.max(duration, 0.0)));
+            }
+
+            args.set(ARG_TRANSACTION_PROPERTIES, properties);
+
+            Map<String, Object> collapsed = new HashMap<String, Object>(end);
+            collapsed.put("args", args);
+
+            events[transaction.beginIndex] = null;
+            events[transaction.endIndex] = collapsed;
+            removed += 1 + transaction.updateIndices.size();
+        }
+
+        bin.clear();
+        for (Object event : events)
+        {
+            if (null != event)
+            {
+                bin.add(event);
+            }
+        }
+
+        return removed;
+    }
+
+    // Identifies a transaction by the user, device, category and transaction id
+    private static String getTransactionKey(Object event, int transactionIdArg)
+    {
+        return CoreSubsystem.DataPointBuilder.getArg(event, 2) + "|" + CoreSubsystem.DataPointBuilder.getArg(event, 3) + "|" +
+            CoreSubsystem.DataPointBuilder.getArg(event, ARG_TRANSACTION_CATEGORY) + "|" + CoreSubsystem.DataPointBuilder.getArg(event, transactionIdArg);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putAll(Map<String, Object> properties, Object more)
+    {
+        if (more instanceof Map)
+        {
+            properties.putAll((Map<String, Object>) more);
+        }
+    }
+
+    // The entity that an update applies to, or null if the event isn't one we coalesce
+    private static String getKey(Object event)
+    {
+        if (!(event instanceof Map))
+        {
+            return null;
+        }
+
+        Object call = ((Map<?, ?>) event).get("method");
+        if (CALL_UPDATE_USER_STATE.equals(call) || CALL_UPDATE_DEVICE_STATE.equals(call))
+        {
+            return call + "|" + CoreSubsystem.DataPointBuilder.getArg(event, 2) + "|" + CoreSubsystem.DataPointBuilder.getArg(event, 3);
+        }
+        else if (CALL_UPDATE_COLLECTION.equals(call))
+        {
+            return call + "|" + CoreSubsystem.DataPointBuilder.getArg(event, 2) + "|" + CoreSubsystem.DataPointBuilder.getArg(event, 3) + "|" +
+                CoreSubsystem.DataPointBuilder.getArg(event, ARG_COLLECTION_NAME);
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> buildMerged(Map<String, Object> lastEvent, Merge merge)
+    {
+        // Start from the last update, which has the latest timestamps (and, for collections, the final balance)
+        List<Object> args = new ArrayList<Object>((List<Object>) lastEvent.get("args"));
+        if (CALL_UPDATE_COLLECTION.equals(lastEvent.get("method")))
+        {
+            if (args.size() > ARG_COLLECTION_MODIFICATION)
+            {
+                args.set(ARG_COLLECTION_MODIFICATION, merge.modification);
+            }
+        }
+        else if (args.size() > ARG_STATE_PROPERTIES)
+        {
+            args.set(ARG_STATE_PROPERTIES, merge.properties);
+        }
+
+        Map<String, Object> merged = new HashMap<String, Object>(lastEvent);
+        merged.put("args", args);
+
+        return merged;
+    }
+}
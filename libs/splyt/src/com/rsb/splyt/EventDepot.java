@@ -1,28 +1,26 @@
 package com.rsb.splyt;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
-import android.os.Handler;
+import android.os.SystemClock;
 
-import com.rsb.gson.Gson;
-import com.rsb.gson.JsonObject;
-import com.rsb.gson.JsonParser;
-import com.rsb.gson.JsonPrimitive;
 
 /**
  * <p>This is an internal class used in the core library of Splyt to manage bins (groups) of events and send them to the data collector in order.
@@ -32,6 +30,8 @@ import com.rsb.gson.JsonPrimitive;
  * - It is capable of handling the case where network connection is lost by archiving off the bins to persistent storage
  * - The total number of events held in both memory and in storage are limited so as to cap resource usage
  * - In cases where the network connection is either lost or "spotty", the frequency of the attempts to send the events is throttled, again to minimize resource usage
+ * - Revenue-critical events (e.g., purchases) go through a separate priority lane, in which they are sent within moments and only dropped as a last resort
+ * - Archived bins of events are stored compressed, in a form that can be uploaded as-is
  * </p>
  *
  * @author Copyright 2015 Knetik, Inc.
@@ -47,8 +47,21 @@ class EventDepot
         //                or archived to "disk" and sent at some later point in time
         // ArchiveStart:  An index representing the start of the "circular buffer" of bins of events that have been archived to "disk"
         // ArchiveEnd:    An index representing the end of the "circular buffer" of bins of events that have been archived to "disk"
+        // PriorityBin:   A bin of high-priority events (e.g., purchases) waiting to be sent.  These are sent ahead of everything else.
+        //                Failed sends stay in this bin and are retried; they're never moved to the re-send bin
+        // PriorityArchiveStart/PriorityArchiveEnd:
+        //                The range of bins of high-priority events that have been archived to "disk".  Unlike the archive above, this is not
+        //                a circular buffer; high-priority events are never purged to make room
+        //
+        // The in-memory state is always the source of truth.  The state file on "disk" is a checkpoint of it, written when the depot is paused.
+        // As long as the process survives, the in-memory state is kept around and the checkpoint is never read back.
         static Map<String, Object> sState = null;
 
+        // The generation of the in-memory state is bumped every time the state is modified.
+        // The checkpoint generation is the generation of the in-memory state that was last written to "disk" (-1 if there is no valid checkpoint)
+        private static int sGeneration = 0;
+        private static int sCheckpointGeneration = -1;
+
         @SuppressWarnings("unchecked")
         private static <T> T getValue(String name)
         {
@@ -65,14 +78,44 @@ class EventDepot
         static List<Object> HoldingBin() { return getValue("HoldingBin"); }
 
         static Integer ArchiveStart() { return getValue("ArchiveStart"); }
-        static void setArchiveStart(int newValue) { sState.put("ArchiveStart", Integer.valueOf(newValue)); }
+        static void setArchiveStart(int newValue) { markDirty(); sState.put("ArchiveStart", Integer.valueOf(newValue)); }
         static Integer ArchiveEnd() { return getValue("ArchiveEnd"); }
-        static void setArchiveEnd(int newValue) { sState.put("ArchiveEnd", Integer.valueOf(newValue)); }
+        static void setArchiveEnd(int newValue) { markDirty(); sState.put("ArchiveEnd", Integer.valueOf(newValue)); }
 
         static URL ResendBinURL() { return getValue("ResendBinURL"); }
-        static void setResendBinURL(URL newValue) { sState.put("ResendBinURL", newValue); }
+        static void setResendBinURL(URL newValue) { markDirty(); sState.put("ResendBinURL", newValue); }
         static URL HoldingBinURL() { return getValue("HoldingBinURL"); }
-        static void setHoldingBinURL(URL newValue) { sState.put("HoldingBinURL", newValue); }
+        static void setHoldingBinURL(URL newValue) { markDirty(); sState.put("HoldingBinURL", newValue); }
+
+        static List<Object> PriorityBin() { return getValue("PriorityBin"); }
+        static URL PriorityBinURL() { return getValue("PriorityBinURL"); }
+        static void setPriorityBinURL(URL newValue) { markDirty(); sState.put("PriorityBinURL", newValue); }
+        static Integer PriorityArchiveStart() { return getValue("PriorityArchiveStart"); }
+        static void setPriorityArchiveStart(int newValue) { markDirty(); sState.put("PriorityArchiveStart", Integer.valueOf(newValue)); }
+        static Integer PriorityArchiveEnd() { return getValue("PriorityArchiveEnd"); }
+        static void setPriorityArchiveEnd(int newValue) { markDirty(); sState.put("PriorityArchiveEnd", Integer.valueOf(newValue)); }
+
+        // Every event stored in the depot is numbered in sequence within a stream.  The stream is started afresh whenever the state is,
+        // so a stream id and sequence number identify an event for as long as it may be sent
+        static String StreamId() { return getValue("StreamId"); }
+        static Long NextSequence() { return getValue("NextSequence"); }
+        static void setNextSequence(long newValue) { markDirty(); sState.put("NextSequence", Long.valueOf(newValue)); }
+
+        // Must be called whenever the in-memory state is modified
+        static void markDirty()
+        {
+            if ((sGeneration == sCheckpointGeneration) && (null != sStore) && (Splyt.Core.Durability.MEMORY == sDurability))
+            {
+                // The checkpoint is about to become stale.  Remove it so that it can't be restored should the process be killed
+                // (e.g., otherwise we could end up re-sending events that have already been sent)
+                // Note that with the other durability levels, the stale checkpoint is kept until the next commit.  Should the process be killed
+                // in between, we favor re-sending the events sent since the last commit over losing the ones that were stored since
+                sStore.delete(STATE_FILENAME);
+                sCheckpointGeneration = -1;
+            }
+
+            ++sGeneration;
+        }
 
         private static void reset()
         {
@@ -83,87 +126,138 @@ class EventDepot
             sState.put("HoldingBinURL", sUrl);
             sState.put("ArchiveStart", Integer.valueOf(0));
             sState.put("ArchiveEnd", Integer.valueOf(0));
+            resetPriorityLane();
+            resetStream();
+        }
+
+        private static void resetStream()
+        {
+            sState.put("StreamId", UUID.randomUUID().toString());
+            sState.put("NextSequence", Long.valueOf(0));
+        }
+
+        private static void resetPriorityLane()
+        {
+            sState.put("PriorityBin", new ArrayList<Object>());
+            sState.put("PriorityBinURL", sUrl);
+            sState.put("PriorityArchiveStart", Integer.valueOf(0));
+            sState.put("PriorityArchiveEnd", Integer.valueOf(0));
         }
 
         @SuppressWarnings("unchecked")
         static void restore()
         {
-            if (null != sContext)
+            if ((null == sStore) && (null != sContext))
+            {
+                openStore();
+            }
+
+            if (null != sState)
+            {
+                // The process survived since we last checkpointed, so the in-memory state is still valid and there's nothing to read
+                return;
+            }
+
+            if (null != sStore)
             {
+                StrictModeAudit.checkNotMainThread("Event depot state read");
+
                 try
                 {
                     // Pull in the state data if there is any
-                    FileInputStream fis = sContext.openFileInput(STATE_FILENAME);
-                    ObjectInputStream inputStream = new ObjectInputStream(fis);
+                    InputStream in = sStore.read(STATE_FILENAME);
+                    ObjectInputStream inputStream = new ObjectInputStream(in);
                     sState = (Map<String, Object>) inputStream.readObject();
 
+                    in.close();
+
+                    // The file is now a valid checkpoint of what's in memory
+                    sGeneration = 0;
+                    sCheckpointGeneration = sGeneration;
+
                     // insure backward compatibility by setting valid values for URL
                     if(null == State.HoldingBinURL())
                         State.setHoldingBinURL(sUrl);
                     if(null == State.ResendBinURL())
                         State.setResendBinURL(sUrl);
-
-                    fis.close();
+                    if(null == State.PriorityBin())
+                        resetPriorityLane();
+                    if(null == State.StreamId())
+                        resetStream();
                 }
                 catch (Exception ex)
                 {
                     // Some error occurred reading the state data file.  It may be that the file simply doesn't exist.
                     // In any case, we can handle this situation, so carry on
+                    sState = null;
                 }
-
-                // Delete the state file since it should now be in memory
-                sContext.deleteFile(STATE_FILENAME);
             }
 
             if (null == sState)
             {
                 // No state data available, so create some
                 reset();
+
+                sGeneration = 0;
+                sCheckpointGeneration = -1;
             }
 
             // If there is supposed to be no data archived to disk, make sure there is none (i.e., clean up).
             // We do this in case the state somehow got out of sync with what had been written to internal storage
             // If this happens, then all of the events in these archived files are lost, but it would be sent out of order now anyhow and just
-            if ((null != sContext) && (ArchiveEnd().equals(ArchiveStart())))
+            if ((null != sStore) && (ArchiveEnd().equals(ArchiveStart())))
             {
-                File listing = sContext.getFilesDir();
-                String[] staleArchives = listing.list(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File dir, String filename)
-                    {
-                        return filename.startsWith(BIN_ARCHIVE_FILE_PREFIX);
-                    }
-                });
+                deleteArchives(BIN_ARCHIVE_FILE_PREFIX);
+            }
+            if ((null != sStore) && (PriorityArchiveEnd().equals(PriorityArchiveStart())))
+            {
+                deleteArchives(PRIORITY_ARCHIVE_FILE_PREFIX);
+            }
+
+            // Archives may have been written or removed since the state was checkpointed, so count their size afresh
+            sArchiveBytes = (null != sStore) ? getArchiveBytes() : 0;
+        }
 
-                if (null != staleArchives)
+        private static void deleteArchives(String prefix)
+        {
+            // Delete any archives found
+            sStore.beginBatch();
+            try
+            {
+                for (String archive : sStore.list(prefix))
                 {
-                    // Delete any archive files found
-                    for (String archive : staleArchives)
-                    {
-                        sContext.deleteFile(archive);
-                    }
+                    sStore.delete(archive);
                 }
             }
+            finally
+            {
+                sStore.endBatch();
+            }
         }
 
         static void save()
         {
-            if ((null != sContext) && (null != sState))
+            if ((null != sStore) && (null != sState) && (sGeneration != sCheckpointGeneration))
             {
-                // We have some state data, so save it off
+                // The in-memory state has changed since the last checkpoint, so save it off
+                StrictModeAudit.checkNotMainThread("Event depot state write");
+
                 try
                 {
-                    FileOutputStream fos = sContext.openFileOutput(STATE_FILENAME, Context.MODE_PRIVATE);
-                    ObjectOutputStream outputStream = new ObjectOutputStream(fos);
+                    // The store replaces the checkpoint as a whole, so it's never left half-written
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
                     outputStream.writeObject(sState);
-                    outputStream.flush();
                     outputStream.close();
+
+                    // With durability beyond MEMORY, make sure the data has actually reached the storage device before we rely on it
+                    sStore.write(STATE_FILENAME, bytes.toByteArray(), Splyt.Core.Durability.MEMORY != sDurability);
+                    sCheckpointGeneration = sGeneration;
                 }
                 catch (IOException ioex) { }
             }
 
-            // State data is saved, so clear the in-memory data
-            reset();
+            // Note that we keep the in-memory state around.  If the process survives, we'll simply pick up where we left off
         }
     }
 
@@ -177,18 +271,281 @@ class EventDepot
     private static final String BIN_ARCHIVE_FILE_PREFIX = "splyt_binArchive";
     private static final int BIN_ARCHIVES_SIZE = 201; // 200 archived bins -> a maximum of 10k events
 
+    // High-priority events are archived separately so that they are never purged
+    private static final String PRIORITY_ARCHIVE_FILE_PREFIX = "splyt_priorityArchive";
+
+    // The key under which each event carries its sequence number, and the request headers that identify a batch of events to the data collector.
+    // A batch is identified by the stream its events belong to and a digest of its events, so a batch that is sent again (e.g., after a timeout)
+    // carries the same id, and the data collector can drop the duplicate rather than count its events twice
+    private static final String EVENT_SEQUENCE_KEY = "seq";
+    private static final String HEADER_EVENT_STREAM = "ssf-event-stream";
+    private static final String HEADER_BATCH_ID = "ssf-batch-id";
+
+    // Since a batch can be safely sent more than once, a batch that times out is retried right away, this many times, before we back off
+    private static final int TIMEOUT_RETRIES = 1;
+
+    // When draining the backlog in the background, we combine bins into larger requests.  This limits the size of each request
+    private static final int MAX_EVENTS_PER_DRAIN_REQUEST = 20 * MAX_EVENTS_PER_BIN;
+
     // Used to calculate the period at which we process the bins
     private static final int PROCESSBIN_MIN_PERIOD = 5000;    // In ms
     private static final int PROCESSBIN_MAX_PERIOD = 30000;   // In ms
     private static int sCurProcessBinPeriod = PROCESSBIN_MIN_PERIOD;
 
+    // High-priority events are sent shortly after they're stored, so that those stored close together share a request
+    // Should a send fail, the next attempt backs off, from the min delay up to the max, rather than being made for every new event
+    private static final int PRIORITY_SEND_DELAY = 250;             // In ms
+    private static final int PRIORITY_RETRY_MIN_DELAY = 5000;       // In ms
+    private static final int PRIORITY_RETRY_MAX_DELAY = 60000;      // In ms
+    private static int sPriorityRetryDelay = 0;
+
     private static Context sContext;
+    private static EventStore sStore;     // Opened on the depot's thread, the first time the state is restored
     private static URL sUrl;
     private static int sReqTimeout;
     private static boolean sPaused;
     private static boolean sInitialized;
+    private static boolean sHeadless;      // true if the depot was started to upload the backlog while the app is in the background
     private static BlockingQueue<Runnable> sJobQueue;
-    private static Handler sHandler;
+
+    // The time (in terms of SystemClock.elapsedRealtime()) at which the bins are next due to be processed, or -1 if the periodic processing is stopped
+    // Note that this is only ever touched by the job consumer thread, which acts as the depot's timer
+    private static long sNextProcessTime = -1;
+
+    // The time (in the same terms) at which the high-priority events are next due to be sent, or -1 if no send is scheduled
+    private static long sNextPrioritySendTime = -1;
+
+    /**
+     * The lanes through which events flow through the depot.
+     */
+    enum Lane
+    {
+        // Revenue-critical events (e.g., purchases and sessions).  These are sent shortly after they're stored, ahead of any other events,
+        // and are never dropped
+        Priority,
+
+        // Everything else.  These are sent in batches, and the oldest of them are dropped when the depot is full
+        BestEffort
+    }
+
+    /**
+     * Counts of the events that have passed through a lane.
+     * Note that these are only updated by the depot's thread, but may be read from any thread.
+     */
+    static class LaneCounters
+    {
+        volatile long stored;
+        volatile long sent;
+        volatile long dropped;          // Events dropped to keep the depot within its limits
+        volatile long droppedBytes;     // The amount of storage that was freed by dropping them
+        volatile long expired;          // Events discarded, rather than sent, because they outlived their time-to-live
+        volatile long coalesced;        // Events merged into later ones (e.g., a transaction's begin into its end) before they were sent
+        volatile long rejected;         // Events the data collector rejected as invalid, which are never sent again
+
+        @Override
+        public String toString()
+        {
+            return "stored=" + stored + ", sent=" + sent + ", dropped=" + dropped + " (" + droppedBytes + " bytes), expired=" + expired + ", coalesced=" + coalesced + ", rejected=" + rejected;
+        }
+    }
+
+    // The limit, in bytes, on the storage used by the archives, and how we make room when it's exceeded
+    private static volatile long sArchiveQuota = SplytConstants.DEFAULT_ARCHIVE_QUOTA;
+    private static volatile Splyt.Core.EvictionPolicy sEvictionPolicy = Splyt.Core.EvictionPolicy.LOWEST_PRIORITY_FIRST;
+
+    // When the device is running low on storage, we cut the quota down to a fraction of its configured size
+    private static final long LOW_STORAGE_THRESHOLD = 50L * 1024 * 1024;   // In bytes
+    private static final int LOW_STORAGE_QUOTA_DIVISOR = 4;
+
+    // How hard we try to keep events that have been stored from being lost should the process be killed, and how often we commit the state for it
+    private static volatile Splyt.Core.Durability sDurability = Splyt.Core.Durability.MEMORY;
+    private static volatile int sGroupCommitInterval = SplytConstants.DEFAULT_GROUP_COMMIT_INTERVAL;
+    private static volatile int sGroupCommitEventCount = SplytConstants.DEFAULT_GROUP_COMMIT_EVENT_COUNT;
+
+    // An estimate of the heap used by each event held in memory, in bytes.  This is a moving average, updated whenever a bin of events
+    // is encoded to be sent.  Only accessed on the depot thread
+    private static long sEventHeapEstimate = 1024;
+
+    // Group commit tracking.  Only accessed on the depot thread
+    private static int sUncommittedEvents = 0;
+    private static long sNextCommitTime = -1;      // In terms of SystemClock.elapsedRealtime().  -1 if there is nothing to commit
+
+    /**
+     * Set the durability level of the depot.
+     *
+     * @param durability        The durability level
+     * @param commitInterval    The maximum time, in milliseconds, that stored events go uncommitted (group commit)
+     * @param commitEventCount  The maximum number of stored events that go uncommitted (group commit)
+     */
+    static void setDurability(Splyt.Core.Durability durability, int commitInterval, int commitEventCount)
+    {
+        sDurability = durability;
+        sGroupCommitInterval = commitInterval;
+        sGroupCommitEventCount = commitEventCount;
+    }
+
+    // How long events are worth sending after they were captured, in ms (0 if forever).  Events in the categories mapped here use the given
+    // time-to-live, all others use the default
+    private static volatile long sDefaultTimeToLive = 0;
+    private static volatile Map<String, Long> sCategoryTimeToLive = new HashMap<String, Long>();
+
+    /**
+     * Set the time-to-live of events.
+     *
+     * @param defaultTimeToLive     The time-to-live, in ms, of events in categories not found below (0 if they never expire)
+     * @param categoryTimeToLive    The time-to-live, in ms, of events by category (0 if they never expire)
+     */
+    static void setTimeToLive(long defaultTimeToLive, Map<String, Long> categoryTimeToLive)
+    {
+        sDefaultTimeToLive = defaultTimeToLive;
+        sCategoryTimeToLive = new HashMap<String, Long>(categoryTimeToLive);
+    }
+
+    // The time an event expires, in ms since the epoch (Long.MAX_VALUE if it never does)
+    private static long getExpiryTime(Object event)
+    {
+        String category = CoreSubsystem.DataPointBuilder.getCategory(event);
+        Long categoryTimeToLive = (null != category) ? sCategoryTimeToLive.get(category) : null;
+        long timeToLive = (null != categoryTimeToLive) ? categoryTimeToLive.longValue() : sDefaultTimeToLive;
+
+        double timestamp = CoreSubsystem.DataPointBuilder.getTimestamp(event);
+        if ((timeToLive <= 0) || Double.isNaN(timestamp))
+        {
+            return Long.MAX_VALUE;
+        }
+
+        return (long) (timestamp * 1000) + timeToLive;
+    }
+
+    // Number an event that is entering the depot in sequence, so that the data collector can tell if it receives the event more than once
+    private static void assignSequence(Map<String, Object> event)
+    {
+        long sequence = State.NextSequence();
+        event.put(EVENT_SEQUENCE_KEY, Long.valueOf(sequence));
+        State.setNextSequence(sequence + 1);
+    }
+
+    // Move the aggregates of any rolled-up categories into the holding bin once their window closes (or right away if forced)
+    private static void flushAggregates(boolean force)
+    {
+        List<Map<String, Object>> aggregates = EventAggregator.flush(force);
+        if (!aggregates.isEmpty())
+        {
+            for (Map<String, Object> aggregate : aggregates)
+            {
+                assignSequence(aggregate);
+            }
+            State.markDirty();
+            State.HoldingBin().addAll(aggregates);
+            getLaneCounters(Lane.BestEffort).stored += aggregates.size();
+        }
+    }
+
+    // Collapse short-lived transactions and coalesce bursts of state and collection updates in the holding bin, before it's sent or archived
+    private static void coalesceHoldingBin(LaneCounters counters)
+    {
+        int coalesced = EventCoalescer.collapseTransactions(State.HoldingBin()) + EventCoalescer.coalesce(State.HoldingBin());
+        if (coalesced > 0)
+        {
+            State.markDirty();
+            counters.coalesced += coalesced;
+            Util.logDebug("Coalesced [{}] updates", Integer.valueOf(coalesced));
+        }
+    }
+
+    // Discard any expired events from a bin held in memory
+    private static void discardExpired(List<Object> bin, LaneCounters counters)
+    {
+        if ((0 == sDefaultTimeToLive) && sCategoryTimeToLive.isEmpty())
+        {
+            // Nothing ever expires
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Iterator<Object> it = bin.iterator(); it.hasNext(); )
+        {
+            if (getExpiryTime(it.next()) <= now)
+            {
+                if (0 == expired++)
+                {
+                    State.markDirty();
+                }
+                it.remove();
+            }
+        }
+
+        if (expired > 0)
+        {
+            counters.expired += expired;
+            Util.logDebug("Discarded [{}] expired events", Integer.valueOf(expired));
+        }
+    }
+
+    // Whether requests are sent gzip-compressed (with a Content-Encoding header) to collectors that accept them
+    private static volatile boolean sCompressUploads = false;
+
+    static void setCompressUploads(boolean value)
+    {
+        sCompressUploads = value;
+    }
+
+    // The storage engine for the state and the archives.  This is only read when the store is opened
+    private static volatile Splyt.Core.StorageEngine sStorageEngine = Splyt.Core.StorageEngine.FILES;
+
+    /**
+     * Set the storage engine for the depot's state and archives.  This takes effect the next time the store is opened.
+     *
+     * @param engine    The storage engine
+     */
+    static void setStorageEngine(Splyt.Core.StorageEngine engine)
+    {
+        sStorageEngine = engine;
+    }
+
+    /**
+     * Set the limits on the depot's persistent storage.
+     *
+     * @param quota     The maximum number of bytes the archived events may occupy
+     * @param policy    How events are evicted when the quota is exceeded
+     */
+    static void setStorageLimits(long quota, Splyt.Core.EvictionPolicy policy)
+    {
+        sArchiveQuota = quota;
+        sEvictionPolicy = policy;
+    }
+
+    // How often the SDK's own metrics are reported to SPLYT, in ms (0 if they aren't), and when they're next due
+    // The latter is in terms of SystemClock.elapsedRealtime() and is only accessed on the depot thread
+    private static volatile long sMetricsReportInterval = 0;
+    private static long sNextMetricsReportTime = -1;
+
+    // The number of bytes the archives occupy, kept up to date as they're written and removed so that enforcing the quota doesn't
+    // mean going to disk for the size of each one.  It's counted afresh whenever the state is restored.  Only accessed on the depot thread
+    private static long sArchiveBytes = 0;
+
+    /**
+     * @param interval  How often to report the SDK's own metrics to SPLYT, in ms, or 0 not to report them
+     */
+    static void setMetricsReportInterval(long interval)
+    {
+        sMetricsReportInterval = interval;
+    }
+
+    private static final Map<Lane, LaneCounters> sLaneCounters = new EnumMap<Lane, LaneCounters>(Lane.class);
+    static
+    {
+        for (Lane lane : Lane.values())
+        {
+            sLaneCounters.put(lane, new LaneCounters());
+        }
+    }
+
+    static LaneCounters getLaneCounters(Lane lane)
+    {
+        return sLaneCounters.get(lane);
+    }
 
     /**
      * Initialize the event depot.
@@ -197,9 +554,9 @@ class EventDepot
      * @param queryParams   Query parameters to send along with the request
      * @param reqTimeout    A timeout, in milliseconds, representing the maxmimum amount of time one should wait for Splyt network requests to complete.
      */
-    static void init(Context context, String host, String queryParams, int reqTimeout)
+    static synchronized void init(Context context, String host, String queryParams, int reqTimeout)
     {
-        if (!sInitialized)
+        if (!sInitialized || sHeadless)
         {
             // Save off the parameters needed to submit requests to send the events to the data collector
             sContext = context;
@@ -214,18 +571,72 @@ class EventDepot
                 Util.logError("MalformedURLException.  Check your host and customerId values");
             }
 
-            // Create a new handler that we'll use to schedule the bin processing
-            sHandler = new Handler();
+            if (sHeadless)
+            {
+                // The depot was already started in this process to upload the backlog in the background.  Now that the app is up, just resume it
+                sHeadless = false;
+                sJobQueue.offer(new ResumeDepotJob());
+            }
+            else
+            {
+                startJobConsumer(new DepotInitJob());
+            }
+
+            sInitialized = true;
+        }
+    }
+
+    // Create the job queue, queue up the first job, and start up the job consumer in another thread
+    private static void startJobConsumer(Runnable firstJob)
+    {
+        sJobQueue = new LinkedBlockingQueue<Runnable>();
+        sJobQueue.offer(firstJob);
+        new Thread(new JobConsumer(sJobQueue), EventDepot.class.getSimpleName()).start();
+    }
+
+    interface DrainListener
+    {
+        /**
+         * Called (from the depot's thread) once the upload of the backlog has completed.  Not called if the upload was cancelled.
+         *
+         * @param backlogCleared true if all of the events were sent, false if some remain
+         */
+        void onDrainComplete(boolean backlogCleared);
+    }
 
-            // Create the job queue and start up the job consumer in another thread
-            sJobQueue = new LinkedBlockingQueue<Runnable>();
-            new Thread(new JobConsumer(sJobQueue), EventDepot.class.getSimpleName()).start();
+    /**
+     * Upload the entire backlog of events, in as few requests as possible.
+     * This is called from the background upload services, possibly in a process in which Splyt has not been initialized,
+     * in which case the depot is started up (paused) just for this purpose.
+     *
+     * @param context       Application context
+     * @param url           The URL of the data collector, in case the depot has yet to be initialized
+     * @param reqTimeout    The timeout, in milliseconds, in case the depot has yet to be initialized
+     * @param listener      Called once the upload has completed
+     *
+     * @return The upload, so that it can be cancelled
+     */
+    static synchronized DrainJob drain(Context context, URL url, int reqTimeout, DrainListener listener)
+    {
+        DrainJob job = new DrainJob(listener);
+        if (!sInitialized)
+        {
+            sContext = context;
+            sUrl = url;
+            sReqTimeout = reqTimeout;
+            sPaused = true;
+            sHeadless = true;
 
-            // Queue up the DepotInitJob
-            sJobQueue.offer(new DepotInitJob());
+            startJobConsumer(job);
 
             sInitialized = true;
         }
+        else
+        {
+            sJobQueue.offer(job);
+        }
+
+        return job;
     }
 
     /**
@@ -236,13 +647,51 @@ class EventDepot
      * NOTE: This method can be called from multiple threads (i.e., it's thread-safe)
      */
     static SplytError store(Map<String, Object> event)
+    {
+        return store(event, Lane.BestEffort);
+    }
+
+    /**
+     * Store an event in the depot.
+     *
+     * @param event The event we wish to store
+     * @param lane  The lane the event should be sent through
+     *
+     * NOTE: This method can be called from multiple threads (i.e., it's thread-safe)
+     */
+    static SplytError store(Map<String, Object> event, Lane lane)
+    {
+        SplytError ret = SplytError.Success;
+
+        if (null != sJobQueue)
+        {
+            // Add the job to the queue
+            sJobQueue.offer(new StoreEventJob(event, lane));
+        }
+        else
+        {
+            ret = SplytError.ErrorNotInitialized;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Store a batch of events in the depot as a single unit.  As long as the batch fits in a bin, its best-effort events are sent together.
+     *
+     * @param events    The events we wish to store, in order
+     * @param lanes     The lane each event should be sent through
+     *
+     * NOTE: This method can be called from multiple threads (i.e., it's thread-safe)
+     */
+    static SplytError storeBatch(List<Map<String, Object>> events, List<Lane> lanes)
     {
         SplytError ret = SplytError.Success;
 
         if (null != sJobQueue)
         {
             // Add the job to the queue
-            sJobQueue.offer(new StoreEventJob(event));
+            sJobQueue.offer(new StoreBatchJob(events, lanes));
         }
         else
         {
@@ -270,217 +719,1192 @@ class EventDepot
         }
     }
 
+    /**
+     * Spill the events held in memory to disk, e.g., because the system is running low on memory.
+     *
+     * NOTE: This method can be called from multiple threads (i.e., it's thread-safe)
+     */
+    static void trimMemory()
+    {
+        if (null != sJobQueue)
+        {
+            // Add the job to the queue
+            sJobQueue.offer(new TrimMemoryJob());
+        }
+    }
+
     //////////////////////////////
     // Private helper functions //
     //////////////////////////////
 
-    private static void logErrorResponse(String response)
+    // Send a bin of events held in memory, updating the lane's counters
+    // Returns true if all of the events have been dealt with (i.e., accepted or rejected as invalid).  Otherwise, the bin is left holding
+    // the events that should be sent again
+    private static boolean sendBin(URL url, List<Object> data, LaneCounters counters)
     {
-        if (null != response)
+        String eventsJson;
+        SplytTrace.begin(SplytTrace.ENCODE_JSON);
+        try
         {
-            try
-            {
-                JsonParser parser = new JsonParser();
-                JsonObject obj = parser.parse(response).getAsJsonObject();
-                JsonPrimitive error = obj.getAsJsonPrimitive("error");
-                if (null != error)
-                {
-                    if (SplytError.Success.getValue() != error.getAsInt())
-                    {
-                        Util.logError("Top-level error [" + error.getAsString() + "] returned from data collector");
-                    }
-                    else
-                    {
-                        // Got a successful top-level response, now check the datacollector_batch context
-                        JsonObject data = obj.getAsJsonObject("data");
-                        if (null != data)
-                        {
-                            JsonObject context = data.getAsJsonObject("datacollector_batch");
-                            if (null != context)
-                            {
-                                JsonPrimitive contextError = context.getAsJsonPrimitive("error");
-                                if (SplytError.Success.getValue() != contextError.getAsInt())
-                                {
-                                    Util.logError("datacollector_batch error [" + error.getAsString() + "] returned from data collector");
-                                }
-                            }
-                            else
-                            {
-                                Util.logError("Unexpected response returned from data collector, context missing");
-                            }
-                        }
-                        else
-                        {
-                            Util.logError("Unexpected response returned from data collector, data missing");
-                        }
-                    }
-                }
-                else
-                {
-                    Util.logError("Unexpected response returned from data collector, error missing");
-                }
-            }
-            catch (Exception e)
-            {
-                Util.logError("Exception parsing server response: " + response);
-            }
+            eventsJson = Util.getGson().toJson(data);
+        }
+        finally
+        {
+            SplytTrace.end();
         }
-    }
 
-    private static boolean sendBin(URL url, List<Object> data)
-    {
-        // Build up the data object
-        List<Object> allArgs = new ArrayList<Object>(2);
-        allArgs.add(Double.valueOf(Util.MicroTimestamp.INSTANCE.get()));
-        allArgs.add(data);
+        updateEventHeapEstimate(eventsJson.length(), data.size());
 
-        // Create a new request to send the data synchronously
-        HttpRequest.RequestResult result = new HttpRequest(url, sReqTimeout, new Gson().toJson(allArgs)).executeSync();
-        if (SplytError.Success == result.error)
+        BatchResponse response = sendEvents(url, eventsJson, null);
+        if (null == response)
         {
-            // We got "some" response from the server
-            // Note that we won't attempt to re-send this bin of events regardless of the response
+            return false;
+        }
 
-            // If we were throttling the sends because of a connectivity issue, let's throttle back up now that we're getting responses
-            if (PROCESSBIN_MIN_PERIOD != sCurProcessBinPeriod)
+        // Note how long the events waited to be acknowledged.  We only know this for the events in memory, as archived events aren't decoded to be sent
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < data.size(); ++i)
+        {
+            double timestamp = CoreSubsystem.DataPointBuilder.getTimestamp(data.get(i));
+            if (!Double.isNaN(timestamp) && (SplytError.Success.getValue() == response.getEventError(i)))
             {
-                int decrementBy = Math.max((sCurProcessBinPeriod - PROCESSBIN_MIN_PERIOD) / 5, 500);
-                sCurProcessBinPeriod = Math.max(sCurProcessBinPeriod - decrementBy, PROCESSBIN_MIN_PERIOD);
+                SdkMetrics.recordLatency(SdkMetrics.LATENCY_EVENT, now - (long) (timestamp * 1000));
             }
-
-            // Now, let's check for errors in the data returned from the server so that we can at least log them
-            logErrorResponse(result.response);
         }
-        else
+
+        settleBatch(response, data.size(), counters);
+        if (response.countResend(data.size()) > 0)
         {
-            // Some IO or timeout error occurred, so we might have some connectivity issue
-            // Let's throttle the timer in order to attempt sending bins of events less often in case the user is not connected
-            if (PROCESSBIN_MAX_PERIOD != sCurProcessBinPeriod)
+            // Hold on to just the events that failed
+            List<Object> resend = response.selectResend(data);
+            State.markDirty();
+            data.clear();
+            data.addAll(resend);
+            return false;
+        }
+
+        return true;
+    }
+
+    // Count the events of a batch the data collector responded to as sent or rejected, according to its response
+    private static void settleBatch(BatchResponse response, int eventCount, LaneCounters counters)
+    {
+        int resend = response.countResend(eventCount);
+        int rejected = response.countRejected(eventCount);
+
+        counters.sent += eventCount - resend - rejected;
+        counters.rejected += rejected;
+        if ((resend > 0) || (rejected > 0))
+        {
+            Util.logDebug("Data collector rejected [{}] invalid events, [{}] events to send again", Integer.valueOf(rejected), Integer.valueOf(resend));
+        }
+    }
+
+    // Send an archived bin of events, updating the lane's counters.  When compressed uploads are enabled, the archive is sent as-is
+    // Returns true if the archive has been dealt with (i.e., it was sent or it turned out to be unreadable) and may be removed
+    // If only some of the events need to be sent again, the archive is rewritten in place with just those events
+    private static boolean sendArchive(String archiveFileName, EventArchive archive, LaneCounters counters)
+    {
+        // Skip any events that have expired.  We can tell which ones have without decoding the archive
+        long now = System.currentTimeMillis();
+        int expired = archive.countExpired(now);
+
+        boolean sent = true;
+        try
+        {
+            if (expired < archive.eventCount)
+            {
+                BatchResponse response = sCompressUploads ? sendEvents(archive.url, null, archive.getCompressedEventsJson(now)) : sendEvents(archive.url, archive.getEventsJson(now), null);
+                if (null == response)
+                {
+                    return false;
+                }
+
+                int eventCount = archive.eventCount - expired;
+                if (response.countResend(eventCount) > 0)
+                {
+                    // Should the rewrite fail, the whole archive is sent again, which the data collector recognizes as a batch it has
+                    // already seen.  So we only count the events once the rewrite has succeeded
+                    if (!writeArchive(archiveFileName, archive.url, response.selectResend(archive.getEvents(now))))
+                    {
+                        return false;
+                    }
+                    sent = false;
+                }
+                settleBatch(response, eventCount, counters);
+            }
+        }
+        catch (IOException ioex)
+        {
+            // The archive is corrupted, so there's no point in trying to send it again
+            Util.logError("EventDepot: Failed to decode archived events.  Skipping...");
+            counters.dropped += archive.eventCount;
+            return true;
+        }
+
+        // Note that any expired events were left out of a rewritten archive too
+        counters.expired += expired;
+        if (expired > 0)
+        {
+            Util.logDebug("Discarded [{}] expired events", Integer.valueOf(expired));
+        }
+
+        return sent;
+    }
+
+    // The id of a batch of events, given its encoded events
+    private static String getBatchId(byte[] events)
+    {
+        byte[] streamId = State.StreamId().getBytes();
+        byte[] name = new byte[streamId.length + events.length];
+        System.arraycopy(streamId, 0, name, 0, streamId.length);
+        System.arraycopy(events, 0, name, streamId.length, events.length);
+
+        return UUID.nameUUIDFromBytes(name).toString();
+    }
+
+    // Send a JSON array of events, given either as text or gzip-compressed
+    // Returns the data collector's response, or null if we didn't get one (in which case the whole batch should be sent again)
+    private static BatchResponse sendEvents(URL url, String eventsJson, byte[] compressedEventsJson)
+    {
+        // Build up the data object, i.e. [timestamp, events]
+        String timestamp = Util.getGson().toJson(Double.valueOf(Util.MicroTimestamp.INSTANCE.get()));
+        HttpRequest request;
+        String batchId;
+        try
+        {
+            if ((null == compressedEventsJson) && sCompressUploads)
+            {
+                compressedEventsJson = EventArchive.compress(eventsJson);
+            }
+
+            // Note that the id is derived from the events alone, not the timestamp, which changes every time the batch is sent
+            batchId = getBatchId((null != compressedEventsJson) ? compressedEventsJson : eventsJson.getBytes("UTF-8"));
+
+            if (null != compressedEventsJson)
+            {
+                // A gzip stream may consist of several members (see RFC 1952), so we can wrap the compressed events without decompressing them
+                ByteArrayOutputStream body = new ByteArrayOutputStream(compressedEventsJson.length + 64);
+                body.write(EventArchive.compress("[" + timestamp + ","));
+                body.write(compressedEventsJson);
+                body.write(EventArchive.compress("]"));
+                request = new HttpRequest(url, sReqTimeout, body.toByteArray(), "gzip");
+            }
+            else
+            {
+                request = new HttpRequest(url, sReqTimeout, "[" + timestamp + "," + eventsJson + "]");
+            }
+        }
+        catch (IOException ioex)
+        {
+            Util.logError("EventDepot: Failed to compress events");
+            return null;
+        }
+
+        request.setHeader(HEADER_EVENT_STREAM, State.StreamId()).setHeader(HEADER_BATCH_ID, batchId);
+
+        // Send the data synchronously
+        HttpRequest.RequestResult result;
+        for (int attempt = 0; ; ++attempt)
+        {
+            result = request.executeSync();
+            SdkMetrics.recordLatency(SdkMetrics.LATENCY_SEND_BIN, result.elapsed);
+            SdkMetrics.increment(SdkMetrics.COUNTER_BYTES_UPLOADED, result.bytesSent);
+            SdkMetrics.increment((SplytError.Success == result.error) ? SdkMetrics.COUNTER_REQUESTS_SENT : SdkMetrics.COUNTER_REQUESTS_FAILED, 1);
+
+            // A timeout doesn't tell us whether the data collector got the batch, but as it drops duplicates, we needn't wait to find out
+            if ((SplytError.ErrorRequestTimedout != result.error) || (attempt >= TIMEOUT_RETRIES))
+            {
+                break;
+            }
+            Util.logDebug("Batch [{}] timed out, sending it again", batchId);
+        }
+        if (SplytError.Success == result.error)
+        {
+            // We got "some" response from the server
+
+            // If we were throttling the sends because of a connectivity issue, let's throttle back up now that we're getting responses
+            if (PROCESSBIN_MIN_PERIOD != sCurProcessBinPeriod)
+            {
+                int decrementBy = Math.max((sCurProcessBinPeriod - PROCESSBIN_MIN_PERIOD) / 5, 500);
+                sCurProcessBinPeriod = Math.max(sCurProcessBinPeriod - decrementBy, PROCESSBIN_MIN_PERIOD);
+            }
+
+            // Now, let's find out which of the events the data collector accepted
+            return BatchResponse.parse(result.response);
+        }
+        else
+        {
+            // Some IO or timeout error occurred, so we might have some connectivity issue
+            // Let's throttle the timer in order to attempt sending bins of events less often in case the user is not connected
+            if (PROCESSBIN_MAX_PERIOD != sCurProcessBinPeriod)
             {
                 sCurProcessBinPeriod = Math.min(sCurProcessBinPeriod + 500, PROCESSBIN_MAX_PERIOD);
             }
         }
 
-        return (SplytError.Success == result.error);
+        return null;
+    }
+
+    private static void processBins(boolean flushHoldingBin)
+    {
+        SplytTrace.begin(SplytTrace.PROCESS_BINS);
+        try
+        {
+            // High-priority events always go first
+            processPriorityLane(flushHoldingBin);
+
+            // Close the aggregation window if it's due.  If we're flushing, there's no telling when we'll be back, so close it regardless
+            flushAggregates(flushHoldingBin);
+
+            // Report the SDK's own metrics if it's time to
+            reportMetrics();
+
+            // Now, let's try and send a bin of events to the data collector
+            List<Object> rb = State.ResendBin();
+            List<Object> hb = State.HoldingBin();
+            if (Util.isLogEnabled())
+            {
+                Util.logDebug("Resend Bin Count [{}]", Integer.valueOf(rb.size()));
+                Util.logDebug("Holding Bin Count [{}]", Integer.valueOf(hb.size()));
+                Util.logDebug("Archive Infos [{}, {}]", State.ArchiveStart(), State.ArchiveEnd());
+                Util.logDebug("Lane Counters [Priority: {}] [BestEffort: {}]", getLaneCounters(Lane.Priority), getLaneCounters(Lane.BestEffort));
+            }
+            LaneCounters counters = getLaneCounters(Lane.BestEffort);
+            discardExpired(rb, counters);
+            discardExpired(hb, counters);
+            coalesceHoldingBin(counters);
+            if (rb.size() > 0)
+            {
+                // We have events in the re-send bin.  These are our first priority, so let's try and send them
+                if (sendBin(State.ResendBinURL(), rb, counters))
+                {
+                    // Successful send, clear the bin
+                    State.markDirty();
+                    rb.clear();
+                }
+            }
+            else if (!State.ArchiveEnd().equals(State.ArchiveStart()))
+            {
+                // Nothing in the re-send bin, but we have some data archived to disk.  These are our second priority as we must send events in timestamp order
+                String archiveFileName = BIN_ARCHIVE_FILE_PREFIX + State.ArchiveStart().toString();
+                EventArchive archive = readArchive(archiveFileName);
+                if ((null == archive) || sendArchive(archiveFileName, archive, counters))
+                {
+                    // Remove the archive file and update the start index
+                    // Note that if the send failed, the archive is left in place (as is) so we can try again next time
+                    removeOldestArchive();
+                }
+            }
+            else if (hb.size() > 0)
+            {
+                // Noting in the re-send bin and we have no data archived to disk, so let's attempt to send what's in the holding bin
+                State.markDirty();
+                if (!sendBin(State.HoldingBinURL(), hb, counters))
+                {
+                    // Failed to send (some of) the bin of events.  Dump them into the re-send bin so we can try again next time
+                    rb.addAll(hb);
+                    State.setResendBinURL(State.HoldingBinURL());
+                }
+
+                // Clear the holding bin
+                hb.clear();
+            }
+
+            // Handle bin overflow
+            archiveHoldingBin(flushHoldingBin);
+            enforceMemoryBudget();
+
+            updateGauges();
+        }
+        finally
+        {
+            SplytTrace.end();
+        }
+    }
+
+    // Update the SDK metrics that describe the state of the depot
+    private static void updateGauges()
+    {
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_JOB_QUEUE, sJobQueue.size());
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_HOLDING_BIN, State.HoldingBin().size());
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_RESEND_BIN, State.ResendBin().size());
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_PRIORITY_BIN, State.PriorityBin().size());
+
+        int archiveFiles = ((State.ArchiveEnd() - State.ArchiveStart() + BIN_ARCHIVES_SIZE) % BIN_ARCHIVES_SIZE) +
+            (State.PriorityArchiveEnd() - State.PriorityArchiveStart());
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_ARCHIVE_FILES, archiveFiles);
+        SdkMetrics.setGauge(SdkMetrics.GAUGE_ARCHIVE_BYTES, sArchiveBytes);
+    }
+
+    // Store an event that reports the SDK's metrics, if reporting is enabled and it's time to
+    private static void reportMetrics()
+    {
+        if (sMetricsReportInterval <= 0)
+        {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (sNextMetricsReportTime < 0)
+        {
+            // The first report covers a full interval
+            sNextMetricsReportTime = now + sMetricsReportInterval;
+        }
+        else if (now >= sNextMetricsReportTime)
+        {
+            sNextMetricsReportTime = now + sMetricsReportInterval;
+
+            Map<String, Object> event = new CoreSubsystem.DataPointBuilder("datacollector_endTransaction")
+                .setArg(SdkMetrics.CATEGORY)
+                .setArg(SplytConstants.TXN_SUCCESS)
+                .setArg(null)
+                .setArg(SdkMetrics.snapshot())
+                .build();
+            if (null != event)
+            {
+                getLaneCounters(Lane.BestEffort).stored++;
+                assignSequence(event);
+                State.HoldingBin().add(event);
+            }
+        }
+    }
+
+    // Rotate full chunks of events out of the holding bin to disk, or all of them if flushing
+    private static void archiveHoldingBin(boolean flushHoldingBin)
+    {
+        List<Object> hb = State.HoldingBin();
+        if ((hb.size() < MAX_EVENTS_PER_BIN) && (!flushHoldingBin || hb.isEmpty()))
+        {
+            return;
+        }
+
+        sStore.beginBatch();
+        try
+        {
+            archiveHoldingBinChunks(flushHoldingBin);
+        }
+        finally
+        {
+            sStore.endBatch();
+        }
+    }
+
+    private static void archiveHoldingBinChunks(boolean flushHoldingBin)
+    {
+        List<Object> hb = State.HoldingBin();
+        boolean archived = false;
+        while ( (hb.size() >= MAX_EVENTS_PER_BIN) || (flushHoldingBin && hb.size() > 0) )
+        {
+            // Our holding bin is full, so rotate out a chunk of events to disk
+            List<Object> dataToArchive = hb.subList(0, (hb.size() > MAX_EVENTS_PER_BIN) ? MAX_EVENTS_PER_BIN : hb.size());
+            String archiveFileName = BIN_ARCHIVE_FILE_PREFIX + State.ArchiveEnd().toString();
+
+            if (((State.ArchiveEnd() + 1) % BIN_ARCHIVES_SIZE) == State.ArchiveStart())
+            {
+                // We've reached the max archives we wish to store, so purge the oldest one.  Note that this must happen before the end
+                // index moves up to the start, as the archives would then look empty
+                // Note that only best-effort events are ever archived here, high-priority events have their own archive
+                dropOldestArchive(Lane.BestEffort);
+            }
+            State.setArchiveEnd((State.ArchiveEnd() + 1) % BIN_ARCHIVES_SIZE);
+
+            if (writeArchive(archiveFileName, State.HoldingBinURL(), dataToArchive))
+            {
+                // Now that we've archived the data, clear it from the holding bin
+                State.markDirty();
+                dataToArchive.clear();
+
+                archived = true;
+            }
+        }
+
+        if (archived)
+        {
+            enforceQuota();
+        }
+    }
+
+    // Send the high-priority events, oldest first.  Returns true if the lane is now empty
+    // These events are never dropped, so if a send fails, they're left in place and retried the next time around
+    private static boolean processPriorityLane(boolean flushPriorityBin)
+    {
+        LaneCounters counters = getLaneCounters(Lane.Priority);
+
+        // Anything archived is older than what's in the bin, so send that first
+        while (!State.PriorityArchiveEnd().equals(State.PriorityArchiveStart()))
+        {
+            String archiveFileName = PRIORITY_ARCHIVE_FILE_PREFIX + State.PriorityArchiveStart().toString();
+            EventArchive archive = readArchive(archiveFileName);
+            if ((null != archive) && !sendArchive(archiveFileName, archive, counters))
+            {
+                return false;
+            }
+
+            deleteArchive(archiveFileName);
+            State.setPriorityArchiveStart(State.PriorityArchiveStart() + 1);
+        }
+
+        List<Object> pb = State.PriorityBin();
+        discardExpired(pb, counters);
+        if (pb.size() > 0)
+        {
+            if (!flushPriorityBin && sendBin(State.PriorityBinURL(), pb, counters))
+            {
+                State.markDirty();
+                pb.clear();
+            }
+            else if (flushPriorityBin || (pb.size() >= MAX_EVENTS_PER_BIN))
+            {
+                // We can't hold on to any more high-priority events in memory (or the URL has changed), so archive them to disk.
+                archivePriorityBin();
+            }
+        }
+
+        return pb.isEmpty() && State.PriorityArchiveEnd().equals(State.PriorityArchiveStart());
+    }
+
+    // Rotate the high-priority bin out to disk.  Anything already archived is older, so it goes at the end of the lane's archives
+    private static void archivePriorityBin()
+    {
+        List<Object> pb = State.PriorityBin();
+        String archiveFileName = PRIORITY_ARCHIVE_FILE_PREFIX + State.PriorityArchiveEnd().toString();
+        if (writeArchive(archiveFileName, State.PriorityBinURL(), pb))
+        {
+            State.setPriorityArchiveEnd(State.PriorityArchiveEnd() + 1);
+            State.markDirty();
+            pb.clear();
+
+            enforceQuota();
+        }
+    }
+
+    // Rotate the re-send bin out to disk.  Its events are older than anything archived, so it goes at the start of the archives,
+    // where it's the next to be sent.  If the archives are full, the bin stays in memory rather than displacing other events
+    private static void spillResendBin()
+    {
+        List<Object> rb = State.ResendBin();
+        int archiveStart = (State.ArchiveStart() - 1 + BIN_ARCHIVES_SIZE) % BIN_ARCHIVES_SIZE;
+        if (rb.isEmpty() || (archiveStart == State.ArchiveEnd()))
+        {
+            return;
+        }
+
+        if (writeArchive(BIN_ARCHIVE_FILE_PREFIX + archiveStart, State.ResendBinURL(), rb))
+        {
+            State.setArchiveStart(archiveStart);
+            State.markDirty();
+            rb.clear();
+
+            enforceQuota();
+        }
+    }
+
+    // Move all of the events held in memory to disk, without going to the network
+    private static void spillBins()
+    {
+        sStore.beginBatch();
+        try
+        {
+            if (!State.PriorityBin().isEmpty())
+            {
+                archivePriorityBin();
+            }
+            spillResendBin();
+            archiveHoldingBin(true);
+        }
+        finally
+        {
+            sStore.endBatch();
+        }
+    }
+
+    // Fold the size of a bin of events, as encoded to be sent, into the estimate of the heap used by each event
+    private static void updateEventHeapEstimate(int jsonLength, int eventCount)
+    {
+        if (eventCount > 0)
+        {
+            long estimate = (long) jsonLength * MemoryMonitor.HEAP_BYTES_PER_JSON_CHAR / eventCount;
+            sEventHeapEstimate = (sEventHeapEstimate * 3 + estimate) / 4;
+        }
+    }
+
+    // Spill the events held in memory to disk if they've outgrown their share of the memory budget
+    private static void enforceMemoryBudget()
+    {
+        long budget = MemoryMonitor.getEventBudget();
+        if (budget <= 0)
+        {
+            return;
+        }
+
+        long eventCount = State.ResendBin().size() + State.HoldingBin().size() + State.PriorityBin().size();
+        if (eventCount * sEventHeapEstimate > budget)
+        {
+            Util.logDebug("Events held in memory exceed their budget [{} events, ~{} bytes each], spilling them to disk",
+                Long.valueOf(eventCount), Long.valueOf(sEventHeapEstimate));
+            spillBins();
+        }
+    }
+
+    // Write a bin of events to "disk".  Returns true if successful
+    private static boolean writeArchive(String archiveFileName, URL url, List<Object> events)
+    {
+        SplytTrace.begin(SplytTrace.WRITE_ARCHIVE);
+        try
+        {
+            try
+            {
+                long[] expiryTimes = new long[events.size()];
+                for (int i = 0; i < expiryTimes.length; ++i)
+                {
+                    expiryTimes[i] = getExpiryTime(events.get(i));
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                EventArchive.write(bytes, url, events, expiryTimes);
+
+                // With durability beyond MEMORY, the state we commit refers to this archive, so make sure it's actually on the storage device
+                // Note that the archive may be rewritten in place, in which case it replaces what was there
+                long oldBytes = sStore.size(archiveFileName);
+                sStore.write(archiveFileName, bytes.toByteArray(), Splyt.Core.Durability.MEMORY != sDurability);
+                sArchiveBytes += bytes.size() - oldBytes;
+
+                return true;
+            }
+            catch (IOException ioex)
+            {
+                Util.logError("EventDepot: Failed to write Archive data");
+            }
+
+            return false;
+        }
+        finally
+        {
+            SplytTrace.end();
+        }
+    }
+
+    // Open the store for the configured storage engine, moving over anything left in the other engine's store (e.g., by a
+    // version of the app that used it) so that no events are lost by switching engines
+    private static void openStore()
+    {
+        Splyt.Core.StorageEngine engine = sStorageEngine;
+        if (sHeadless)
+        {
+            // Splyt hasn't been initialized in this process, so use whichever engine the app last used
+            engine = SqliteEventStore.exists(sContext) ? Splyt.Core.StorageEngine.SQLITE : Splyt.Core.StorageEngine.FILES;
+        }
+        boolean sync = (Splyt.Core.Durability.MEMORY != sDurability);
+
+        FileEventStore fileStore = new FileEventStore();
+        fileStore.open(sContext, sync);
+
+        EventStore store = fileStore;
+        if (Splyt.Core.StorageEngine.SQLITE == engine)
+        {
+            SqliteEventStore sqliteStore = new SqliteEventStore();
+            try
+            {
+                sqliteStore.open(sContext, sync);
+                store = sqliteStore;
+            }
+            catch (IOException ioex)
+            {
+                Util.logError("EventDepot: Failed to open the SQLite store, falling back to files", ioex);
+            }
+        }
+
+        try
+        {
+            if (store != fileStore)
+            {
+                moveRecords(fileStore, store, sync);
+            }
+            else if (SqliteEventStore.exists(sContext))
+            {
+                SqliteEventStore sqliteStore = new SqliteEventStore();
+                sqliteStore.open(sContext, false);
+                moveRecords(sqliteStore, store, sync);
+                sqliteStore.close();
+                sContext.deleteDatabase(SqliteEventStore.DATABASE_NAME);
+            }
+        }
+        catch (IOException ioex)
+        {
+            Util.logError("EventDepot: Failed to move the event records between stores", ioex);
+        }
+
+        sStore = store;
+    }
+
+    // Move the depot's records from one store to another
+    // Note that the state goes last, so that should we fail part way, the state is never moved without the archives it refers to
+    private static void moveRecords(EventStore from, EventStore to, boolean sync) throws IOException
+    {
+        to.beginBatch();
+        try
+        {
+            for (String prefix : new String[] { BIN_ARCHIVE_FILE_PREFIX, PRIORITY_ARCHIVE_FILE_PREFIX, STATE_FILENAME })
+            {
+                for (String name : from.list(prefix))
+                {
+                    InputStream in = from.read(name);
+                    try
+                    {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[4096];
+                        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                        {
+                            bytes.write(buffer, 0, read);
+                        }
+                        to.write(name, bytes.toByteArray(), sync);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    from.delete(name);
+                }
+            }
+        }
+        finally
+        {
+            to.endBatch();
+        }
+    }
+
+    private static String getOldestArchiveFileName(Lane lane)
+    {
+        if (Lane.Priority == lane)
+        {
+            return State.PriorityArchiveEnd().equals(State.PriorityArchiveStart()) ? null : PRIORITY_ARCHIVE_FILE_PREFIX + State.PriorityArchiveStart().toString();
+        }
+        else
+        {
+            return State.ArchiveEnd().equals(State.ArchiveStart()) ? null : BIN_ARCHIVE_FILE_PREFIX + State.ArchiveStart().toString();
+        }
+    }
+
+    // Drop the oldest archive in the given lane
+    private static void dropOldestArchive(Lane lane)
+    {
+        String archiveFileName = getOldestArchiveFileName(lane);
+        if (null == archiveFileName)
+        {
+            return;
+        }
+
+        long bytes = sStore.size(archiveFileName);
+
+        // We need to read the archive in order to know how many events we're dropping
+        LaneCounters counters = getLaneCounters(lane);
+        EventArchive dropped = readArchive(archiveFileName);
+        if (null != dropped)
+        {
+            counters.dropped += dropped.eventCount;
+        }
+        counters.droppedBytes += bytes;
+
+        deleteArchive(archiveFileName);
+        if (Lane.Priority == lane)
+        {
+            State.setPriorityArchiveStart(State.PriorityArchiveStart() + 1);
+        }
+        else
+        {
+            State.setArchiveStart((State.ArchiveStart() + 1) % BIN_ARCHIVES_SIZE);
+        }
+
+        Util.logDebug("Dropped archive [{}] ({} bytes) to make room", archiveFileName, Long.valueOf(bytes));
+    }
+
+    // Thin out the oldest best-effort archive by dropping every other event in it.  If that doesn't free any space (e.g., the archive
+    // is small enough that its header dominates), the archive is dropped instead
+    private static void sampleDownOldestArchive()
+    {
+        String archiveFileName = getOldestArchiveFileName(Lane.BestEffort);
+        if (null == archiveFileName)
+        {
+            return;
+        }
+
+        EventArchive archive = readArchive(archiveFileName);
+        List<Object> events = null;
+        try
+        {
+            events = (null != archive) ? archive.getEvents() : null;
+        }
+        catch (IOException ioex)
+        {
+            Util.logError("EventDepot: Failed to decode archived events");
+        }
+
+        if ((null == events) || (events.size() <= 1))
+        {
+            // Nothing left to thin out
+            dropOldestArchive(Lane.BestEffort);
+            return;
+        }
+
+        long oldBytes = sStore.size(archiveFileName);
+
+        List<Object> sampled = new ArrayList<Object>((events.size() + 1) / 2);
+        for (int i = 0; i < events.size(); i += 2)
+        {
+            sampled.add(events.get(i));
+        }
+
+        if (!writeArchive(archiveFileName, archive.url, sampled))
+        {
+            dropOldestArchive(Lane.BestEffort);
+            return;
+        }
+
+        long freed = oldBytes - sStore.size(archiveFileName);
+
+        LaneCounters counters = getLaneCounters(Lane.BestEffort);
+        counters.dropped += events.size() - sampled.size();
+        if (freed <= 0)
+        {
+            // Sampling didn't make any room, so there's no point in keeping what's left either
+            dropOldestArchive(Lane.BestEffort);
+            return;
+        }
+        counters.droppedBytes += freed;
+    }
+
+    // The timestamp of the first event in the oldest archive of the given lane, in seconds since the epoch
+    // Returns NaN if the archive can't be read (or there is none)
+    private static double getOldestArchiveTimestamp(Lane lane)
+    {
+        String archiveFileName = getOldestArchiveFileName(lane);
+        EventArchive archive = (null != archiveFileName) ? readArchive(archiveFileName) : null;
+        try
+        {
+            List<Object> events = (null != archive) ? archive.getEvents() : null;
+            return ((null != events) && !events.isEmpty()) ? CoreSubsystem.DataPointBuilder.getTimestamp(events.get(0)) : Double.NaN;
+        }
+        catch (IOException ioex)
+        {
+            Util.logError("EventDepot: Failed to decode archived events");
+            return Double.NaN;
+        }
+    }
+
+    // Make room according to the eviction policy
+    private static void evict()
+    {
+        boolean haveBestEffort = (null != getOldestArchiveFileName(Lane.BestEffort));
+        boolean havePriority = (null != getOldestArchiveFileName(Lane.Priority));
+
+        switch (sEvictionPolicy)
+        {
+            case OLDEST_FIRST:
+                if (haveBestEffort && havePriority)
+                {
+                    // Drop whichever archive holds the older events, regardless of lane.  Note that we go by the events rather than when
+                    // the archives were written, as archives are rewritten in place when they're sampled down or partially sent
+                    // An archive that can't be read can't be sent either, so it goes first
+                    double bestEffortTime = getOldestArchiveTimestamp(Lane.BestEffort);
+                    double priorityTime = getOldestArchiveTimestamp(Lane.Priority);
+                    dropOldestArchive((Double.isNaN(priorityTime) || (priorityTime < bestEffortTime)) ? Lane.Priority : Lane.BestEffort);
+                    return;
+                }
+                break;
+
+            case SAMPLE_DOWN:
+                if (haveBestEffort)
+                {
+                    sampleDownOldestArchive();
+                    return;
+                }
+                break;
+
+            case LOWEST_PRIORITY_FIRST:
+            default:
+                break;
+        }
+
+        // Drop best-effort events first.  High-priority events are only dropped as a last resort since the quota is a hard limit
+        dropOldestArchive(haveBestEffort ? Lane.BestEffort : Lane.Priority);
+    }
+
+    // Count the bytes the archives occupy, going to disk for the size of each one
+    private static long getArchiveBytes()
+    {
+        long total = 0;
+
+        for (int i = State.ArchiveStart(); i != State.ArchiveEnd(); i = (i + 1) % BIN_ARCHIVES_SIZE)
+        {
+            total += sStore.size(BIN_ARCHIVE_FILE_PREFIX + Integer.toString(i));
+        }
+        for (int i = State.PriorityArchiveStart(); i != State.PriorityArchiveEnd(); ++i)
+        {
+            total += sStore.size(PRIORITY_ARCHIVE_FILE_PREFIX + Integer.toString(i));
+        }
+
+        return total;
+    }
+
+    // Keep the archives within the storage quota.  Called whenever we archive a bin to disk
+    private static void enforceQuota()
+    {
+        long quota = sArchiveQuota;
+        if (sContext.getFilesDir().getUsableSpace() < LOW_STORAGE_THRESHOLD)
+        {
+            // The device is running out of space, so leave as much of it as we can for the app
+            quota /= LOW_STORAGE_QUOTA_DIVISOR;
+            Util.logDebug("Device storage is low, limiting the event archive to {} bytes", Long.valueOf(quota));
+        }
+
+        if (sArchiveBytes <= quota)
+        {
+            return;
+        }
+
+        sStore.beginBatch();
+        try
+        {
+            // Every eviction either drops an archive or halves the events in one, so this comes to an end even if the archives are empty
+            while ((sArchiveBytes > quota) &&
+                   ((null != getOldestArchiveFileName(Lane.BestEffort)) || (null != getOldestArchiveFileName(Lane.Priority))))
+            {
+                evict();
+            }
+        }
+        finally
+        {
+            sStore.endBatch();
+        }
+    }
+
+    // Read in an archived bin of events.  Returns null if the archive could not be read
+    private static EventArchive readArchive(String archiveFileName)
+    {
+        SplytTrace.begin(SplytTrace.READ_ARCHIVE);
+        try
+        {
+            try
+            {
+                InputStream in = sStore.read(archiveFileName);
+                try
+                {
+                    return EventArchive.read(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ioex)
+            {
+                // Some error occurred reading the archive data file.  This is unexpected, so we log it
+                // But it's safe to carry on
+                Util.logError("IOException loading file [" + archiveFileName + "].  Skipping...");
+            }
+
+            return null;
+        }
+        finally
+        {
+            SplytTrace.end();
+        }
+    }
+
+    // Remove the oldest archive file and update the start index
+    private static void removeOldestArchive()
+    {
+        deleteArchive(BIN_ARCHIVE_FILE_PREFIX + State.ArchiveStart().toString());
+        State.setArchiveStart((State.ArchiveStart() + 1) % BIN_ARCHIVES_SIZE);
     }
 
-    private static void processBins(boolean flushHoldingBin)
+    // Delete an archive file, keeping count of the bytes the archives occupy
+    private static void deleteArchive(String archiveFileName)
+    {
+        sArchiveBytes -= sStore.size(archiveFileName);
+        sStore.delete(archiveFileName);
+    }
+
+    private static boolean hasBacklog()
+    {
+        return (State.PriorityBin().size() > 0) || !State.PriorityArchiveEnd().equals(State.PriorityArchiveStart()) ||
+               (State.ResendBin().size() > 0) || !State.ArchiveEnd().equals(State.ArchiveStart()) || (State.HoldingBin().size() > 0);
+    }
+
+    // Send everything in the depot, oldest first, combining the bins into as few requests as possible.
+    // Returns true if all of the events were sent.  If a send fails (or the drain is cancelled), we stop there and the remaining events
+    // are left in place
+    private static boolean drainBins(DrainJob job)
     {
-        // First, let's try and send a bin of events to the data collector
+        // High-priority events always go first
+        if (!processPriorityLane(false) || job.isCancelled())
+        {
+            return false;
+        }
+
+        // The app is in the background, so close the aggregation window
+        flushAggregates(true);
+
+        LaneCounters counters = getLaneCounters(Lane.BestEffort);
         List<Object> rb = State.ResendBin();
-        List<Object> hb = State.HoldingBin();
-        Util.logDebug("Resend Bin Count [" + rb.size() + "]");
-        Util.logDebug("Holding Bin Count [" + hb.size() + "]");
-        Util.logDebug("Archive Infos [" + State.ArchiveStart() + ", " + State.ArchiveEnd() + "]");
+        discardExpired(rb, counters);
         if (rb.size() > 0)
         {
-            // We have events in the re-send bin.  These are our first priority, so let's try and send them
-            if (sendBin(State.ResendBinURL(), rb))
+            if (!sendBin(State.ResendBinURL(), rb, counters))
             {
-                // Successful send, clear the bin
-                rb.clear();
+                return false;
             }
+
+            State.markDirty();
+            rb.clear();
         }
-        else if (!State.ArchiveEnd().equals(State.ArchiveStart()))
+
+        while (!State.ArchiveEnd().equals(State.ArchiveStart()))
         {
-            // Nothing in the re-send bin, but we have some data archived to disk.  These are our second priority as we must send events in timestamp order
-            String archiveFileName = BIN_ARCHIVE_FILE_PREFIX + State.ArchiveStart().toString();
+            if (job.isCancelled())
+            {
+                return false;
+            }
 
-            try
+            // Combine consecutive archives bound for the same URL into a single request
+            // Rather than decoding the events, we simply splice together their JSON arrays
+            StringBuilder eventsJson = new StringBuilder("[");
+            long now = System.currentTimeMillis();
+            int eventCount = 0;
+            int expiredCount = 0;
+            URL url = null;
+            int numArchives = 0;
+            List<EventArchive> sentArchives = new ArrayList<EventArchive>();
+            int index = State.ArchiveStart();
+            while ((index != State.ArchiveEnd()) && (eventCount < MAX_EVENTS_PER_DRAIN_REQUEST))
+            {
+                EventArchive archive = readArchive(BIN_ARCHIVE_FILE_PREFIX + Integer.toString(index));
+                if (null != archive)
+                {
+                    // Note that we compare the URLs as strings since URL.equals() may resolve the host name
+                    if ((null != url) && !url.toString().equals(archive.url.toString()))
+                    {
+                        break;
+                    }
+
+                    try
+                    {
+                        int expired = archive.countExpired(now);
+                        if (expired < archive.eventCount)
+                        {
+                            String json = archive.getEventsJson(now).trim();
+                            eventsJson.append((eventCount > 0) ? "," : "").append(json, 1, json.length() - 1);
+                            eventCount += archive.eventCount - expired;
+                            sentArchives.add(archive);
+                        }
+                        expiredCount += expired;
+                        url = archive.url;
+                    }
+                    catch (IOException ioex)
+                    {
+                        Util.logError("EventDepot: Failed to decode archived events.  Skipping...");
+                        counters.dropped += archive.eventCount;
+                    }
+                }
+
+                ++numArchives;
+                index = (index + 1) % BIN_ARCHIVES_SIZE;
+            }
+            eventsJson.append("]");
+
+            if (eventCount > 0)
             {
-                FileInputStream fis = sContext.openFileInput(archiveFileName);
-                ObjectInputStream inputStream = new ObjectInputStream(fis);
-                URL url = (URL) inputStream.readObject();
-                @SuppressWarnings("unchecked")
-                ArrayList<Object> diskData = (ArrayList<Object>) inputStream.readObject();
-                fis.close();
+                BatchResponse response = sendEvents(url, eventsJson.toString(), null);
+                if (null == response)
+                {
+                    return false;
+                }
 
-                if (!sendBin(url, diskData))
+                if (response.countResend(eventCount) > 0)
                 {
-                    // Failed to send the bin of events.  Dump them into the re-send bin so we can try again next time
-                    rb.addAll(diskData);
-                    State.setResendBinURL(url);
+                    // Some of the events need to be sent again, so we stop here and leave them for next time.  Should that fail, the
+                    // archives are sent again as they were, so we only count the events once they've been rewritten
+                    if (resendArchivedEvents(response, sentArchives, now, url, numArchives))
+                    {
+                        settleBatch(response, eventCount, counters);
+                        counters.expired += expiredCount;
+                    }
+                    return false;
                 }
+                settleBatch(response, eventCount, counters);
             }
-            catch (IOException ioex)
+            counters.expired += expiredCount;
+
+            // Everything in these archives has been sent (or was unreadable), so remove them
+            sStore.beginBatch();
+            try
             {
-                // Some error occurred reading the archive data file.  This is unexpected, so we log it
-                // But it's safe to carry on
-                Util.logError("IOException loading file [" + archiveFileName + "].  Skipping...");
+                for (int i = 0; i < numArchives; ++i)
+                {
+                    removeOldestArchive();
+                }
             }
-            catch (ClassNotFoundException clnex)
+            finally
             {
-                // Contents of the archive file are corrupted.   This is unexpected, so we log it
-                // But it's safe to carry on
-                Util.logError("ClassNotFoundException loading file [" + archiveFileName + "].  Skipping...");
+                sStore.endBatch();
             }
+        }
 
-            // Remove the archive file and update the start index
-            sContext.deleteFile(archiveFileName);
-            State.setArchiveStart((State.ArchiveStart() + 1) % BIN_ARCHIVES_SIZE);
+        if (job.isCancelled())
+        {
+            return false;
         }
-        else if (hb.size() > 0)
+
+        List<Object> hb = State.HoldingBin();
+        discardExpired(hb, counters);
+        coalesceHoldingBin(counters);
+        if (hb.size() > 0)
         {
-            // Noting in the re-send bin and we have no data archived to disk, so let's attempt to send what's in the holding bin
-            if (!sendBin(State.HoldingBinURL(), hb))
+            if (!sendBin(State.HoldingBinURL(), hb, counters))
             {
-                // Failed to send the bin of events.  Dump them into the re-send bin so we can try again next time
-                rb.addAll(hb);
-                State.setResendBinURL(State.HoldingBinURL());
+                return false;
             }
 
-            // Clear the holding bin
+            State.markDirty();
             hb.clear();
         }
 
-        // Handle bin overflow
-        while ( (hb.size() >= MAX_EVENTS_PER_BIN) || (flushHoldingBin && hb.size() > 0) )
-        {
-            // Our holding bin is full, so rotate out a chunk of events to disk
-            List<Object> dataToArchive = hb.subList(0, (hb.size() > MAX_EVENTS_PER_BIN) ? MAX_EVENTS_PER_BIN : hb.size());
-            String archiveFileName = BIN_ARCHIVE_FILE_PREFIX + State.ArchiveEnd().toString();
+        return true;
+    }
 
-            State.setArchiveEnd((State.ArchiveEnd() + 1) % BIN_ARCHIVES_SIZE);
-            if (State.ArchiveEnd().equals(State.ArchiveStart()))
+    // Keep the events of a combined request to the data collector that should be sent again in the last of the archives it was made of,
+    // and remove the others, so that they're the first to be sent next time.  Should that fail, the archives are left as they were to be
+    // sent again as a whole, which the data collector recognizes as a batch it has already seen.  Returns true if successful
+    private static boolean resendArchivedEvents(BatchResponse response, List<EventArchive> archives, long now, URL url, int numArchives)
+    {
+        List<Object> events = new ArrayList<Object>();
+        try
+        {
+            for (EventArchive archive : archives)
             {
-                // We've reached the max archives we wish to store, so purge the oldest one
-                sContext.deleteFile(BIN_ARCHIVE_FILE_PREFIX + State.ArchiveStart().toString());
-
-                State.setArchiveStart((State.ArchiveStart() + 1) % BIN_ARCHIVES_SIZE);
+                events.addAll(archive.getEvents(now));
             }
+        }
+        catch (IOException ioex)
+        {
+            Util.logError("EventDepot: Failed to decode archived events");
+            return false;
+        }
 
-            try
-            {
-                FileOutputStream fos = sContext.openFileOutput(archiveFileName, Context.MODE_PRIVATE);
-                ObjectOutputStream outputStream = new ObjectOutputStream(fos);
-                outputStream.writeObject(State.HoldingBinURL());
-                outputStream.writeObject(new ArrayList<Object>(dataToArchive));
-                fos.flush();
-                fos.close();
+        int lastIndex = (State.ArchiveStart() + numArchives - 1) % BIN_ARCHIVES_SIZE;
+        if (!writeArchive(BIN_ARCHIVE_FILE_PREFIX + Integer.toString(lastIndex), url, response.selectResend(events)))
+        {
+            return false;
+        }
 
-                // Now that we've archived the data, clear it from the holding bin
-                dataToArchive.clear();
-            }
-            catch (IOException ioex)
+        sStore.beginBatch();
+        try
+        {
+            for (int i = 0; i < numArchives - 1; ++i)
             {
-                Util.logError("EventDepot: Failed to write Archive data");
+                removeOldestArchive();
             }
         }
+        finally
+        {
+            sStore.endBatch();
+        }
+
+        return true;
     }
 
-    // Submits the job to processes the bins and then resubmits itself
-    private static Runnable sBinProcessor = new Runnable()
+    // Checkpoint the state.  Note that this only writes if something has changed since the last checkpoint
+    private static void checkpoint()
     {
-        @Override
-        public void run()
+        State.save();
+
+        sUncommittedEvents = 0;
+        sNextCommitTime = -1;
+    }
+
+    // Commit the state according to the durability level once events have been stored
+    private static void commitStoredEvents(Lane lane, int count)
+    {
+        if (sPaused)
         {
-            // Add the job to the queue
-            sJobQueue.offer(new ProcessBinsJob());
+            // While paused, the state is checkpointed after every job anyhow
+            return;
+        }
+
+        switch (sDurability)
+        {
+            case SYNC_PRIORITY:
+                if (Lane.Priority == lane)
+                {
+                    // Commit right away, before we attempt to send the event
+                    checkpoint();
+                    break;
+                }
+                // Otherwise, fall through to the group commit
+            case GROUP_COMMIT:
+                // Commit once enough events have accumulated, or once the oldest uncommitted event has waited long enough (see JobConsumer)
+                sUncommittedEvents += count;
+                if (sUncommittedEvents >= sGroupCommitEventCount)
+                {
+                    checkpoint();
+                }
+                else if (sNextCommitTime < 0)
+                {
+                    sNextCommitTime = SystemClock.elapsedRealtime() + sGroupCommitInterval;
+                }
+                break;
+
+            case MEMORY:
+            default:
+                // Events are only committed when the app is paused
+                break;
+        }
+    }
+
+    // (Re)start the periodic bin processing at the current period
+    private static void scheduleBinProcessing()
+    {
+        sNextProcessTime = SystemClock.elapsedRealtime() + sCurProcessBinPeriod;
+    }
+
+    // Stop the periodic bin processing
+    private static void cancelBinProcessing()
+    {
+        sNextProcessTime = -1;
+    }
+
+    // Arrange for the high-priority events to be sent shortly, unless a send (or a retry) is already scheduled
+    private static void schedulePrioritySend()
+    {
+        if (sNextPrioritySendTime < 0)
+        {
+            sNextPrioritySendTime = SystemClock.elapsedRealtime() + PRIORITY_SEND_DELAY;
+        }
+    }
+
+    // Send the high-priority events.  Should that fail, try again later, backing off each time
+    private static void sendPriorityEvents()
+    {
+        sNextPrioritySendTime = -1;
+
+        if (processPriorityLane(false))
+        {
+            sPriorityRetryDelay = 0;
+        }
+        else
+        {
+            sPriorityRetryDelay = (0 == sPriorityRetryDelay) ? PRIORITY_RETRY_MIN_DELAY : Math.min(sPriorityRetryDelay * 2, PRIORITY_RETRY_MAX_DELAY);
+            sNextPrioritySendTime = SystemClock.elapsedRealtime() + sPriorityRetryDelay;
+        }
+        enforceMemoryBudget();
 
-            // Now register this runnable to run again at the current period
-            sHandler.postDelayed(this, sCurProcessBinPeriod);
+        if (sPaused)
+        {
+            // Checkpoint the state
+            checkpoint();
         }
-    };
+    }
 
     /////////////////////////
     // Job Implementations //
@@ -496,63 +1920,236 @@ class EventDepot
             // initially, if the URL has changed, we need to flush the old stuff out of the holding bin
             boolean flushHoldingBin = sUrl != State.HoldingBinURL();
             processBins(flushHoldingBin);
-            State.setHoldingBinURL(sUrl);
+            if (flushHoldingBin)
+            {
+                State.setHoldingBinURL(sUrl);
+                State.setPriorityBinURL(sUrl);
+            }
 
             // Start the periodic bin processing
-            sHandler.postDelayed(sBinProcessor, sCurProcessBinPeriod);
+            scheduleBinProcessing();
         }
     }
 
     private static class StoreEventJob implements Runnable
     {
         Map<String, Object> mEvent; // The event to store
+        Lane mLane;                 // The lane the event goes through
 
-        StoreEventJob(Map<String, Object> event)
+        StoreEventJob(Map<String, Object> event, Lane lane)
         {
             mEvent = event;
+            mLane = lane;
         }
 
         @Override
         public void run()
         {
+            getLaneCounters(mLane).stored++;
+            assignSequence(mEvent);
+
+            if (Lane.Priority == mLane)
+            {
+                // We have a high-priority event to store.  Send it shortly rather than waiting for the next round of processing
+                List<Object> pb = State.PriorityBin();
+                State.markDirty();
+                pb.add(mEvent);
+                commitStoredEvents(mLane, 1);
+
+                schedulePrioritySend();
+                enforceMemoryBudget();
+
+                if (sPaused)
+                {
+                    // Checkpoint the state
+                    checkpoint();
+                }
+                return;
+            }
+
             // We have an event to store
+            List<Object> hb = State.HoldingBin();
+            State.markDirty();
+            hb.add(mEvent);
+            commitStoredEvents(mLane, 1);
+
             if (sPaused)
             {
                 // The system has been paused, so process this event on demand
+                processBins(false);
+
+                // Checkpoint the state
+                checkpoint();
+            }
+            else if (hb.size() >= MAX_EVENTS_PER_BIN)
+            {
+                // We've reached the maximum desired batch size, so process the bins immediately
+                processBins(false);
+            }
+            else
+            {
+                enforceMemoryBudget();
+            }
+        }
+    }
+
+    private static class ProcessBinsJob implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            // Process the bins
+            processBins(false);
+        }
+    }
+
+    /**
+     * An upload of the backlog of events, as started by {@link EventDepot#drain}.
+     */
+    static class DrainJob implements Runnable
+    {
+        private final DrainListener mListener;
+        private volatile boolean mCancelled = false;
+
+        DrainJob(DrainListener listener)
+        {
+            mListener = listener;
+        }
 
-                // Restore any state data that may have been saved off
+        /**
+         * Stop the upload after the request in progress (if any).  Whatever has been sent so far stays sent, and the listener
+         * isn't called.
+         */
+        void cancel()
+        {
+            mCancelled = true;
+        }
+
+        boolean isCancelled()
+        {
+            return mCancelled;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean backlogCleared = true;
+
+            if (sPaused)
+            {
+                // Restore the state.  Note that this only reads if the in-memory state was lost
                 State.restore();
 
-                // Add the event to the holding bin
-                List<Object> hb = State.HoldingBin();
-                hb.add(mEvent);
+                backlogCleared = drainBins(this);
 
-                // Process bins immediately
-                processBins(false);
+                // Checkpoint the state since the process may well go away once we're done
+                checkpoint();
+            }
+            // else the app is in the foreground and the regular bin processing will take care of the backlog
 
-                // Save off the state
-                State.save();
+            if (mCancelled)
+            {
+                Util.logDebug("Background upload of the event backlog cancelled");
+                return;
             }
-            else
+
+            Util.logDebug("Background upload of the event backlog complete [{}]", backlogCleared ? "all sent" : "some events remain");
+
+            if (null != mListener)
+            {
+                mListener.onDrainComplete(backlogCleared);
+            }
+        }
+    }
+
+    private static class StoreBatchJob implements Runnable
+    {
+        List<Map<String, Object>> mEvents;  // The events to store
+        List<Lane> mLanes;                  // The lane each event goes through
+
+        StoreBatchJob(List<Map<String, Object>> events, List<Lane> lanes)
+        {
+            mEvents = events;
+            mLanes = lanes;
+        }
+
+        @Override
+        public void run()
+        {
+            // Split the batch by lane
+            List<Object> priorityEvents = new ArrayList<Object>();
+            List<Object> bestEffortEvents = new ArrayList<Object>(mEvents.size());
+            for (int i = 0; i < mEvents.size(); ++i)
+            {
+                assignSequence(mEvents.get(i));
+                if (Lane.Priority == mLanes.get(i))
+                {
+                    priorityEvents.add(mEvents.get(i));
+                }
+                else
+                {
+                    bestEffortEvents.add(mEvents.get(i));
+                }
+            }
+
+            List<Object> hb = State.HoldingBin();
+            if (!bestEffortEvents.isEmpty())
             {
-                List<Object> hb = State.HoldingBin();
-                hb.add(mEvent);
-                if (hb.size() >= MAX_EVENTS_PER_BIN)
+                getLaneCounters(Lane.BestEffort).stored += bestEffortEvents.size();
+
+                // If the batch would fit in a bin of its own but not alongside what's already in the holding bin,
+                // rotate the holding bin out to disk first so that the batch isn't split across two requests
+                if (!hb.isEmpty() && (bestEffortEvents.size() <= MAX_EVENTS_PER_BIN) && (hb.size() + bestEffortEvents.size() > MAX_EVENTS_PER_BIN))
                 {
-                    // We've reached the maximum desired batch size, so process the bins immediately
-                    processBins(false);
+                    archiveHoldingBin(true);
                 }
+
+                State.markDirty();
+                hb.addAll(bestEffortEvents);
+                commitStoredEvents(Lane.BestEffort, bestEffortEvents.size());
+            }
+
+            if (!priorityEvents.isEmpty())
+            {
+                getLaneCounters(Lane.Priority).stored += priorityEvents.size();
+
+                State.markDirty();
+                State.PriorityBin().addAll(priorityEvents);
+                commitStoredEvents(Lane.Priority, priorityEvents.size());
+
+                // Send them shortly, as we would a single high-priority event
+                schedulePrioritySend();
+            }
+
+            if (sPaused)
+            {
+                // The system has been paused, so process these events on demand
+                processBins(false);
+
+                // Checkpoint the state
+                checkpoint();
+            }
+            else if (hb.size() >= MAX_EVENTS_PER_BIN)
+            {
+                // We've reached the maximum desired batch size, so process the bins immediately
+                processBins(false);
+            }
+            else
+            {
+                enforceMemoryBudget();
             }
         }
     }
 
-    private static class ProcessBinsJob implements Runnable
+    private static class TrimMemoryJob implements Runnable
     {
         @Override
         public void run()
         {
-            // Process the bins
-            processBins(false);
+            spillBins();
+
+            // Checkpoint the state so that what's left in memory is as small as it can be, and the archives can be found should the process be killed
+            checkpoint();
         }
     }
 
@@ -567,10 +2164,19 @@ class EventDepot
                 sPaused = true;
 
                 // Stop the periodic bin processing
-                sHandler.removeCallbacks(sBinProcessor);
+                cancelBinProcessing();
+
+                // Close the aggregation window so that the aggregates are checkpointed along with everything else
+                flushAggregates(true);
+
+                // Checkpoint the state.  Note that this only writes if something has changed since the last checkpoint
+                checkpoint();
 
-                // Save off the state
-                State.save();
+                // If there are still events to send, arrange for them to be uploaded while the app is in the background
+                if (BackgroundUploader.isEnabled() && hasBacklog())
+                {
+                    BackgroundUploader.schedule(sContext, sUrl, sReqTimeout);
+                }
             }
         }
     }
@@ -582,12 +2188,18 @@ class EventDepot
         {
             if (sPaused)
             {
-                // Restore the state
+                // Restore the state.  Note that this only reads if the in-memory state was lost
                 State.restore();
 
+                // We're back in the foreground, so the depot will take care of any backlog itself
+                if (BackgroundUploader.isEnabled())
+                {
+                    BackgroundUploader.cancel(sContext);
+                }
+
                 // Reset the period and start the bin processing
                 sCurProcessBinPeriod = PROCESSBIN_MIN_PERIOD;
-                sHandler.postDelayed(sBinProcessor, sCurProcessBinPeriod);
+                scheduleBinProcessing();
 
                 sPaused = false;
             }
@@ -595,6 +2207,8 @@ class EventDepot
     }
 
     // This class implements the main processing loop for the job queue.  It is intended to be run in a worker thread
+    // It also serves as the depot's timer: while waiting for jobs, it wakes up whenever the bins are due to be processed, the high-priority events
+    // are due to be sent or the state is due to be committed
     private static class JobConsumer implements Runnable
     {
         private final BlockingQueue<Runnable> mQueue;
@@ -610,13 +2224,66 @@ class EventDepot
             {
                 while (true)
                 {
-                    Runnable nextJob = mQueue.take();
-                    nextJob.run();
+                    // Wait for the next job, but no longer than until the bins are due to be processed, the high-priority events are due
+                    // to be sent or the state is due to be committed
+                    long deadline = sNextProcessTime;
+                    if ((sNextPrioritySendTime >= 0) && ((deadline < 0) || (sNextPrioritySendTime < deadline)))
+                    {
+                        deadline = sNextPrioritySendTime;
+                    }
+                    if ((sNextCommitTime >= 0) && ((deadline < 0) || (sNextCommitTime < deadline)))
+                    {
+                        deadline = sNextCommitTime;
+                    }
+
+                    Runnable nextJob;
+                    if (deadline < 0)
+                    {
+                        // No periodic work scheduled, so simply wait for the next job
+                        nextJob = mQueue.take();
+                    }
+                    else
+                    {
+                        long timeout = deadline - SystemClock.elapsedRealtime();
+                        nextJob = (timeout > 0) ? mQueue.poll(timeout, TimeUnit.MILLISECONDS) : null;
+                    }
+
+                    if (null != nextJob)
+                    {
+                        nextJob.run();
+                    }
+                    else
+                    {
+                        long now = SystemClock.elapsedRealtime();
+                        if ((sNextProcessTime >= 0) && (now >= sNextProcessTime))
+                        {
+                            // Time to process the bins
+                            new ProcessBinsJob().run();
+
+                            // Schedule the next round at the current period (which processing the bins may have adjusted)
+                            scheduleBinProcessing();
+                        }
+
+                        if ((sNextPrioritySendTime >= 0) && (now >= sNextPrioritySendTime))
+                        {
+                            // Time to send the high-priority events stored since the last send (or to retry a failed send)
+                            sendPriorityEvents();
+                        }
+
+                        if ((sNextCommitTime >= 0) && (now >= sNextCommitTime))
+                        {
+                            // Time to commit the events stored since the last commit
+                            checkpoint();
+                        }
+                    }
 
-                    int numItems = 0;
-                    for (Runnable r : mQueue)
+                    if (Util.isLogEnabled())
                     {
-                        Util.logDebug("Job Queue [" + Integer.toString(numItems++) + "]: " + r.getClass().getSimpleName());
+                        int numItems = 0;
+                        for (Runnable r : mQueue)
+                        {
+                            Util.logDebug("Job Queue [{}]: {}", Integer.valueOf(numItems++), r.getClass().getSimpleName());
+                        }
                     }
                 }
             }
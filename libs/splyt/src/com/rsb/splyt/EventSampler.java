@@ -0,0 +1,111 @@
+package com.rsb.splyt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>This is an internal class that samples high-volume transaction categories on the client, so that only a fraction of
+ * their events are stored and sent.</p>
+ *
+ * <p>The sample rate of a category (between 0 and 1) is delivered through the tuning variable
+ * {@code splyt.sampleRate.<category>}, and defaults to 1 (i.e., everything is kept).  Whether a category is kept is decided
+ * deterministically from a hash of the user id (or the device id, if there is no user) and the category, so for a given rate,
+ * a user's events in that category are either all kept or all dropped.  Kept events carry the effective sample rate in the
+ * {@code _SPLYT_sampleRate} property so that they can be re-weighted upstream.</p>
+ */
+class EventSampler
+{
+    private static final String SAMPLE_RATE_VAR_PREFIX = "splyt.sampleRate.";
+    static final String SAMPLE_RATE_PROPERTY = "_SPLYT_sampleRate";
+
+    // The last decision made for each category, which remains valid until the sample rate or the entity changes
+    private static class Decision
+    {
+        double rate;
+        String entityId;
+        boolean keep;
+    }
+
+    private static final Map<String, Decision> sDecisions = new HashMap<String, Decision>();
+
+    /**
+     * @param category  The transaction category
+     *
+     * @return The current sample rate of the category, between 0 (drop everything) and 1 (keep everything)
+     */
+    static double getSampleRate(String category)
+    {
+        // Note that we peek at the variable so that the backend isn't told about it every time an event is sampled
+        Object value = TuningSubsystem.peekVar(CoreSubsystem.getUserId(), CoreSubsystem.getDeviceId(), SAMPLE_RATE_VAR_PREFIX + category, Double.valueOf(1.0));
+        double rate = (value instanceof Number) ? ((Number) value).doubleValue() : 1.0;
+
+        return Double.isNaN(rate) ? 1.0 : Math.max(0.0, Math.min(rate, 1.0));
+    }
+
+    /**
+     * @param category  The transaction category
+     * @param rate      The sample rate of the category (see {@link #getSampleRate})
+     *
+     * @return true if events in the category should be kept
+     */
+    static synchronized boolean isKept(String category, double rate)
+    {
+        if (rate >= 1.0)
+        {
+            return true;
+        }
+
+        String userId = CoreSubsystem.getUserId();
+        String entityId = (null != userId) ? userId : CoreSubsystem.getDeviceId();
+
+        Decision decision = sDecisions.get(category);
+        if ((null == decision) || (decision.rate != rate) || !String.valueOf(entityId).equals(String.valueOf(decision.entityId)))
+        {
+            decision = new Decision();
+            decision.rate = rate;
+            decision.entityId = entityId;
+            decision.keep = (getSamplePoint(entityId, category) < rate);
+
+            sDecisions.put(category, decision);
+        }
+
+        return decision.keep;
+    }
+
+    /**
+     * Records the sample rate in the properties of an event that was kept.
+     *
+     * @param properties    The event's properties (may be null).  This is not modified
+     * @param rate          The sample rate the event was kept at
+     *
+     * @return The properties to send with the event
+     */
+    static Map<String, Object> annotate(Map<String, Object> properties, double rate)
+    {
+        if (rate >= 1.0)
+        {
+            // Nothing was sampled out, so there's nothing to re-weight
+            return properties;
+        }
+
+        Map<String, Object> annotated = (null != properties) ? new HashMap<String, Object>(properties) : new HashMap<String, Object>(1);
+        annotated.put(SAMPLE_RATE_PROPERTY, Double.valueOf(rate));
+
+        return annotated;
+    }
+
+    // Maps the entity and category to a point in [0, 1).  This must be stable across runs (and devices), hence String.hashCode
+    private static double getSamplePoint(String entityId, String category)
+    {
+        int h = (String.valueOf(entityId) + "|" + category).hashCode();
+
+        // Mix the bits (the MurmurHash3 finalizer) so that similar ids don't end up with similar points
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return (h & 0x7fffffffL) / (double) 0x80000000L;
+    }
+}
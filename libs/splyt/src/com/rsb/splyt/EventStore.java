@@ -0,0 +1,74 @@
+package com.rsb.splyt;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+
+/**
+ * <p>This is an internal interface for the storage engine behind the {@link EventDepot}, which holds the depot's state and
+ * its archived bins of events on the device.</p>
+ *
+ * <p>The store is a flat set of named records.  The depot keeps its archives in order itself (the indices of the oldest and
+ * newest archive of each lane are part of its state), so appending a bin is a write of the next archive, peeking at the
+ * oldest bin is a read of the first one, and acknowledging it is a delete.  This way, the depot's state and the archives
+ * it refers to are committed the same way regardless of the engine.</p>
+ *
+ * <p>A store is only ever used from the depot's thread, so implementations need not be thread-safe.</p>
+ *
+ * @see Splyt.Core.InitParams#setStorageEngine
+ */
+interface EventStore
+{
+    /**
+     * Open the store, creating it if need be.
+     *
+     * @param context   The application context
+     * @param sync      Whether writes should reach the storage device before they're considered complete
+     */
+    void open(Context context, boolean sync) throws IOException;
+
+    void close();
+
+    /**
+     * @return  The contents of the record
+     *
+     * @throws java.io.FileNotFoundException If there is no such record
+     */
+    InputStream read(String name) throws IOException;
+
+    /**
+     * Write a record, replacing any record of the same name.  The record is replaced as a whole or not at all.
+     *
+     * @param sync  Whether the write should reach the storage device before returning (for stores that can sync per record)
+     */
+    void write(String name, byte[] data, boolean sync) throws IOException;
+
+    /**
+     * @return true if the record was deleted, false if there was no such record
+     */
+    boolean delete(String name);
+
+    /**
+     * @return The size of the record, in bytes, or 0 if there is no such record
+     */
+    long size(String name);
+
+    /**
+     * @return The time the record was last written, in ms since the epoch, or 0 if there is no such record
+     */
+    long lastModified(String name);
+
+    /**
+     * @return The names of the records that start with the given prefix (e.g., to count the archives or clean up stale ones)
+     */
+    String[] list(String prefix);
+
+    /**
+     * Group the writes and deletes that follow, up until the matching call to {@link #endBatch}, so that stores that support
+     * transactions can commit them together.  Batches may be nested.
+     */
+    void beginBatch();
+
+    void endBatch();
+}
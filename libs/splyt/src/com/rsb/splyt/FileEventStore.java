@@ -0,0 +1,110 @@
+package com.rsb.splyt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+
+/**
+ * <p>This is an internal class that stores the {@link EventDepot}'s records as files in the app's internal storage, one
+ * file per record.  This is the default storage engine, and the layout SPLYT has always used, so records written by older
+ * versions of the SDK are read as-is.</p>
+ *
+ * <p>Each record is written to a temporary file that is then renamed over the record, so a record is never left
+ * half-written should the process be killed.  There are no transactions, so batches are ignored.</p>
+ */
+class FileEventStore implements EventStore
+{
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private Context mContext;
+
+    @Override
+    public void open(Context context, boolean sync)
+    {
+        // Files are synced per record, so there is nothing to set up
+        mContext = context;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException
+    {
+        return mContext.openFileInput(name);
+    }
+
+    @Override
+    public void write(String name, byte[] data, boolean sync) throws IOException
+    {
+        String tempName = name + TEMP_SUFFIX;
+        FileOutputStream fos = mContext.openFileOutput(tempName, Context.MODE_PRIVATE);
+        try
+        {
+            fos.write(data);
+            if (sync)
+            {
+                // Make sure the data has actually reached the storage device before we rely on it
+                fos.getFD().sync();
+            }
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        if (!mContext.getFileStreamPath(tempName).renameTo(mContext.getFileStreamPath(name)))
+        {
+            mContext.deleteFile(tempName);
+            throw new IOException("Unable to replace [" + name + "]");
+        }
+    }
+
+    @Override
+    public boolean delete(String name)
+    {
+        return mContext.deleteFile(name);
+    }
+
+    @Override
+    public long size(String name)
+    {
+        return mContext.getFileStreamPath(name).length();
+    }
+
+    @Override
+    public long lastModified(String name)
+    {
+        return mContext.getFileStreamPath(name).lastModified();
+    }
+
+    @Override
+    public String[] list(final String prefix)
+    {
+        String[] names = mContext.getFilesDir().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename)
+            {
+                return filename.startsWith(prefix) && !filename.endsWith(TEMP_SUFFIX);
+            }
+        });
+
+        return (null != names) ? names : new String[0];
+    }
+
+    @Override
+    public void beginBatch()
+    {
+    }
+
+    @Override
+    public void endBatch()
+    {
+    }
+}
@@ -7,8 +7,12 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.os.AsyncTask;
+import android.os.StrictMode;
+import android.os.SystemClock;
 
 class HttpRequest
 {
@@ -16,6 +20,8 @@ class HttpRequest
     {
         SplytError error;      // Result error code
         String     response;   // Server response (null if no response)
+        int        bytesSent;  // The size of the request body, in bytes
+        long       elapsed;    // How long the request took, in ms
     }
 
     public interface RequestListener
@@ -32,12 +38,38 @@ class HttpRequest
     // Data to send (optional)
     private final String mSendData;
 
+    // Data to send, already encoded (optional), and its content encoding (e.g., "gzip", null if none)
+    private final byte[] mSendBytes;
+    private final String mContentEncoding;
+
+    // Additional request headers, by name
+    private final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+
     public HttpRequest(URL url, int requestTimeout, String sendData)
     {
         // Set all of the member variables
         mUrl = url;
         mTimeout = requestTimeout;
         mSendData = sendData;
+        mSendBytes = null;
+        mContentEncoding = null;
+    }
+
+    public HttpRequest(URL url, int requestTimeout, byte[] sendBytes, String contentEncoding)
+    {
+        // Set all of the member variables
+        mUrl = url;
+        mTimeout = requestTimeout;
+        mSendData = null;
+        mSendBytes = sendBytes;
+        mContentEncoding = contentEncoding;
+    }
+
+    // Set a request header.  Note that this must be done before the request is executed
+    public HttpRequest setHeader(String name, String value)
+    {
+        mHeaders.put(name, value);
+        return this;
     }
 
     public RequestResult executeSync()
@@ -48,6 +80,9 @@ class HttpRequest
     // listener - Callback function to be called when the request is complete
     public void executeAsync(final RequestListener listener)
     {
+        // Mark the request for as long as it's in flight, from when it's queued until its result has been delivered
+        final int traceCookie = SplytTrace.beginAsync(SplytTrace.HTTP_REQUEST);
+
         new AsyncTask<Void, Void, HttpRequest.RequestResult>()
         {
             @Override
@@ -59,9 +94,19 @@ class HttpRequest
             @Override
             protected void onPostExecute(RequestResult result)
             {
+                SplytTrace.endAsync(SplytTrace.HTTP_REQUEST, traceCookie);
+
                 if (null != listener)
                 {
-                    listener.onComplete(result);
+                    StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+                    try
+                    {
+                        listener.onComplete(result);
+                    }
+                    finally
+                    {
+                        StrictModeAudit.exit(oldPolicy);
+                    }
                 }
             }
         }.execute();
@@ -69,81 +114,104 @@ class HttpRequest
 
     private RequestResult executeRequest()
     {
-        // Assume a generic error
-        RequestResult result = new RequestResult();
-        result.error = SplytError.ErrorGeneric;
-
-        // Use HttpURLConnection
-        // See http://stackoverflow.com/questions/3505930/make-an-http-request-with-android
-        // and http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-        HttpURLConnection urlConnection = null;
+        SplytTrace.begin(SplytTrace.HTTP_REQUEST);
         try
         {
-            urlConnection = (HttpURLConnection)mUrl.openConnection();
-
-            // Connecting to a server will fail with a SocketTimeoutException if the timeout elapses before a connection is established.
-            urlConnection.setConnectTimeout(mTimeout);
+            StrictModeAudit.checkNotMainThread("HTTP request to " + mUrl.getPath());
+
+            // Assume a generic error
+            RequestResult result = new RequestResult();
+            result.error = SplytError.ErrorGeneric;
+            long startTime = SystemClock.elapsedRealtime();
+
+            // Use HttpURLConnection
+            // See http://stackoverflow.com/questions/3505930/make-an-http-request-with-android
+            // and http://android-developers.blogspot.com/2011/09/androids-http-clients.html
+            HttpURLConnection urlConnection = null;
+            try
+            {
+                urlConnection = (HttpURLConnection)mUrl.openConnection();
 
-            urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+                // Connecting to a server will fail with a SocketTimeoutException if the timeout elapses before a connection is established.
+                urlConnection.setConnectTimeout(mTimeout);
 
-            // If the connection is set to keep-alive and the server keep-alive timeout is encountered,
-            // we could end up seeing an IOException when we try to send/read the response.
-            urlConnection.setRequestProperty("Connection", "close");
+                urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
 
-            if (null != mSendData)
-            {
-                urlConnection.addRequestProperty("ssf-use-positional-post-params", "true");
-                urlConnection.addRequestProperty("ssf-contents-not-url-encoded", "true");
+                // If the connection is set to keep-alive and the server keep-alive timeout is encountered,
+                // we could end up seeing an IOException when we try to send/read the response.
+                urlConnection.setRequestProperty("Connection", "close");
 
-                byte[] dataBytes = mSendData.getBytes("UTF-8");
+                for (Map.Entry<String, String> header : mHeaders.entrySet())
+                {
+                    urlConnection.setRequestProperty(header.getKey(), header.getValue());
+                }
 
-                // We have data to send, so specify that this connection allows it (i.e., a "POST");
-                urlConnection.setDoOutput(true);
-                urlConnection.setFixedLengthStreamingMode(dataBytes.length);
+                if ((null != mSendData) || (null != mSendBytes))
+                {
+                    urlConnection.addRequestProperty("ssf-use-positional-post-params", "true");
+                    urlConnection.addRequestProperty("ssf-contents-not-url-encoded", "true");
+                    if (null != mContentEncoding)
+                    {
+                        urlConnection.setRequestProperty("Content-Encoding", mContentEncoding);
+                    }
+
+                    byte[] dataBytes = (null != mSendBytes) ? mSendBytes : mSendData.getBytes("UTF-8");
+                    result.bytesSent = dataBytes.length;
+
+                    // We have data to send, so specify that this connection allows it (i.e., a "POST");
+                    urlConnection.setDoOutput(true);
+                    urlConnection.setFixedLengthStreamingMode(dataBytes.length);
+
+                    // No need for buffering as we do only "bulk" writes
+                    OutputStream out = urlConnection.getOutputStream();
+                    out.write(dataBytes);
+                    out.close();
+                }
 
-                // No need for buffering as we do only "bulk" writes
-                OutputStream out = urlConnection.getOutputStream();
-                out.write(dataBytes);
-                out.close();
+                int httpStatus = urlConnection.getResponseCode();
+                if (HttpURLConnection.HTTP_OK == httpStatus)
+                {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+                    StringBuilder response = new StringBuilder();
+                    String line;
+                    while (null != (line = reader.readLine()))
+                    {
+                        response.append(line);
+                    }
+
+                    // Set the result
+                    result.error = SplytError.Success;
+                    result.response = response.toString();
+                }
+                else
+                {
+                    Util.logError("http response [" + httpStatus + "]: " +  urlConnection.getResponseMessage());
+                }
             }
-
-            int httpStatus = urlConnection.getResponseCode();
-            if (HttpURLConnection.HTTP_OK == httpStatus)
+            catch (SocketTimeoutException e)
             {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while (null != (line = reader.readLine()))
+                result.error = SplytError.ErrorRequestTimedout;
+                Util.logError("Request timed out.  Try increasing the timeout value you send to Splyt.init()");
+            }
+            catch (IOException e)
+            {
+                Util.logError("Request IO Exception.  Please verify that android.permission.INTERNET is set in your app's manifest file!");
+            }
+            finally
+            {
+                if (null != urlConnection)
                 {
-                    response.append(line);
+                    urlConnection.disconnect();
                 }
 
-                // Set the result
-                result.error = SplytError.Success;
-                result.response = response.toString();
+                result.elapsed = SystemClock.elapsedRealtime() - startTime;
             }
-            else
-            {
-                Util.logError("http response [" + httpStatus + "]: " +  urlConnection.getResponseMessage());
-            }
-        }
-        catch (SocketTimeoutException e)
-        {
-            result.error = SplytError.ErrorRequestTimedout;
-            Util.logError("Request timed out.  Try increasing the timeout value you send to Splyt.init()");
-        }
-        catch (IOException e)
-        {
-            Util.logError("Request IO Exception.  Please verify that android.permission.INTERNET is set in your app's manifest file!");
+
+            return result;
         }
         finally
         {
-            if (null != urlConnection)
-            {
-                urlConnection.disconnect();
-            }
+            SplytTrace.end();
         }
-
-        return result;
     }
 }
\ No newline at end of file
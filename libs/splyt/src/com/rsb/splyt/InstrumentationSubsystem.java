@@ -1,6 +1,12 @@
 package com.rsb.splyt;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import android.os.StrictMode;
 
 /**
  * <p>Instrumentation Subsystem</p>
@@ -12,65 +18,180 @@ class InstrumentationSubsystem
 {
     private static boolean sInitialized;
 
+    // Transactions in these categories are revenue-critical, so they're sent through the event depot's priority lane
+    private static final Set<String> PRIORITY_CATEGORIES = new HashSet<String>(Arrays.asList(
+        SplytPlugins.Purchase.CATEGORY_NAME,
+        SplytPlugins.Session.CATEGORY_NAME));
+
+    private static EventDepot.Lane getLane(String category)
+    {
+        return PRIORITY_CATEGORIES.contains(category) ? EventDepot.Lane.Priority : EventDepot.Lane.BestEffort;
+    }
+
+    // Decides whether a transaction's events are sampled out.  Revenue-critical categories are never sampled
+    // Returns the sample rate if the events are to be kept, or a negative number if they are to be dropped
+    private static double sample(String category)
+    {
+        if (PRIORITY_CATEGORIES.contains(category))
+        {
+            return 1.0;
+        }
+
+        double rate = EventSampler.getSampleRate(category);
+        return EventSampler.isKept(category, rate) ? rate : -1.0;
+    }
+
+    // Stores the event, or adds it to the batch if it's being reported as part of one
+    private static void send(CoreSubsystem.DataPointBuilder builder, Splyt.Instrumentation.Batch batch)
+    {
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
+        {
+            if (null == batch)
+            {
+                builder.send();
+            }
+            else
+            {
+                batch.add(builder.build(), builder.getLane());
+            }
+        }
+        finally
+        {
+            StrictModeAudit.exit(oldPolicy);
+        }
+    }
+
     static void init()
     {
-        if (!sInitialized)
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            Util.cacheCurrencyInfo();
+            if (!sInitialized)
+            {
+                Util.cacheCurrencyInfo();
 
-            sInitialized = true;
+                sInitialized = true;
+            }
+        }
+        finally
+        {
+            StrictModeAudit.exit(oldPolicy);
+        }
+    }
+
+    /**
+     * Stores the events of a batch as a single unit.
+     *
+     * @param events    The events of the batch
+     * @param lanes     The lane each event goes through
+     */
+    static SplytError submitBatch(List<Map<String,Object>> events, List<EventDepot.Lane> lanes)
+    {
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
+        {
+            return EventDepot.storeBatch(events, lanes);
+        }
+        finally
+        {
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
-    static void beginTransaction(String category, String timeoutMode, Double timeout, String transactionId, Map<String,Object> properties)
+    static void beginTransaction(String category, String timeoutMode, Double timeout, String transactionId, Map<String,Object> properties, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_beginTransaction")
+        if (!PRIORITY_CATEGORIES.contains(category) && EventAggregator.isRolledUp(category))
+        {
+            // Only the end of a rolled-up transaction is reported, as part of its category's aggregate
+            return;
+        }
+
+        double sampleRate = sample(category);
+        if (sampleRate < 0)
+        {
+            Util.logDebug("Transaction in category [{}] sampled out", category);
+            return;
+        }
+
+        CoreSubsystem.DataPointBuilder builder = new CoreSubsystem.DataPointBuilder("datacollector_beginTransaction")
         .setArg(category)
         .setArg(timeoutMode)
         .setArg(timeout)
         .setArg(transactionId)
-        .setArg(properties)
-        .send();
+        .setArg(EventSampler.annotate(properties, sampleRate))
+        .setLane(getLane(category));
+        send(builder, batch);
     }
 
-    static void updateTransaction(String category, Integer progress, String transactionId, Map<String,Object> properties)
+    static void updateTransaction(String category, Integer progress, String transactionId, Map<String,Object> properties, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_updateTransaction")
+        if (!PRIORITY_CATEGORIES.contains(category) && EventAggregator.isRolledUp(category))
+        {
+            // Only the end of a rolled-up transaction is reported, as part of its category's aggregate
+            return;
+        }
+
+        double sampleRate = sample(category);
+        if (sampleRate < 0)
+        {
+            Util.logDebug("Transaction in category [{}] sampled out", category);
+            return;
+        }
+
+        CoreSubsystem.DataPointBuilder builder = new CoreSubsystem.DataPointBuilder("datacollector_updateTransaction")
         .setArg(category)
         .setArg(progress)
         .setArg(transactionId)
-        .setArg(properties)
-        .send();
+        .setArg(EventSampler.annotate(properties, sampleRate))
+        .setLane(getLane(category));
+        send(builder, batch);
     }
 
-    static void endTransaction(String category, String result, String transactionId, Map<String,Object> properties)
+    static void endTransaction(String category, String result, String transactionId, Map<String,Object> properties, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_endTransaction")
+        if (!PRIORITY_CATEGORIES.contains(category) && EventAggregator.add(category, properties))
+        {
+            // The transaction has been rolled up into its category's aggregate, which is stored once the window closes
+            return;
+        }
+
+        double sampleRate = sample(category);
+        if (sampleRate < 0)
+        {
+            Util.logDebug("Transaction in category [{}] sampled out", category);
+            return;
+        }
+
+        CoreSubsystem.DataPointBuilder builder = new CoreSubsystem.DataPointBuilder("datacollector_endTransaction")
         .setArg(category)
         .setArg(result)
         .setArg(transactionId)
-        .setArg(properties)
-        .send();
+        .setArg(EventSampler.annotate(properties, sampleRate))
+        .setLane(getLane(category));
+        send(builder, batch);
     }
 
     /**
      * Updates state information about the user.
      *
      * @param properties A key-value object representing the user state we want to update. This can be a nested object structure.
+     * @param batch      The batch the update is reported as part of, or null to store it right away.
      */
-    static void updateUserState(Map<String,Object> properties)
+    static void updateUserState(Map<String,Object> properties, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_updateUserState").setArg(properties).send();
+        send(new CoreSubsystem.DataPointBuilder("datacollector_updateUserState").setArg(properties), batch);
     }
 
     /**
      * Updates state information about a device.
      *
      * @param properties A key-value object representing the device state we want to update. This can be a nested object structure.
+     * @param batch      The batch the update is reported as part of, or null to store it right away.
      */
-    static void updateDeviceState(Map<String,Object> properties)
+    static void updateDeviceState(Map<String,Object> properties, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_updateDeviceState").setArg(properties).send();
+        send(new CoreSubsystem.DataPointBuilder("datacollector_updateDeviceState").setArg(properties), batch);
     }
 
     /**
@@ -80,14 +201,15 @@ class InstrumentationSubsystem
      * @param balance               The new balance of the collection.
      * @param balanceModification   The change in balance being recorded.  To reduce the balance, specify a negative number.
      * @param isCurrency            Whether or not this collection represents a currency in the application.
+     * @param batch                 The batch the update is reported as part of, or null to store it right away.
      */
-    static void updateCollection(String name, Double balance, Double balanceModification, Boolean isCurrency)
+    static void updateCollection(String name, Double balance, Double balanceModification, Boolean isCurrency, Splyt.Instrumentation.Batch batch)
     {
-        new CoreSubsystem.DataPointBuilder("datacollector_updateCollection")
+        CoreSubsystem.DataPointBuilder builder = new CoreSubsystem.DataPointBuilder("datacollector_updateCollection")
         .setArg(name)
         .setArg(balance)
         .setArg(balanceModification)
-        .setArg(isCurrency)
-        .send();
+        .setArg(isCurrency);
+        send(builder, batch);
     }
 }
\ No newline at end of file
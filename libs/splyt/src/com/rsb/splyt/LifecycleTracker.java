@@ -0,0 +1,121 @@
+package com.rsb.splyt;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>This is an internal class used to track whether the app as a whole is in the foreground or the background.
+ * Rather than relying on every activity to call {@link Splyt.Core#pause} and {@link Splyt.Core#resume}, we observe the
+ * lifecycle of all activities in the process and only pause Splyt once no activity has been resumed for a short period of time.
+ * This way, moving between activities does not cause the event depot to persist and restore its state.</p>
+ *
+ * <p><b>Note:</b> Activity lifecycle callbacks are only available on API level 14 (Ice Cream Sandwich) and above.
+ * On older devices, the app must continue to call pause and resume itself.</p>
+ */
+class LifecycleTracker implements Application.ActivityLifecycleCallbacks
+{
+    // The amount of time we wait after the last activity is paused before we consider the app to be in the background
+    private static final int PAUSE_DEBOUNCE_PERIOD = 700;     // In ms
+
+    private static LifecycleTracker sTracker;
+
+    /**
+     * Start tracking the lifecycle of the app's activities.
+     *
+     * @param app The application whose activities we wish to track
+     *
+     * @return true if lifecycle tracking is active, false if it is not supported on this device
+     */
+    static boolean start(Application app)
+    {
+        if ((null == sTracker) && (null != app) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH))
+        {
+            sTracker = new LifecycleTracker();
+            app.registerActivityLifecycleCallbacks(sTracker);
+        }
+
+        return isActive();
+    }
+
+    /**
+     * @return true if the SDK is tracking foreground/background transitions on its own
+     */
+    static boolean isActive()
+    {
+        return (null != sTracker);
+    }
+
+    // All callbacks are delivered on the main thread, so this is the only thread that touches the state below
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mResumedCount;
+    private boolean mInForeground;
+
+    // Pauses Splyt if no activity was resumed during the debounce period
+    private final Runnable mPauseRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (0 == mResumedCount)
+            {
+                mInForeground = false;
+
+                CoreSubsystem.pause();
+            }
+        }
+    };
+
+    private LifecycleTracker()
+    {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity)
+    {
+        ++mResumedCount;
+
+        // If we were about to pause, we're simply switching between activities, so don't
+        mHandler.removeCallbacks(mPauseRunnable);
+
+        if (!mInForeground)
+        {
+            mInForeground = true;
+
+            CoreSubsystem.resume();
+        }
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity)
+    {
+        // Note that Splyt may have been initialized after the current activity was resumed, in which case we never saw it
+        if (mResumedCount > 0)
+        {
+            --mResumedCount;
+        }
+
+        if (0 == mResumedCount)
+        {
+            mHandler.postDelayed(mPauseRunnable, PAUSE_DEBOUNCE_PERIOD);
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) { }
+
+    @Override
+    public void onActivityStarted(Activity activity) { }
+
+    @Override
+    public void onActivityStopped(Activity activity) { }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) { }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) { }
+}
@@ -0,0 +1,98 @@
+package com.rsb.splyt;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Build;
+
+/**
+ * <p>This is an internal class that keeps the SDK's use of the heap in check, so that it never contributes to the app being
+ * killed under memory pressure.</p>
+ *
+ * <p>The events buffered by the {@link EventDepot} and the tuning values held by the {@link TuningSubsystem} share a
+ * configurable budget.  The depot spills its bins to disk when the events exceed their share, and the tuning subsystem
+ * drops the entities other than the active user and the device when the tuning values exceed theirs.  In addition, we
+ * observe the system's memory callbacks, and do both of these regardless of the budget when the system asks apps to trim
+ * their memory.</p>
+ *
+ * <p><b>Note:</b> Memory callbacks can only be registered on API level 14 (Ice Cream Sandwich) and above.  On older devices,
+ * only the budget is enforced.</p>
+ *
+ * @see Splyt.Core.InitParams#setMemoryBudget
+ */
+class MemoryMonitor implements ComponentCallbacks2
+{
+    // Maps, boxed values and UTF-16 strings take up several times the length of their JSON encoding on the heap
+    static final int HEAP_BYTES_PER_JSON_CHAR = 6;
+
+    private static volatile long sBudget = SplytConstants.DEFAULT_MEMORY_BUDGET;
+
+    private static MemoryMonitor sMonitor;
+
+    static void setBudget(long budget)
+    {
+        sBudget = budget;
+    }
+
+    /**
+     * @return The heap budget for the events buffered in memory, in bytes, or 0 if there is no budget.  The events may use whatever
+     *         the tuning values don't, but always get at least half of the budget
+     */
+    static long getEventBudget()
+    {
+        long budget = sBudget;
+        return (budget > 0) ? Math.max(budget - TuningSubsystem.getHeapEstimate(), budget / 2) : 0;
+    }
+
+    /**
+     * @return The heap budget for the tuning values, in bytes, or 0 if there is no budget
+     */
+    static long getTuningBudget()
+    {
+        return sBudget / 2;
+    }
+
+    /**
+     * Start observing the system's memory callbacks.
+     *
+     * @param app The application to register the callbacks with
+     */
+    static void start(Application app)
+    {
+        if ((null == sMonitor) && (null != app) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH))
+        {
+            sMonitor = new MemoryMonitor();
+            app.registerComponentCallbacks(sMonitor);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level)
+    {
+        // Note that TRIM_MEMORY_UI_HIDDEN only means that the app has gone into the background, which is handled by pausing the depot
+        if ((level >= TRIM_MEMORY_BACKGROUND) || ((level >= TRIM_MEMORY_RUNNING_LOW) && (level < TRIM_MEMORY_UI_HIDDEN)))
+        {
+            trim(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        trim(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig)
+    {
+    }
+
+    private static void trim(int level)
+    {
+        Util.logDebug("Trimming memory [level {}]", Integer.valueOf(level));
+
+        // The callbacks come in on the main thread, so the depot spills its bins on its own thread
+        EventDepot.trimMemory();
+        TuningSubsystem.trimMemory();
+    }
+}
@@ -25,6 +25,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.IntentCompat;
 import android.support.v4.content.LocalBroadcastManager;
@@ -33,7 +34,6 @@ import com.amazon.device.messaging.ADM;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.rsb.gson.Gson;
 import com.rsb.gson.JsonObject;
 import com.rsb.gson.JsonParser;
 import com.rsb.gson.JsonPrimitive;
@@ -116,51 +116,59 @@ final class NotificationSubsystem
      */
     static void preinit(final Activity activity, final boolean alwaysPost, final boolean disableAutoClear, SplytNotificationReceivedListener listener)
     {
-        // Verify that we have a valid activity and host
-        if (null == activity)
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            Util.logError("[Notification] Activity is null.  Please pass in a valid activity");
-            return;
-        }
+            // Verify that we have a valid activity and host
+            if (null == activity)
+            {
+                Util.logError("[Notification] Activity is null.  Please pass in a valid activity");
+                return;
+            }
 
-        // Save off references to any static variables that may be required by this subsystem before initialization occurs
-        // This can happen if the main activity of an app calls its resume method before our core subsystem finishes initializing
-        // And since this subsystem doesn't get initialized until the core subsystem finished initializing...
-        sNotificationReceivedListener = listener;
+            // Save off references to any static variables that may be required by this subsystem before initialization occurs
+            // This can happen if the main activity of an app calls its resume method before our core subsystem finishes initializing
+            // And since this subsystem doesn't get initialized until the core subsystem finished initializing...
+            sNotificationReceivedListener = listener;
 
-        LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(activity);
+            LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(activity);
 
-        if (null != sPauseReceiver)
-        {
-            // Unregister any previous receiver because we may have a new instance of the main activity
-            lbm.unregisterReceiver(sPauseReceiver);
-        }
+            if (null != sPauseReceiver)
+            {
+                // Unregister any previous receiver because we may have a new instance of the main activity
+                lbm.unregisterReceiver(sPauseReceiver);
+            }
 
-        // Register a receiver that calls this subsystem's pause method any time the core subsystem is paused
-        sPauseReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                pause(activity);
+            // Register a receiver that calls this subsystem's pause method any time the core subsystem is paused
+            sPauseReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    pause(activity);
+                }
+            };
+            lbm.registerReceiver(sPauseReceiver, new IntentFilter(SplytConstants.ACTION_CORESUBSYSTEM_PAUSED));
+
+            if (null != sResumeReceiver)
+            {
+                // Unregister any previous receiver because we may have a new instance of the main activity
+                lbm.unregisterReceiver(sResumeReceiver);
             }
-        };
-        lbm.registerReceiver(sPauseReceiver, new IntentFilter(SplytConstants.ACTION_CORESUBSYSTEM_PAUSED));
 
-        if (null != sResumeReceiver)
+            sAllowPost = alwaysPost;
+
+            // Register a receiver that calls this subsystem's resume method any time the core subsystem is resumed
+            sResumeReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    resume(activity, alwaysPost, disableAutoClear);
+                }
+            };
+            lbm.registerReceiver(sResumeReceiver, new IntentFilter(SplytConstants.ACTION_CORESUBSYSTEM_RESUMED));
+        }
+        finally
         {
-            // Unregister any previous receiver because we may have a new instance of the main activity
-            lbm.unregisterReceiver(sResumeReceiver);
+            StrictModeAudit.exit(oldPolicy);
         }
-
-        sAllowPost = alwaysPost;
-
-        // Register a receiver that calls this subsystem's resume method any time the core subsystem is resumed
-        sResumeReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                resume(activity, alwaysPost, disableAutoClear);
-            }
-        };
-        lbm.registerReceiver(sResumeReceiver, new IntentFilter(SplytConstants.ACTION_CORESUBSYSTEM_RESUMED));
     }
 
     /**
@@ -195,7 +203,7 @@ final class NotificationSubsystem
 
             sQueryParams = CoreSubsystem.getQueryParms(WS_VERSION);
 
-            Context appContext = activity.getApplicationContext();
+            final Context appContext = activity.getApplicationContext();
 
             // Now check if ADM or Google Play Services is available.
             if (checkADMAvailable())
@@ -230,14 +238,22 @@ final class NotificationSubsystem
                 // We have a client, so store off some preferences we'll need to post notifications
                 // Get the parts of the component name of our activity.  We'll store this off so that we can launch the activity from a notification
                 ComponentName compName = activity.getComponentName();
-                String compPackage = compName.getPackageName();
-                String compClass = compName.getClassName();
+                final String compPackage = compName.getPackageName();
+                final String compClass = compName.getClassName();
+                final int theSmallIcon = smallIcon;
 
-                SharedPreferences.Editor editor = activity.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE).edit();
-                editor.putInt(NOTIFICATION_SMALLICON_KEY_NAME, smallIcon)
-                      .putString(NOTIFICATION_COMPONENTPACKAGE_KEY_NAME, compPackage)
-                      .putString(NOTIFICATION_COMPONENTCLASS_KEY_NAME, compClass)
-                      .commit();
+                // The first access to the shared prefs loads them from disk, so do this in the background
+                Util.runOnIoThread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        SharedPreferences.Editor editor = appContext.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE).edit();
+                        editor.putInt(NOTIFICATION_SMALLICON_KEY_NAME, theSmallIcon)
+                              .putString(NOTIFICATION_COMPONENTPACKAGE_KEY_NAME, compPackage)
+                              .putString(NOTIFICATION_COMPONENTCLASS_KEY_NAME, compClass)
+                              .apply();
+                    }
+                });
 
                 // Set up a (permanent) receiver needed for when user entity Ids get set/updated (e.g., on login/logout)
                 // We need to inform our backend any time this happens
@@ -273,7 +289,7 @@ final class NotificationSubsystem
         if ((null != sHost) && (null != sQueryParams) && checkPlayServices(context))
         {
             // Clear the app version so that we are guaranteed to register the device
-            sharedPrefs.edit().remove(NOTIFICATION_APPVERSION_KEY_NAME).commit();
+            sharedPrefs.edit().remove(NOTIFICATION_APPVERSION_KEY_NAME).apply();
 
             // Initialize the GCM client which starts the process of device registration
             sServiceClient = new GCMClient(context);
@@ -294,6 +310,9 @@ final class NotificationSubsystem
     {
         Util.logDebug("[Notification] Notification received");
 
+        // This reads the shared prefs, so it's expected to be called from a background thread (e.g., an IntentService)
+        StrictModeAudit.checkNotMainThread("Notification prefs read");
+
         // Only post notifications to the status bar if the app is not active (i.e., in the background)
         if (sAllowPost)
         {
@@ -338,13 +357,21 @@ final class NotificationSubsystem
                         builder.setContentTitle(info.getString("title"));
                     }
 
-                    // Now build the notification to send
-                    Notification notification = builder.build();
+                    SplytTrace.begin(SplytTrace.POST_NOTIFICATION);
+                    try
+                    {
+                        // Now build the notification to send
+                        Notification notification = builder.build();
 
-                    // Use the NotificationManager system service to notify the user
-                    // Note that for the second parameter passed to the notify method, we use the icon as it will always be a unique number within the application
-                    NotificationManager notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
-                    notificationManager.notify(null, icon, notification);
+                        // Use the NotificationManager system service to notify the user
+                        // Note that for the second parameter passed to the notify method, we use the icon as it will always be a unique number within the application
+                        NotificationManager notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+                        notificationManager.notify(null, icon, notification);
+                    }
+                    finally
+                    {
+                        SplytTrace.end();
+                    }
                 }
             }
         }
@@ -590,7 +617,7 @@ final class NotificationSubsystem
 
             String cachedEntityIdsJson = sharedPrefs.getString(NOTIFICATION_ENTITYIDS_KEY_NAME, "");
 
-            Map<String, String> cachedEntityIds = new Gson().fromJson(cachedEntityIdsJson, new TypeToken<Map<String, String>>(){}.getType());
+            Map<String, String> cachedEntityIds = Util.getGson().fromJson(cachedEntityIdsJson, new TypeToken<Map<String, String>>(){}.getType());
             String curDeviceId = curEntityIds.get(SplytConstants.ENTITY_TYPE_DEVICE);
             String cachedDeviceId = cachedEntityIds.get(SplytConstants.ENTITY_TYPE_DEVICE);
             if ((null != curDeviceId) && !curDeviceId.equals(cachedDeviceId))
@@ -678,7 +705,7 @@ final class NotificationSubsystem
                         // Create an (async) request to send the registration Id to Splyt. The callback will be triggered when the request is completed
                         String url = sHost + "/splyt-notification/ws/interface/device_register" + sQueryParams;
 
-                        new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), new Gson().toJson(args)).executeAsync(new RequestListener() {
+                        new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), Util.getGson().toJson(args)).executeAsync(new RequestListener() {
                             @Override
                             public void onComplete(RequestResult result) {
                                 if (SplytError.Success == result.error)
@@ -694,15 +721,10 @@ final class NotificationSubsystem
                                             error = resultObj.getAsJsonPrimitive("error");
                                             if ((null != error) && (SplytError.Success.getValue() == error.getAsInt()))
                                             {
-                                                if (cachePrefs(curRegId, curEntityIds))
-                                                {
-                                                    // Success!
-                                                    Util.logDebug("[Notification] Device and associated entities successfully registered with Splyt's notification service");
-                                                }
-                                                else
-                                                {
-                                                    Util.logError("[Notification] Problem caching prefs");
-                                                }
+                                                cachePrefs(curRegId, curEntityIds);
+
+                                                // Success!
+                                                Util.logDebug("[Notification] Device and associated entities successfully registered with Splyt's notification service");
                                             }
                                             else
                                             {
@@ -762,13 +784,12 @@ final class NotificationSubsystem
         /**
          * Caches preferences needed by the notification subsystem
          * {@code SharedPreferences}.
+         * The prefs are updated in memory immediately, but written to disk in the background.
          *
          * @param regId The registration ID of the device
          * @param entityIds Map of the entity Ids (DEVICE and/or USER)
-         *
-         * @return true if the prefs were cached, false otherwise
          */
-        private boolean cachePrefs(String regId, Map<String, String> entityIds)
+        private void cachePrefs(String regId, Map<String, String> entityIds)
         {
             SharedPreferences.Editor editor = mContext.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE).edit();
 
@@ -781,9 +802,9 @@ final class NotificationSubsystem
                 editor.putString(NOTIFICATION_HOST_KEY_NAME, sHost);
                 editor.putString(NOTIFICATION_QUERYPARAMS_KEY_NAME, sQueryParams);
             }
-            if (null != entityIds) editor.putString(NOTIFICATION_ENTITYIDS_KEY_NAME, new Gson().toJson(entityIds));
+            if (null != entityIds) editor.putString(NOTIFICATION_ENTITYIDS_KEY_NAME, Util.getGson().toJson(entityIds));
 
-            return editor.commit();
+            editor.apply();
         }
 
         /**
@@ -799,7 +820,7 @@ final class NotificationSubsystem
             {
                 String url = sHost + "/splyt-notification/ws/interface/product_isregistered" + sQueryParams;
 
-                new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), new Gson().toJson(args)).executeAsync(new ProductIsRegisteredRequestListener());
+                new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), Util.getGson().toJson(args)).executeAsync(new ProductIsRegisteredRequestListener());
             }
             catch (MalformedURLException e)
             {
@@ -866,7 +887,7 @@ final class NotificationSubsystem
                             if ((null != error) && (SplytError.Success.getValue() == error.getAsInt()))
                             {
                                 JsonObject data = resultObj.getAsJsonObject("data");
-                                isRegisteredRet ret = new Gson().fromJson(data, isRegisteredRet.class);
+                                isRegisteredRet ret = Util.getGson().fromJson(data, isRegisteredRet.class);
                                 if (ret.registered)
                                 {
                                     // The product is registered with Splyt's notification service.
@@ -879,14 +900,8 @@ final class NotificationSubsystem
                                     // Product is not registered with splyt's notification service. This is ok.
                                     // Just pass null for the registration Id and entities when caching the prefs
                                     // Use case 2 or 8
-                                    if (cachePrefs(null, null))
-                                    {
-                                        Util.logDebug("[Notification] Product is not registered with Splyt's notification service");
-                                    }
-                                    else
-                                    {
-                                        Util.logError("[Notification] Problem caching defaults");
-                                    }
+                                    cachePrefs(null, null);
+                                    Util.logDebug("[Notification] Product is not registered with Splyt's notification service");
                                 }
                             }
                             else
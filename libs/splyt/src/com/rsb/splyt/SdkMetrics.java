@@ -0,0 +1,191 @@
+package com.rsb.splyt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This is an internal class that keeps metrics about the SDK itself, so that its behavior can be observed at runtime
+ * (see {@link Splyt.Core#getMetrics}) and, optionally, reported to SPLYT.  There are three kinds of metric:
+ * - Counters, which only ever go up (e.g., the number of bytes uploaded)
+ * - Gauges, which hold the latest value of something (e.g., the number of events in the holding bin)
+ * - Latencies, which are histograms of durations, in ms (e.g., how long it takes to send a bin of events)</p>
+ *
+ * <p>The counts of the events that have passed through each of the event depot's lanes are kept by the depot itself (see
+ * {@link EventDepot.LaneCounters}), and are added to the snapshot as counters.</p>
+ */
+class SdkMetrics
+{
+    // The category of the transaction the metrics are reported to SPLYT as
+    static final String CATEGORY = "_SPLYT_sdkMetrics";
+
+    // Counters
+    static final String COUNTER_REQUESTS_SENT   = "requestsSent";
+    static final String COUNTER_REQUESTS_FAILED = "requestsFailed";
+    static final String COUNTER_BYTES_UPLOADED  = "bytesUploaded";
+
+    // Gauges.  These are updated by the event depot whenever it processes its bins
+    static final String GAUGE_JOB_QUEUE         = "jobQueueDepth";
+    static final String GAUGE_HOLDING_BIN       = "holdingBinEvents";
+    static final String GAUGE_RESEND_BIN        = "resendBinEvents";
+    static final String GAUGE_PRIORITY_BIN      = "priorityBinEvents";
+    static final String GAUGE_ARCHIVE_FILES     = "archiveFiles";
+    static final String GAUGE_ARCHIVE_BYTES     = "archiveBytes";
+
+    // Latencies
+    static final String LATENCY_SEND_BIN               = "sendBin";
+    static final String LATENCY_TUNER_REFRESH          = "tuner_refresh";
+    static final String LATENCY_APPLICATION_INIT       = "application_init";
+    static final String LATENCY_APPLICATION_UPDATEUSER = "application_updateuser";
+    static final String LATENCY_EVENT                  = "eventEnqueueToAck";   // From the time an event is reported until the data collector acknowledges it
+
+    // The (ascending) upper bounds of the latency histogram buckets, in ms.  Events can wait hours to be sent, so these go up a long way
+    private static final long[] LATENCY_BOUNDS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 3600000 };
+
+    private static class Latency
+    {
+        long count;
+        long sum;
+        long max;
+        final long[] histogram = new long[LATENCY_BOUNDS.length + 1];   // One more bucket for the durations above the last bound
+
+        synchronized void record(long ms)
+        {
+            count++;
+            sum += ms;
+            max = Math.max(max, ms);
+
+            int bucket = Arrays.binarySearch(LATENCY_BOUNDS, ms);
+            histogram[(bucket >= 0) ? bucket : (-bucket - 1)]++;
+        }
+
+        synchronized Map<String, Object> snapshot()
+        {
+            List<Long> counts = new ArrayList<Long>(histogram.length);
+            for (long bucketCount : histogram)
+            {
+                counts.add(Long.valueOf(bucketCount));
+            }
+
+            Map<String, Object> snapshot = new HashMap<String, Object>();
+            snapshot.put("count", Long.valueOf(count));
+            snapshot.put("sum", Long.valueOf(sum));
+            snapshot.put("max", Long.valueOf(max));
+            snapshot.put("counts", counts);
+
+            return snapshot;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, AtomicLong> sCounters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, AtomicLong> sGauges = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, Latency> sLatencies = new ConcurrentHashMap<String, Latency>();
+
+    private static AtomicLong getValue(ConcurrentHashMap<String, AtomicLong> values, String name)
+    {
+        AtomicLong value = values.get(name);
+        if (null == value)
+        {
+            AtomicLong newValue = new AtomicLong();
+            value = values.putIfAbsent(name, newValue);
+            if (null == value)
+            {
+                value = newValue;
+            }
+        }
+
+        return value;
+    }
+
+    static void increment(String counter, long delta)
+    {
+        getValue(sCounters, counter).addAndGet(delta);
+    }
+
+    static void setGauge(String gauge, long value)
+    {
+        getValue(sGauges, gauge).set(value);
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param latency   The name of the latency
+     * @param ms        The duration, in ms.  Negative durations (e.g., from a clock that has been set back) are ignored
+     */
+    static void recordLatency(String latency, long ms)
+    {
+        if (ms < 0)
+        {
+            return;
+        }
+
+        Latency value = sLatencies.get(latency);
+        if (null == value)
+        {
+            Latency newValue = new Latency();
+            value = sLatencies.putIfAbsent(latency, newValue);
+            if (null == value)
+            {
+                value = newValue;
+            }
+        }
+
+        value.record(ms);
+    }
+
+    /**
+     * @return A snapshot of the metrics, as maps of counters, gauges and latencies by name.  Each latency is a map of its count, sum
+     *         and max (in ms) and the counts of its histogram buckets (whose upper bounds are given by {@code latencyBounds})
+     */
+    static Map<String, Object> snapshot()
+    {
+        Map<String, Object> counters = new HashMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet())
+        {
+            counters.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        for (EventDepot.Lane lane : EventDepot.Lane.values())
+        {
+            EventDepot.LaneCounters laneCounters = EventDepot.getLaneCounters(lane);
+            String prefix = "events" + lane.name() + ".";
+            counters.put(prefix + "stored", Long.valueOf(laneCounters.stored));
+            counters.put(prefix + "sent", Long.valueOf(laneCounters.sent));
+            counters.put(prefix + "dropped", Long.valueOf(laneCounters.dropped));
+            counters.put(prefix + "droppedBytes", Long.valueOf(laneCounters.droppedBytes));
+            counters.put(prefix + "expired", Long.valueOf(laneCounters.expired));
+            counters.put(prefix + "coalesced", Long.valueOf(laneCounters.coalesced));
+            counters.put(prefix + "rejected", Long.valueOf(laneCounters.rejected));
+        }
+
+        Map<String, Object> gauges = new HashMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> entry : sGauges.entrySet())
+        {
+            gauges.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+
+        Map<String, Object> latencies = new HashMap<String, Object>();
+        for (Map.Entry<String, Latency> entry : sLatencies.entrySet())
+        {
+            latencies.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        List<Long> bounds = new ArrayList<Long>(LATENCY_BOUNDS.length);
+        for (long bound : LATENCY_BOUNDS)
+        {
+            bounds.add(Long.valueOf(bound));
+        }
+
+        Map<String, Object> snapshot = new HashMap<String, Object>();
+        snapshot.put("counters", counters);
+        snapshot.put("gauges", gauges);
+        snapshot.put("latencies", latencies);
+        snapshot.put("latencyBounds", bounds);
+
+        return snapshot;
+    }
+}
@@ -1,6 +1,9 @@
 package com.rsb.splyt;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import android.app.Activity;
@@ -40,6 +43,73 @@ public class Splyt
          */
         public static String getDeviceId() { return CoreSubsystem.getDeviceId(); }
 
+        /**
+         * Determines which events SPLYT discards when the events it is holding on the device exceed the storage
+         * quota set with {@link InitParams#setArchiveQuota setArchiveQuota}.
+         */
+        public static enum EvictionPolicy
+        {
+            /**
+             * Discard the oldest events first, regardless of their priority.
+             */
+            OLDEST_FIRST,
+
+            /**
+             * Discard the oldest low priority events first.  High priority events (e.g., purchases, sessions and new
+             * users or devices) are only discarded once no low priority events remain.  This is the default.
+             */
+            LOWEST_PRIORITY_FIRST,
+
+            /**
+             * Thin out the oldest low priority events by discarding every other one, so that a sample of them is still
+             * reported.  High priority events are only discarded once no low priority events remain.
+             */
+            SAMPLE_DOWN
+        }
+
+        /**
+         * Determines how hard SPLYT tries to keep the events it has yet to send from being lost should the app's process be
+         * killed while it is in the foreground.  See {@link InitParams#setDurability setDurability}.
+         */
+        public static enum Durability
+        {
+            /**
+             * Events are held in memory and only committed to the device's storage when the app is put into the background.
+             * This is the cheapest level and the default.
+             */
+            MEMORY,
+
+            /**
+             * Events are committed (and synced) to the device's storage in groups, as configured with
+             * {@link InitParams#setGroupCommit setGroupCommit}.
+             */
+            GROUP_COMMIT,
+
+            /**
+             * Like {@link #GROUP_COMMIT}, but high priority events (e.g., purchases) are committed and synced as soon as
+             * they are stored, before SPLYT attempts to send them.
+             */
+            SYNC_PRIORITY
+        }
+
+        /**
+         * Determines how SPLYT stores the events it has yet to send on the device.  See {@link InitParams#setStorageEngine setStorageEngine}.
+         */
+        public static enum StorageEngine
+        {
+            /**
+             * Each bin of events is stored in a file of its own in the app's internal storage.  This is the default.
+             */
+            FILES,
+
+            /**
+             * Bins of events are stored in a SQLite database in write-ahead logging mode, and the writes made together are committed
+             * in a single transaction.  This does less storage I/O than {@link #FILES} when events are archived or discarded in bulk,
+             * or committed with a {@link Durability durability level} other than {@link Durability#MEMORY}.
+             */
+            SQLITE
+        }
+
         /**
          * A helper class that provides information used to initialize SPLYT. Use the factory method
          * {@link Splyt.Core#createInitParams createInitParams} to create an instance of this class.
@@ -56,6 +126,27 @@ public class Splyt
             private int mReqTimeout = SplytConstants.DEFAULT_REQUEST_TIMEOUT;
             private String mHost = DEFAULT_DATACOLLECTOR_HOSTNAME;
             private boolean mLogEnabled = false;
+            private int mDiagnosticLogSize = 0;
+            private long mMetricsReportInterval = 0;
+            private boolean mLifecycleTrackingEnabled = true;
+            private boolean mStrictModeAuditEnabled = false;
+            private boolean mTraceEnabled = false;
+            private boolean mBackgroundUploadEnabled = false;
+            private boolean mBackgroundUploadRequiresUnmetered = true;
+            private boolean mBackgroundUploadRequiresCharging = false;
+            private boolean mBackgroundUploadRequiresBatteryNotLow = true;
+            private long mArchiveQuota = SplytConstants.DEFAULT_ARCHIVE_QUOTA;
+            private EvictionPolicy mEvictionPolicy = EvictionPolicy.LOWEST_PRIORITY_FIRST;
+            private long mMemoryBudget = SplytConstants.DEFAULT_MEMORY_BUDGET;
+            private boolean mCompressedUploadsEnabled = false;
+            private Durability mDurability = Durability.MEMORY;
+            private StorageEngine mStorageEngine = StorageEngine.FILES;
+            private int mGroupCommitInterval = SplytConstants.DEFAULT_GROUP_COMMIT_INTERVAL;
+            private int mGroupCommitEventCount = SplytConstants.DEFAULT_GROUP_COMMIT_EVENT_COUNT;
+            private long mDefaultTimeToLive = 0;
+            private Map<String, Long> mCategoryTimeToLive = new HashMap<String, Long>();
+            private Map<String, EventAggregator.Rollup> mRollups = new HashMap<String, EventAggregator.Rollup>();
+            private int mRollupWindow = SplytConstants.DEFAULT_ROLLUP_WINDOW;
             private String mSDKName = "android";
             private String mSDKVersion = "5.0.0";
 
@@ -152,6 +243,348 @@ public class Splyt
                 return this;
             }
 
+            /**
+             * Specifies how many of SPLYT's most recent log messages to keep in memory (default: `0`, i.e., none).
+             * <p>
+             * The messages are kept whether or not logging to the device log is enabled (see
+             * {@link InitParams#setLogEnabled setLogEnabled}), and can be retrieved with
+             * {@link Splyt.Core#getDiagnosticLog getDiagnosticLog}; e.g., to attach them to a crash or bug report from
+             * a production build. Once the given number of messages has been reached, each new message replaces the
+             * oldest one.
+             *
+             * @param value The number of messages to keep, or `0` to keep none.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setDiagnosticLogSize(int value)
+            {
+                mDiagnosticLogSize = value;
+                return this;
+            }
+
+            /**
+             * Specifies how often SPLYT should report metrics about its own operation (see
+             * {@link Splyt.Core#getMetrics getMetrics}), in milliseconds (default: `0`, i.e., never).
+             * <p>
+             * When enabled, the metrics are reported as a transaction in the `_SPLYT_sdkMetrics` category
+             * at most once per interval. This is intended as a low-frequency health check of SPLYT in the field, so the
+             * interval should be long (e.g., an hour).
+             *
+             * @param value The reporting interval, in milliseconds, or `0` not to report the metrics.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setMetricsReportInterval(long value)
+            {
+                mMetricsReportInterval = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not SPLYT should automatically detect when the app moves between the foreground
+             * and the background (default: `true`). When enabled, SPLYT only pauses once the app as a whole has
+             * been put into the background, rather than every time an activity is paused, and calls to
+             * {@link Splyt.Core#pause pause} and {@link Splyt.Core#resume resume} are ignored.
+             * <p>
+             * <b>Note:</b> Automatic detection requires Android 4.0 (API level 14) or later. On older devices,
+             * {@link Splyt.Core#pause pause} and {@link Splyt.Core#resume resume} must still be called.
+             *
+             * @param value Set to `false` to disable automatic lifecycle tracking.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setLifecycleTrackingEnabled(boolean value)
+            {
+                mLifecycleTrackingEnabled = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not SPLYT should audit itself for disk and network I/O on the main thread
+             * (default: `false`). When enabled, calls into SPLYT made on the main thread run under a
+             * `android.os.StrictMode` thread policy that logs any disk read, disk write or network access
+             * along with its call site. SPLYT also logs an error (with the call site) if any of its own I/O ends
+             * up on the main thread.
+             * <p>
+             * <b>Note:</b> This is a diagnostic aid intended for development builds. Violations are reported in
+             * the device log and require logging to be enabled (see {@link InitParams#setLogEnabled setLogEnabled}).
+             *
+             * @param value Set to `true` to enable the main thread I/O audit.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setStrictModeAuditEnabled(boolean value)
+            {
+                mStrictModeAuditEnabled = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not SPLYT should mark its operations in system traces (default: `false`).
+             * When enabled, work that SPLYT does (e.g., storing and sending events, reading tuning variables and
+             * posting notifications) appears as sections prefixed with `Splyt:` in systrace and Perfetto
+             * traces, and requests in flight appear as async sections, so that their cost can be told apart from the
+             * app's own.
+             * <p>
+             * <b>Note:</b> This is a diagnostic aid intended for profiling. Tracing requires Android 4.3 (API level 18)
+             * or later, and is ignored on older devices.
+             *
+             * @param value Set to `true` to enable tracing.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setTraceEnabled(boolean value)
+            {
+                mTraceEnabled = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not SPLYT should upload any events it has yet to send once the app has been put
+             * into the background (default: `false`). Otherwise, those events are held on the device until the
+             * next time the app is brought into the foreground. The upload is performed under the constraints set
+             * with {@link InitParams#setBackgroundUploadRequiresUnmetered setBackgroundUploadRequiresUnmetered},
+             * {@link InitParams#setBackgroundUploadRequiresCharging setBackgroundUploadRequiresCharging} and
+             * {@link InitParams#setBackgroundUploadRequiresBatteryNotLow setBackgroundUploadRequiresBatteryNotLow}.
+             * <p>
+             * <b>Note:</b> The app's manifest must declare {@link SplytUploadJobService} (used on Android 5.0, API level 21,
+             * and later) and {@link SplytUploadService} (used on older devices), as well as the
+             * `android.permission.ACCESS_NETWORK_STATE` permission.
+             *
+             * @param value Set to `true` to enable background uploads.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setBackgroundUploadEnabled(boolean value)
+            {
+                mBackgroundUploadEnabled = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not background uploads should wait for an unmetered (e.g., Wi-Fi) network connection
+             * (default: `true`).
+             *
+             * @param value Set to `false` to allow background uploads over metered networks.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setBackgroundUploadRequiresUnmetered(boolean value)
+            {
+                mBackgroundUploadRequiresUnmetered = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not background uploads should wait for the device to be charging (default: `false`).
+             *
+             * @param value Set to `true` to only upload in the background while the device is charging.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setBackgroundUploadRequiresCharging(boolean value)
+            {
+                mBackgroundUploadRequiresCharging = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not background uploads should be skipped while the battery is low (default: `true`).
+             *
+             * @param value Set to `false` to allow background uploads even when the battery is low.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setBackgroundUploadRequiresBatteryNotLow(boolean value)
+            {
+                mBackgroundUploadRequiresBatteryNotLow = value;
+                return this;
+            }
+
+            /**
+             * Sets the maximum amount of device storage, in bytes, that SPLYT may use to hold events that it has yet to
+             * send (default: {@link SplytConstants#DEFAULT_ARCHIVE_QUOTA}). Once this is exceeded, events are discarded
+             * according to the policy set with {@link InitParams#setEvictionPolicy setEvictionPolicy}.
+             * <p>
+             * <b>Note:</b> When the device is running low on storage, SPLYT limits itself to a quarter of this quota.
+             *
+             * @param value The storage quota, in bytes.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setArchiveQuota(long value)
+            {
+                mArchiveQuota = value;
+                return this;
+            }
+
+            /**
+             * Sets the maximum amount of heap, in bytes, that SPLYT should use to hold events and tuning variables in memory
+             * (default: {@link SplytConstants#DEFAULT_MEMORY_BUDGET}). Events are spilled to the device's storage early once
+             * they exceed their share of this budget, and only the tuning variables of the current user and device are kept
+             * in memory once they exceed theirs. SPLYT also does both whenever the system asks the app to trim its memory.
+             * <p>
+             * <b>Note:</b> The use of the heap is estimated from the size of the data, so this is a guide rather than a hard limit.
+             * The system's memory callbacks are only observed on API level 14 and above.
+             *
+             * @param value The memory budget, in bytes, or 0 to only respond to the system's memory callbacks.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setMemoryBudget(long value)
+            {
+                mMemoryBudget = value;
+                return this;
+            }
+
+            /**
+             * Sets the policy used to discard events when the storage quota is exceeded
+             * (default: {@link EvictionPolicy#LOWEST_PRIORITY_FIRST}).
+             *
+             * @param value The eviction policy.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setEvictionPolicy(EvictionPolicy value)
+            {
+                mEvictionPolicy = value;
+                return this;
+            }
+
+            /**
+             * Specifies whether or not SPLYT should send events to the data collector gzip-compressed (default: `false`).
+             * Events held on the device are always stored compressed; when this is enabled, they are also uploaded as-is.
+             * <p>
+             * <b>Note:</b> Only enable this if your data collector accepts request bodies with a `Content-Encoding` of `gzip`,
+             * including bodies that consist of multiple gzip members.
+             *
+             * @param value Set to `true` to send compressed requests.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setCompressedUploadsEnabled(boolean value)
+            {
+                mCompressedUploadsEnabled = value;
+                return this;
+            }
+
+            /**
+             * Sets how hard SPLYT tries to keep the events it has yet to send from being lost should the app's process be killed
+             * while it is in the foreground (default: {@link Durability#MEMORY}). Higher levels cost more storage I/O.
+             * <p>
+             * <b>Note:</b> With any level other than {@link Durability#MEMORY}, events that were sent just before the process
+             * was killed may be sent again the next time the app is run.
+             *
+             * @param value The durability level.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setDurability(Durability value)
+            {
+                mDurability = value;
+                return this;
+            }
+
+            /**
+             * Sets how SPLYT stores the events it has yet to send on the device (default: {@link StorageEngine#FILES}).
+             * Any events stored with the other engine (e.g., by a previous version of the app) are moved over the first time
+             * the events are read in.
+             * <p>
+             * <b>Note:</b> If the SQLite database can't be opened, SPLYT falls back to {@link StorageEngine#FILES}.
+             *
+             * @param value The storage engine.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setStorageEngine(StorageEngine value)
+            {
+                mStorageEngine = value;
+                return this;
+            }
+
+            /**
+             * Sets how often events are committed to the device's storage when the durability level is
+             * {@link Durability#GROUP_COMMIT} or {@link Durability#SYNC_PRIORITY}. Events are committed once either limit is reached
+             * (default: {@link SplytConstants#DEFAULT_GROUP_COMMIT_INTERVAL} ms or {@link SplytConstants#DEFAULT_GROUP_COMMIT_EVENT_COUNT} events).
+             *
+             * @param interval The maximum time, in milliseconds, that events go uncommitted.
+             * @param eventCount The maximum number of events that go uncommitted.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setGroupCommit(int interval, int eventCount)
+            {
+                mGroupCommitInterval = interval;
+                mGroupCommitEventCount = eventCount;
+                return this;
+            }
+
+            /**
+             * Sets how long events remain worth sending after they occur (default: `0`, i.e., forever). Events that SPLYT
+             * has been unable to send within this time (e.g., because the device was offline) are discarded rather than sent.
+             * This can be overridden for specific categories with {@link InitParams#setEventTimeToLive(String, long)}.
+             *
+             * @param value The time-to-live, in milliseconds, or `0` if events never expire.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setEventTimeToLive(long value)
+            {
+                mDefaultTimeToLive = value;
+                return this;
+            }
+
+            /**
+             * Sets how long events in a specific category remain worth sending after they occur.  For transactions, the category
+             * is the transaction's category (e.g., `"HeartbeatEvent"`).  Otherwise, it is the name of the underlying data
+             * collector call (e.g., `"datacollector_updateCollection"`).
+             *
+             * @param category The category.
+             * @param value The time-to-live, in milliseconds, or `0` if events in this category never expire.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setEventTimeToLive(String category, long value)
+            {
+                if (null != category)
+                {
+                    mCategoryTimeToLive.put(category, Long.valueOf(value));
+                }
+                return this;
+            }
+
+            /**
+             * Rolls up the transactions in a high-frequency category (e.g., a heartbeat). Rather than sending an event for each
+             * transaction in the category, SPLYT counts them and sends a single aggregate transaction per window (see
+             * {@link InitParams#setRollupWindow setRollupWindow}), with the count in its `_SPLYT_rollupCount` property.
+             * <p>
+             * <b>Note:</b> Only the completion of a transaction (i.e., {@link Instrumentation.Transaction#end end} or
+             * {@link Instrumentation.Transaction#beginAndEnd beginAndEnd}) is rolled up. The beginning and updates of the
+             * transactions in the category aren't sent at all.
+             *
+             * @param category The transaction category.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams addRollup(String category)
+            {
+                return addRollup(category, null);
+            }
+
+            /**
+             * Rolls up the transactions in a high-frequency category, as with {@link InitParams#addRollup(String)}, and
+             * also aggregates a numeric property of the transactions. The aggregate transaction reports the sum, min and max of the
+             * property in its `_SPLYT_rollupSum`, `_SPLYT_rollupMin` and `_SPLYT_rollupMax` properties, and if bounds are given,
+             * a histogram in its `_SPLYT_rollupHistogramBounds` and `_SPLYT_rollupHistogramCounts` properties.
+             *
+             * @param category The transaction category.
+             * @param valueProperty The name of the numeric property to aggregate.
+             * @param histogramBounds The upper bounds of the histogram's buckets (values above the last bound are counted in an extra bucket).
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams addRollup(String category, String valueProperty, double... histogramBounds)
+            {
+                if (null != category)
+                {
+                    mRollups.put(category, new EventAggregator.Rollup(valueProperty, histogramBounds));
+                }
+                return this;
+            }
+
+            /**
+             * Sets the length of the window over which rolled-up transactions are aggregated
+             * (default: {@link SplytConstants#DEFAULT_ROLLUP_WINDOW} ms). The window is also closed whenever the app is paused.
+             *
+             * @param value The window length, in milliseconds.
+             * @return This {@link InitParams InitParams} instance.
+             */
+            public InitParams setRollupWindow(int value)
+            {
+                mRollupWindow = value;
+                return this;
+            }
+
             /**
              * This package-private function overrides the SDK name.  This is useful if implementing an SDK that
              * builds on top of this Android SDK.  The SDK name appears in the SPLYT web site's "SDK debugger" page
@@ -410,6 +843,12 @@ public class Splyt
          */
         public static void init(InitParams initParams, SplytListener listener)
         {
+            StrictModeAudit.setEnabled(initParams.mStrictModeAuditEnabled);
+            SplytTrace.setEnabled(initParams.mTraceEnabled);
+
+            // Start keeping the diagnostic log before anything else so that it covers the whole of initialization
+            DiagnosticLog.setCapacity(initParams.mDiagnosticLogSize);
+
             final InitParams params = initParams;
             final EntityInfo user = (null != params.mUserInfo) ? params.mUserInfo : createUserInfo(null);
             final EntityInfo device = (null != params.mDeviceInfo) ? params.mDeviceInfo : createDeviceInfo();
@@ -419,6 +858,35 @@ public class Splyt
             // This needs to be called before any subsystems are initialized to avoid potential race conditions at startup
             NotificationSubsystem.preinit(params.mActivity, params.Notification.mAlwaysPost, params.Notification.mDisableAutoClear, params.Notification.mReceivedListener);
 
+            // Start tracking foreground/background transitions so that we only pause when the app is truly put into the background
+            if (params.mLifecycleTrackingEnabled && (null != params.mActivity))
+            {
+                LifecycleTracker.start(params.mActivity.getApplication());
+            }
+
+            // Keep the events and tuning variables held in memory within budget, and give them up when the system needs memory
+            MemoryMonitor.setBudget(Math.max(params.mMemoryBudget, 0));
+            if (null != params.mActivity)
+            {
+                MemoryMonitor.start(params.mActivity.getApplication());
+            }
+
+            // Configure the upload of any backlog of events while the app is in the background
+            BackgroundUploader.configure(params.mBackgroundUploadEnabled, params.mBackgroundUploadRequiresUnmetered,
+                params.mBackgroundUploadRequiresCharging, params.mBackgroundUploadRequiresBatteryNotLow);
+
+            // Limit the storage used by events that have yet to be sent
+            EventDepot.setStorageLimits(params.mArchiveQuota, (null != params.mEvictionPolicy) ? params.mEvictionPolicy : EvictionPolicy.LOWEST_PRIORITY_FIRST);
+            EventDepot.setCompressUploads(params.mCompressedUploadsEnabled);
+            EventDepot.setStorageEngine((null != params.mStorageEngine) ? params.mStorageEngine : StorageEngine.FILES);
+            EventDepot.setDurability((null != params.mDurability) ? params.mDurability : Durability.MEMORY,
+                Math.max(params.mGroupCommitInterval, 0), Math.max(params.mGroupCommitEventCount, 1));
+            EventDepot.setTimeToLive(params.mDefaultTimeToLive, params.mCategoryTimeToLive);
+            EventDepot.setMetricsReportInterval(Math.max(params.mMetricsReportInterval, 0));
+
+            // Roll up high-frequency categories into aggregates
+            EventAggregator.configure(params.mRollups, Math.max(params.mRollupWindow, 0));
+
             InstrumentationSubsystem.init();
 
             final SplytListener coreListener = new SplytListener() {
@@ -460,6 +928,46 @@ public class Splyt
             TuningSubsystem.init(params.mActivity, tuningListener);
         }
 
+        /**
+         * Retrieves SPLYT's most recent log messages, as kept in memory when a diagnostic log size is specified
+         * (see {@link InitParams#setDiagnosticLogSize setDiagnosticLogSize}).
+         * <p>
+         * This is intended to be attached to crash or bug reports, to help diagnose problems with SPLYT in
+         * production builds where logging to the device log is disabled.
+         *
+         * @return The messages, oldest first and one per line. Empty if no messages have been kept.
+         */
+        public static String getDiagnosticLog()
+        {
+            return DiagnosticLog.dump();
+        }
+
+        /**
+         * Retrieves a snapshot of metrics about SPLYT's own operation, for diagnostic purposes.
+         * <p>
+         * The snapshot is a map with the following entries:
+         * <ul>
+         * <li>`counters`: a map of running totals, such as `bytesUploaded`, `requestsSent` and
+         *     `requestsFailed`, and the number of events stored, sent, dropped, expired and coalesced in each lane
+         *     (e.g., `eventsBestEffort.sent`).
+         * <li>`gauges`: a map of current values, such as the number of events waiting to be sent in each bin
+         *     (e.g., `holdingBinEvents`), the number and size of the archive files (`archiveFiles` and
+         *     `archiveBytes`) and `jobQueueDepth`. These are updated each time SPLYT processes its events.
+         * <li>`latencies`: a map of durations, in milliseconds, such as how long it takes to send a batch of
+         *     events (`sendBin`) or for an event to be acknowledged by SPLYT once it's reported
+         *     (`eventEnqueueToAck`). Each one is a map of the `count`, `sum` and `max` of the durations,
+         *     and the `counts` of a histogram of them.
+         * <li>`latencyBounds`: the upper bounds of the histogram buckets, in milliseconds. The last bucket counts
+         *     the durations above the last bound.
+         * </ul>
+         *
+         * @return The snapshot.
+         */
+        public static Map<String,Object> getMetrics()
+        {
+            return SdkMetrics.snapshot();
+        }
+
         /**
          * Register a user with SPLYT and make them the currently active user. This can be done at any point when a
          * new user is interacted with by the application. Note that if the active user is known at startup, it is
@@ -511,9 +1019,18 @@ public class Splyt
          * <p>
          * <b>Note:</b> One can still make calls to SPLYT functions even when it is paused, but doing so will trigger
          * reads and writes to internal storage, so it should be done judiciously.
+         * <p>
+         * <b>Note:</b> When automatic lifecycle tracking is active (see {@link InitParams#setLifecycleTrackingEnabled}),
+         * SPLYT pauses itself when the app is put into the background and this call is ignored.
          */
         public static void pause()
         {
+            if (LifecycleTracker.isActive())
+            {
+                Util.logDebug("Lifecycle tracking is active, ignoring call to pause()");
+                return;
+            }
+
             // Pause the event depot
             CoreSubsystem.pause();
         }
@@ -522,9 +1039,18 @@ public class Splyt
          * Resumes SPLYT. This causes SPLYT to read its last known state from internal storage and restart polling for
          * events to send. One would typically call this from the `onResume()` method of any Android
          * Activity that makes calls to SPLYT.
+         * <p>
+         * <b>Note:</b> When automatic lifecycle tracking is active (see {@link InitParams#setLifecycleTrackingEnabled}),
+         * SPLYT resumes itself when the app is brought into the foreground and this call is ignored.
          */
         public static void resume()
         {
+            if (LifecycleTracker.isActive())
+            {
+                Util.logDebug("Lifecycle tracking is active, ignoring call to resume()");
+                return;
+            }
+
             // Resume normal operations in the event depot
             CoreSubsystem.resume();
         }
@@ -559,6 +1085,11 @@ public class Splyt
          * <p>
          * <b>Note:</b> Use the factory method {@link Splyt.Instrumentation#Transaction Transaction} to create an
          * instance of this class.
+         * <p>
+         * <b>Tip:</b> A transaction's properties are cleared once it ends, so for activity that is reported at a high frequency
+         * (e.g., with {@link Transaction#beginAndEnd}), the same instance can be kept and reused rather than creating a new one
+         * each time. Scalar property values (e.g., strings, numbers and booleans) are captured as is, while maps and other
+         * mutable values are copied, which is comparatively expensive.
          */
         public static class Transaction
         {
@@ -568,6 +1099,7 @@ public class Splyt
             protected Double mTimeout = -1.0;
             protected Map<String,Object> mProperties;
             private String mResult = SplytConstants.TXN_SUCCESS;
+            private Batch mBatch;   // The batch this transaction is reported as part of, if any
 
             /**
              * Creates an instance of {@link Transaction}
@@ -609,13 +1141,81 @@ public class Splyt
              */
             public Transaction setProperty(String key, Object value)
             {
-                // Create a dictionary from the key/value
-                Map<String,Object> temp = new HashMap<String,Object>();
-                temp.put(key, value);
+                if (Util.isImmutableValue(value))
+                {
+                    // Nothing the caller can change after the fact, so there's no need to make a copy
+                    mProperties.put(key, value);
+                }
+                else
+                {
+                    // Make our own deep copy of what's passed in so that the data doesn't mutate before it's actually sent
+                    Object copy = Util.deepCopy(value);
+                    if (null != copy)
+                    {
+                        mProperties.put(key, copy);
+                    }
+                }
+
+                return this;
+            }
+
+            /**
+             * Report a single piece of known state about the transaction.
+             *
+             * @see Transaction#setProperty(String, Object)
+             *
+             * @param key     The property name.
+             * @param value   The property value.
+             * @return        This {@link Transaction Transaction} instance.
+             */
+            public Transaction setProperty(String key, int value)
+            {
+                mProperties.put(key, Integer.valueOf(value));
+                return this;
+            }
 
-                // Now append these properties
-                setProperties(temp);
+            /**
+             * Report a single piece of known state about the transaction.
+             *
+             * @see Transaction#setProperty(String, Object)
+             *
+             * @param key     The property name.
+             * @param value   The property value.
+             * @return        This {@link Transaction Transaction} instance.
+             */
+            public Transaction setProperty(String key, long value)
+            {
+                mProperties.put(key, Long.valueOf(value));
+                return this;
+            }
 
+            /**
+             * Report a single piece of known state about the transaction.
+             *
+             * @see Transaction#setProperty(String, Object)
+             *
+             * @param key     The property name.
+             * @param value   The property value.
+             * @return        This {@link Transaction Transaction} instance.
+             */
+            public Transaction setProperty(String key, double value)
+            {
+                mProperties.put(key, Double.valueOf(value));
+                return this;
+            }
+
+            /**
+             * Report a single piece of known state about the transaction.
+             *
+             * @see Transaction#setProperty(String, Object)
+             *
+             * @param key     The property name.
+             * @param value   The property value.
+             * @return        This {@link Transaction Transaction} instance.
+             */
+            public Transaction setProperty(String key, boolean value)
+            {
+                mProperties.put(key, Boolean.valueOf(value));
                 return this;
             }
 
@@ -642,6 +1242,20 @@ public class Splyt
                 return this;
             }
 
+            // Hand the current properties off to an event.  If there are none, we hand off a shared empty map and keep our own,
+            // rather than allocating a new one for the next event
+            private Map<String,Object> takeProperties()
+            {
+                if (mProperties.isEmpty())
+                {
+                    return Collections.<String,Object>emptyMap();
+                }
+
+                // Note that we create a new HashMap as opposed to clearing the objects as those are still being referenced by the event that has yet to be sent
+                Map<String,Object> properties = mProperties;
+                mProperties = new HashMap<String,Object>();
+                return properties;
+            }
 
             /**
              * Send telemetry to report the beginning of a transaction.
@@ -655,11 +1269,8 @@ public class Splyt
              */
             public void begin()
             {
-                InstrumentationSubsystem.beginTransaction(mCategory, mTimeoutMode, mTimeout, mTransactionId, mProperties);
-
                 // Clear the properties so we don't waste bandwidth by sending them again on update/end
-                // Note that we create a new HashMap as opposed to clearing the objects as those are still being referenced by the event that has yet to be sent
-                mProperties = new HashMap<String,Object>();
+                InstrumentationSubsystem.beginTransaction(mCategory, mTimeoutMode, mTimeout, mTransactionId, takeProperties(), mBatch);
             }
 
             /**
@@ -695,11 +1306,8 @@ public class Splyt
              */
             public void update(Integer progress)
             {
-                InstrumentationSubsystem.updateTransaction(mCategory, progress, mTransactionId, mProperties);
-
                 // Clear the properties so we don't waste bandwidth by sending them again on end
-                // Note that we create a new HashMap as opposed to removing the objects as those are still being referenced by the event that has yet to be sent
-                mProperties = new HashMap<String,Object>();
+                InstrumentationSubsystem.updateTransaction(mCategory, progress, mTransactionId, takeProperties(), mBatch);
             }
 
             /**
@@ -710,11 +1318,8 @@ public class Splyt
              */
             public void end()
             {
-                InstrumentationSubsystem.endTransaction(mCategory, mResult, mTransactionId, mProperties);
-
                 // Clear the properties in case this transaction happens to be reused.  If so, we expect new properties to be set
-                // Note that we create a new HashMap as opposed to removing the objects as those are still being referenced by the event that has yet to be sent
-                mProperties = new HashMap<String,Object>();
+                InstrumentationSubsystem.endTransaction(mCategory, mResult, mTransactionId, takeProperties(), mBatch);
             }
 
             /**
@@ -804,6 +1409,190 @@ public class Splyt
             return new Transaction(category, transactionId);
         }
 
+        /**
+         * Collects transactions and state updates so that they can be submitted to SPLYT as a single unit.
+         * <p>
+         * This is useful when reporting many events at once, e.g., when replaying the moves of a level that was
+         * played offline. Each event is timestamped as it's added to the batch, but nothing is stored until
+         * {@link Batch#submit} is called, at which point the whole batch is handed over at once rather than
+         * event-by-event. As long as the batch isn't larger than a single upload, its events are sent together.
+         * <p>
+         * Report transactions as part of the batch by creating them with {@link Batch#Transaction Transaction}, or
+         * by binding an existing transaction (e.g., one of the {@link SplytPlugins}) with {@link Batch#bind}.
+         * <p>
+         * <b>Note:</b> Use the factory method {@link Splyt.Instrumentation#Batch Batch} to create an instance of this
+         * class. A batch is not thread-safe, so it should only be used from one thread at a time.
+         */
+        public static class Batch
+        {
+            private List<Map<String,Object>> mEvents = new ArrayList<Map<String,Object>>();
+            private List<EventDepot.Lane> mLanes = new ArrayList<EventDepot.Lane>();
+            private boolean mInitialized = true;
+
+            Batch()
+            {
+            }
+
+            // Adds an event to the batch.  A null event means that Splyt wasn't initialized when it was reported
+            void add(Map<String,Object> event, EventDepot.Lane lane)
+            {
+                if (null != event)
+                {
+                    mEvents.add(event);
+                    mLanes.add(lane);
+                }
+                else
+                {
+                    mInitialized = false;
+                }
+            }
+
+            /**
+             * Creates a {@link Splyt.Instrumentation.Transaction} that is reported as part of this batch.
+             *
+             * @param  category  The category of the created transaction. Should be a descriptive name for the app
+             *                   activity that is modeled by the transaction.
+             *
+             * @return The created {@link Splyt.Instrumentation.Transaction} instance.
+             */
+            public Transaction Transaction(String category)
+            {
+                return bind(new Transaction(category, null));
+            }
+
+            /**
+             * Creates a {@link Splyt.Instrumentation.Transaction} that is reported as part of this batch.
+             *
+             * @param  category       The category of the created transaction. Should be a descriptive name for the app
+             *                        activity that is modeled by the transaction.
+             * @param  transactionId  A unique identifier for the created transaction. This is only required in situations
+             *                        where multiple transactions in the same category may exist for the same user or
+             *                        device at the same time.
+             *
+             * @return The created {@link Splyt.Instrumentation.Transaction} instance.
+             */
+            public Transaction Transaction(String category, String transactionId)
+            {
+                return bind(new Transaction(category, transactionId));
+            }
+
+            /**
+             * Binds a transaction to this batch, so that it's subsequently reported as part of it.
+             *
+             * @param  transaction  The transaction to bind.
+             *
+             * @return The transaction, for convenience.
+             */
+            public <T extends Transaction> T bind(T transaction)
+            {
+                ((Transaction) transaction).mBatch = this;
+                return transaction;
+            }
+
+            /**
+             * Updates state information about the active user as part of this batch.
+             *
+             * @param  properties  A collection of properties that describe the current state of the active user.
+             *
+             * @return This batch, for chaining.
+             */
+            public Batch updateUserState(Map<String,Object> properties)
+            {
+                // Make our own deep copy of what's passed in so that the data doesn't mutate before it's actually sent
+                Map<String,Object> copy = Util.deepCopy(properties);
+
+                if (null != copy)
+                {
+                    InstrumentationSubsystem.updateUserState(copy, this);
+                }
+
+                return this;
+            }
+
+            /**
+             * Updates state information about the device that the app is running on as part of this batch.
+             *
+             * @param  properties  A collection of properties that describe the current state of the device.
+             *
+             * @return This batch, for chaining.
+             */
+            public Batch updateDeviceState(Map<String,Object> properties)
+            {
+                // Make our own deep copy of what's passed in so that the data doesn't mutate before it's actually sent
+                Map<String,Object> copy = Util.deepCopy(properties);
+
+                if (null != copy)
+                {
+                    InstrumentationSubsystem.updateDeviceState(copy, this);
+                }
+
+                return this;
+            }
+
+            /**
+             * Updates a collection balance for the active user as part of this batch.
+             *
+             * @param  name                 The application-supplied name for the collection.
+             * @param  balance              The new balance of the collection.
+             * @param  balanceModification  The amount that the balance is changing by (if known).
+             * @param  isCurrency           `true` if the collection represents an in-app virtual currency;
+             *                              `false` otherwise.
+             *
+             * @return This batch, for chaining.
+             */
+            public Batch updateCollection(String name, Double balance, Double balanceModification, Boolean isCurrency)
+            {
+                InstrumentationSubsystem.updateCollection(name, balance, balanceModification, isCurrency, this);
+                return this;
+            }
+
+            /**
+             * @return The number of events in the batch that have yet to be submitted.
+             */
+            public int size()
+            {
+                return mEvents.size();
+            }
+
+            /**
+             * Submits the events in the batch to SPLYT as a single unit.
+             * <p>
+             * The batch is emptied, so it (and any transactions bound to it) can go on being used to report another batch.
+             *
+             * @return {@link SplytError#Success} if the events were submitted, or {@link SplytError#ErrorNotInitialized}
+             *         if SPLYT wasn't initialized when some of them were reported.
+             */
+            public SplytError submit()
+            {
+                SplytError ret = mInitialized ? SplytError.Success : SplytError.ErrorNotInitialized;
+                if (!mEvents.isEmpty())
+                {
+                    // Hand the lists over to the depot and start new ones, rather than copying them
+                    SplytError stored = InstrumentationSubsystem.submitBatch(mEvents, mLanes);
+                    if (SplytError.Success != stored)
+                    {
+                        ret = stored;
+                    }
+
+                    mEvents = new ArrayList<Map<String,Object>>();
+                    mLanes = new ArrayList<EventDepot.Lane>();
+                }
+
+                mInitialized = true;
+                return ret;
+            }
+        }
+
+        /**
+         * Factory method used to create an instance of {@link Splyt.Instrumentation.Batch}.
+         *
+         * @return The created {@link Splyt.Instrumentation.Batch} instance.
+         */
+        public static Batch Batch()
+        {
+            return new Batch();
+        }
+
         /**
          * Updates state information about the active user.
          *
@@ -816,7 +1605,7 @@ public class Splyt
 
             if (null != copy)
             {
-                InstrumentationSubsystem.updateUserState(properties);
+                InstrumentationSubsystem.updateUserState(copy, null);
             }
         }
 
@@ -832,7 +1621,7 @@ public class Splyt
 
             if (null != copy)
             {
-                InstrumentationSubsystem.updateDeviceState(properties);
+                InstrumentationSubsystem.updateDeviceState(copy, null);
             }
         }
 
@@ -847,7 +1636,7 @@ public class Splyt
          */
         public static void updateCollection(String name, Double balance, Double balanceModification, Boolean isCurrency)
         {
-            InstrumentationSubsystem.updateCollection(name, balance, balanceModification, isCurrency);
+            InstrumentationSubsystem.updateCollection(name, balance, balanceModification, isCurrency, null);
         }
     }
 
@@ -13,6 +13,41 @@ public class SplytConstants
      */
     public static final int DEFAULT_REQUEST_TIMEOUT = 3000; // in ms
 
+    /**
+     * The default limit on the device storage used to hold events that have yet to be sent to SPLYT, in bytes.
+     *
+     * @see Splyt.Core.InitParams#setArchiveQuota
+     */
+    public static final long DEFAULT_ARCHIVE_QUOTA = 2 * 1024 * 1024; // in bytes
+
+    /**
+     * The default limit on the heap used by SPLYT to hold events and tuning variables, in bytes.
+     *
+     * @see Splyt.Core.InitParams#setMemoryBudget
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 512 * 1024; // in bytes
+
+    /**
+     * The default maximum time that events stored by SPLYT go uncommitted to the device's storage, when committing them in groups.
+     *
+     * @see Splyt.Core.InitParams#setGroupCommit
+     */
+    public static final int DEFAULT_GROUP_COMMIT_INTERVAL = 2000; // in ms
+
+    /**
+     * The default maximum number of events stored by SPLYT that go uncommitted to the device's storage, when committing them in groups.
+     *
+     * @see Splyt.Core.InitParams#setGroupCommit
+     */
+    public static final int DEFAULT_GROUP_COMMIT_EVENT_COUNT = 20;
+
+    /**
+     * The default length of the window over which the transactions in rolled-up categories are aggregated.
+     *
+     * @see Splyt.Core.InitParams#setRollupWindow
+     */
+    public static final int DEFAULT_ROLLUP_WINDOW = 60000; // in ms
+
     /**
      * The string `success`, which represents successful completion of a
      * {@link Splyt.Instrumentation.Transaction}.  If no result is specified when ending a
@@ -1,5 +1,6 @@
 package com.rsb.splyt;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -39,7 +40,7 @@ public class SplytPlugins
 	 */
     public static class Session
     {
-        private static final String CATEGORY_NAME = "session";
+        static final String CATEGORY_NAME = "session";
         private static final Double DEFAULT_TIMEOUT = Double.valueOf(10 * 86400);   // 10 days
         private static final String DEFAULT_TIMEOUT_MODE = SplytConstants.TIMEOUT_MODE_ANY;
 
@@ -95,7 +96,7 @@ public class SplytPlugins
 	 */
     public static class Purchase
     {
-        private static final String CATEGORY_NAME = "purchase";
+        static final String CATEGORY_NAME = "purchase";
         private static final Double DEFAULT_TIMEOUT = Double.valueOf(60);   // 60 seconds
 
         /**
@@ -127,10 +128,8 @@ public class SplytPlugins
              */
             public Transaction setPrice(String currency, Double price)
             {
-                Map<String, Double> priceMap = new HashMap<String, Double>();
-                priceMap.put(Util.getValidCurrencyString(currency), price);
-
-                mProperties.put("price", priceMap);
+                // Note that this map is never modified, so a singleton will do
+                mProperties.put("price", Collections.singletonMap(Util.getValidCurrencyString(currency), price));
 
                 return this;
 
@@ -240,6 +239,58 @@ public class SplytPlugins
             return thisObj;
         }
 
+        /**
+         * @see Splyt.Instrumentation.Transaction#setProperty(String, int)
+         */
+        @Override
+        public T setProperty(String key, int value)
+        {
+            super.setProperty(key, value);
+
+            @SuppressWarnings("unchecked")
+            T thisObj = (T) this;
+            return thisObj;
+        }
+
+        /**
+         * @see Splyt.Instrumentation.Transaction#setProperty(String, long)
+         */
+        @Override
+        public T setProperty(String key, long value)
+        {
+            super.setProperty(key, value);
+
+            @SuppressWarnings("unchecked")
+            T thisObj = (T) this;
+            return thisObj;
+        }
+
+        /**
+         * @see Splyt.Instrumentation.Transaction#setProperty(String, double)
+         */
+        @Override
+        public T setProperty(String key, double value)
+        {
+            super.setProperty(key, value);
+
+            @SuppressWarnings("unchecked")
+            T thisObj = (T) this;
+            return thisObj;
+        }
+
+        /**
+         * @see Splyt.Instrumentation.Transaction#setProperty(String, boolean)
+         */
+        @Override
+        public T setProperty(String key, boolean value)
+        {
+            super.setProperty(key, value);
+
+            @SuppressWarnings("unchecked")
+            T thisObj = (T) this;
+            return thisObj;
+        }
+
         /**
          * @see Splyt.Instrumentation.Transaction#setProperties
          */
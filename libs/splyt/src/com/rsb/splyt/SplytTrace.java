@@ -0,0 +1,165 @@
+package com.rsb.splyt;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * <p>This is an internal class that marks the SDK's operations in system traces (i.e., systrace and Perfetto), so that
+ * the time they take can be told apart from the app's own work when profiling.</p>
+ *
+ * <p>Tracing is opt-in and requires Android 4.3 (API level 18) or later.  When it's disabled, each call costs a single
+ * check of a flag.  Sections must be ended on the thread that began them, in the reverse order in which they were begun,
+ * so they should always be ended in a {@code finally} block.  Operations that span threads (e.g., requests in flight) are
+ * marked with async sections instead, which are identified by a cookie and may be ended on any thread.</p>
+ *
+ * @see Splyt.Core.InitParams#setTraceEnabled
+ */
+class SplytTrace
+{
+    // The names of the sections.  These are constants so that nothing is built to mark a section
+    static final String SEND_EVENT          = "Splyt:sendEvent";
+    static final String PROCESS_BINS        = "Splyt:processBins";
+    static final String READ_ARCHIVE        = "Splyt:readArchive";
+    static final String WRITE_ARCHIVE       = "Splyt:writeArchive";
+    static final String ENCODE_JSON         = "Splyt:encodeJson";
+    static final String DECODE_JSON         = "Splyt:decodeJson";
+    static final String HTTP_REQUEST        = "Splyt:httpRequest";
+    static final String GET_VAR             = "Splyt:getVar";
+    static final String FLUSH_TUNING_CACHE  = "Splyt:flushTuningCache";
+    static final String POST_NOTIFICATION   = "Splyt:postNotification";
+
+    // The async section methods.  These are public as of Android 10 (API level 29), but exist as hidden methods from API level 18
+    // that take a trace tag, so we look them up by reflection
+    private static final long TRACE_TAG_APP = 1L << 12;
+    private static volatile Method sBeginAsyncSection;
+    private static volatile Method sEndAsyncSection;
+    private static volatile boolean sAsyncTakesTag;
+
+    private static final AtomicInteger sNextCookie = new AtomicInteger(1);
+
+    private static volatile boolean sEnabled = false;
+
+    static synchronized void setEnabled(boolean value)
+    {
+        sEnabled = value && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2);
+        if (sEnabled && (null == sBeginAsyncSection))
+        {
+            findAsyncSectionMethods();
+        }
+    }
+
+    static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+
+    /**
+     * Begin a section on the current thread.
+     *
+     * @param name  The name of the section
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void begin(String name)
+    {
+        if (sEnabled)
+        {
+            Trace.beginSection(name);
+        }
+    }
+
+    /**
+     * End the section most recently begun on the current thread.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end()
+    {
+        if (sEnabled)
+        {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Begin an async section.
+     *
+     * @param name  The name of the section
+     *
+     * @return The cookie to pass to {@link #endAsync}, or 0 if tracing is disabled
+     */
+    static int beginAsync(String name)
+    {
+        if (!sEnabled || (null == sBeginAsyncSection))
+        {
+            return 0;
+        }
+
+        int cookie = sNextCookie.getAndIncrement();
+        invokeAsync(sBeginAsyncSection, name, cookie);
+        return cookie;
+    }
+
+    /**
+     * End an async section.
+     *
+     * @param name      The name the section was begun with
+     * @param cookie    The cookie returned by {@link #beginAsync} (ignored if 0)
+     */
+    static void endAsync(String name, int cookie)
+    {
+        if ((0 != cookie) && (null != sEndAsyncSection))
+        {
+            invokeAsync(sEndAsyncSection, name, cookie);
+        }
+    }
+
+    private static void invokeAsync(Method method, String name, int cookie)
+    {
+        try
+        {
+            if (sAsyncTakesTag)
+            {
+                method.invoke(null, Long.valueOf(TRACE_TAG_APP), name, Integer.valueOf(cookie));
+            }
+            else
+            {
+                method.invoke(null, name, Integer.valueOf(cookie));
+            }
+        }
+        catch (Exception e)
+        {
+            // Not worth failing over, so stop trying
+            Util.logError("Unable to mark an async trace section", e);
+            sBeginAsyncSection = null;
+            sEndAsyncSection = null;
+        }
+    }
+
+    private static void findAsyncSectionMethods()
+    {
+        try
+        {
+            sBeginAsyncSection = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+            sEndAsyncSection = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            sAsyncTakesTag = false;
+        }
+        catch (NoSuchMethodException e)
+        {
+            try
+            {
+                sBeginAsyncSection = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                sEndAsyncSection = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+                sAsyncTakesTag = true;
+            }
+            catch (NoSuchMethodException e2)
+            {
+                // Async sections aren't available on this device, but the regular ones still are
+                sBeginAsyncSection = null;
+                sEndAsyncSection = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.rsb.splyt;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.os.PersistableBundle;
+
+/**
+ * Uploads the event backlog from the background on API level 21 (Lollipop) and above.
+ * This job is scheduled by Splyt when the app is put into the background with events yet to be sent
+ * (see {@link Splyt.Core.InitParams#setBackgroundUploadEnabled}).
+ * <p>
+ * To use it, declare the service in your app's manifest:
+ * <pre>
+ *    &lt;service android:name="com.rsb.splyt.SplytUploadJobService"
+ *             android:permission="android.permission.BIND_JOB_SERVICE"
+ *             android:exported="true"/&gt;
+ * </pre>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SplytUploadJobService extends JobService
+{
+    // The upload in progress, if any.  Only accessed on the main thread
+    private EventDepot.DrainJob mDrain;
+
+    @Override
+    public boolean onStartJob(final JobParameters params)
+    {
+        PersistableBundle extras = params.getExtras();
+
+        URL url;
+        try
+        {
+            url = new URL(extras.getString(BackgroundUploader.EXTRA_URL));
+        }
+        catch (MalformedURLException e)
+        {
+            Util.logError("Invalid URL passed to the background upload job");
+            return false;
+        }
+
+        // The JobScheduler has taken care of the network and charging constraints, but we have to check the battery level ourselves
+        boolean requireBatteryNotLow = (0 != extras.getInt(BackgroundUploader.EXTRA_REQUIRE_BATTERY_OK, 1));
+        if (!BackgroundUploader.constraintsMet(this, false, false, requireBatteryNotLow))
+        {
+            // Let the JobScheduler try again later (subject to its backoff policy)
+            // Note that we must return true here, as returning false would end the job before the reschedule is processed
+            jobFinished(params, true);
+            return true;
+        }
+
+        mDrain = EventDepot.drain(getApplicationContext(), url, extras.getInt(BackgroundUploader.EXTRA_REQUEST_TIMEOUT, SplytConstants.DEFAULT_REQUEST_TIMEOUT), new EventDepot.DrainListener() {
+            @Override
+            public void onDrainComplete(boolean backlogCleared)
+            {
+                // If we couldn't send everything, have the JobScheduler try again later
+                // Note that this isn't called if the job was stopped, as the JobScheduler is done with it by then
+                jobFinished(params, !backlogCleared);
+            }
+        });
+
+        // The upload happens on the depot's thread
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        // The constraints are no longer met, so stop uploading once the request in progress is done.  Whatever has been sent so far
+        // stays sent, so just have the JobScheduler try again later
+        if (null != mDrain)
+        {
+            mDrain.cancel();
+            mDrain = null;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package com.rsb.splyt;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+/**
+ * Uploads the event backlog from the background on devices older than API level 21 (Lollipop), where the
+ * {@code JobScheduler} is not available.  The service is started by an inexact alarm set by Splyt when the app is put into
+ * the background with events yet to be sent (see {@link Splyt.Core.InitParams#setBackgroundUploadEnabled}).
+ * <p>
+ * To use it, declare the service in your app's manifest:
+ * <pre>
+ *    &lt;service android:name="com.rsb.splyt.SplytUploadService" android:exported="false"/&gt;
+ * </pre>
+ */
+public class SplytUploadService extends IntentService
+{
+    public SplytUploadService()
+    {
+        super("SplytUploadService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent)
+    {
+        URL url;
+        try
+        {
+            url = new URL(intent.getStringExtra(BackgroundUploader.EXTRA_URL));
+        }
+        catch (MalformedURLException e)
+        {
+            Util.logError("Invalid URL passed to the background upload service");
+            return;
+        }
+
+        boolean backlogCleared = false;
+        if (BackgroundUploader.constraintsMet(this,
+                intent.getBooleanExtra(BackgroundUploader.EXTRA_REQUIRE_UNMETERED, true),
+                intent.getBooleanExtra(BackgroundUploader.EXTRA_REQUIRE_CHARGING, false),
+                intent.getBooleanExtra(BackgroundUploader.EXTRA_REQUIRE_BATTERY_OK, true)))
+        {
+            // The upload happens on the depot's thread, so wait for it here.  This keeps the service (and the process) alive until it's done
+            final CountDownLatch done = new CountDownLatch(1);
+            final boolean[] result = new boolean[1];
+            EventDepot.drain(getApplicationContext(), url, intent.getIntExtra(BackgroundUploader.EXTRA_REQUEST_TIMEOUT, SplytConstants.DEFAULT_REQUEST_TIMEOUT), new EventDepot.DrainListener() {
+                @Override
+                public void onDrainComplete(boolean cleared)
+                {
+                    result[0] = cleared;
+                    done.countDown();
+                }
+            });
+
+            try
+            {
+                done.await();
+                backlogCleared = result[0];
+            }
+            catch (InterruptedException e)
+            {
+                Util.logError("Interrupted while waiting for the background upload to complete");
+            }
+        }
+
+        if (!backlogCleared)
+        {
+            // Either the constraints weren't met or some of the events couldn't be sent, so try again later
+            BackgroundUploader.reschedule(this, intent);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.rsb.splyt;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+
+/**
+ * <p>This is an internal class that stores the {@link EventDepot}'s records as rows of a SQLite database.</p>
+ *
+ * <p>On API level 11 (Honeycomb) and above, the database is put in write-ahead logging (WAL) mode, so a write appends to
+ * the log rather than rewriting pages of the database, and the writes in a batch are committed in a single transaction.
+ * Compared to the file store, this saves a file (and, when syncing, an fsync) per record.</p>
+ *
+ * <p><b>Note:</b> SQLite syncs at commit rather than per record, so whether writes are synced is decided when the store is
+ * opened (see {@link #open}), and the {@code sync} argument of {@link #write} is ignored.</p>
+ */
+class SqliteEventStore implements EventStore
+{
+    static final String DATABASE_NAME = "splyt_events.db";
+
+    private static final String TABLE = "records";
+
+    private SQLiteDatabase mDatabase;
+    private int mBatchDepth;
+
+    /**
+     * @return true if the database has been created (e.g., so that its records can be moved to another store)
+     */
+    static boolean exists(Context context)
+    {
+        return context.getDatabasePath(DATABASE_NAME).exists();
+    }
+
+    @Override
+    public void open(Context context, boolean sync) throws IOException
+    {
+        try
+        {
+            mDatabase = context.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            {
+                mDatabase.enableWriteAheadLogging();
+            }
+
+            // In WAL mode, NORMAL only risks the most recent commits on power loss, never the integrity of the database
+            mDatabase.execSQL("PRAGMA synchronous = " + (sync ? "FULL" : "NORMAL"));
+            mDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (name TEXT PRIMARY KEY, data BLOB NOT NULL, modified INTEGER NOT NULL)");
+        }
+        catch (SQLiteException e)
+        {
+            close();
+            throw new IOException("Unable to open [" + DATABASE_NAME + "]: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (null != mDatabase)
+        {
+            mDatabase.close();
+            mDatabase = null;
+        }
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException
+    {
+        Cursor cursor = query("SELECT data FROM " + TABLE + " WHERE name = ?", name);
+        try
+        {
+            if ((null == cursor) || !cursor.moveToFirst())
+            {
+                throw new FileNotFoundException(name);
+            }
+
+            return new ByteArrayInputStream(cursor.getBlob(0));
+        }
+        finally
+        {
+            if (null != cursor)
+            {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void write(String name, byte[] data, boolean sync) throws IOException
+    {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("data", data);
+        values.put("modified", Long.valueOf(System.currentTimeMillis()));
+
+        try
+        {
+            if (-1 == mDatabase.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE))
+            {
+                throw new IOException("Unable to write [" + name + "]");
+            }
+        }
+        catch (SQLiteException e)
+        {
+            throw new IOException("Unable to write [" + name + "]: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean delete(String name)
+    {
+        try
+        {
+            return mDatabase.delete(TABLE, "name = ?", new String[] { name }) > 0;
+        }
+        catch (SQLiteException e)
+        {
+            Util.logError("Unable to delete [{}]: {}", name, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public long size(String name)
+    {
+        return queryLong("SELECT length(data) FROM " + TABLE + " WHERE name = ?", name);
+    }
+
+    @Override
+    public long lastModified(String name)
+    {
+        return queryLong("SELECT modified FROM " + TABLE + " WHERE name = ?", name);
+    }
+
+    @Override
+    public String[] list(String prefix)
+    {
+        List<String> names = new ArrayList<String>();
+
+        // Note that we match the prefix with substr() rather than LIKE, as LIKE treats '_' as a wildcard
+        Cursor cursor = query("SELECT name FROM " + TABLE + " WHERE substr(name, 1, length(?1)) = ?1", prefix);
+        if (null != cursor)
+        {
+            try
+            {
+                while (cursor.moveToNext())
+                {
+                    names.add(cursor.getString(0));
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public void beginBatch()
+    {
+        if (0 == mBatchDepth++)
+        {
+            mDatabase.beginTransaction();
+        }
+    }
+
+    @Override
+    public void endBatch()
+    {
+        if (0 == --mBatchDepth)
+        {
+            // Commit whatever made it in.  A record that failed to be written is reported to the depot as it would be outside of a batch
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+        }
+    }
+
+    private Cursor query(String sql, String arg)
+    {
+        try
+        {
+            return mDatabase.rawQuery(sql, new String[] { arg });
+        }
+        catch (SQLiteException e)
+        {
+            Util.logError("Unable to query [{}]: {}", arg, e.getMessage());
+            return null;
+        }
+    }
+
+    private long queryLong(String sql, String arg)
+    {
+        Cursor cursor = query(sql, arg);
+        if (null == cursor)
+        {
+            return 0;
+        }
+
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.rsb.splyt;
+
+import android.os.StrictMode;
+
+/**
+ * <p>This is an internal class that implements the SDK's (opt-in) main thread I/O audit mode.
+ * When enabled, every SDK entry point that runs on the main thread does so under a {@link StrictMode} thread policy
+ * that detects disk reads, disk writes and network access, and logs any violation along with its stack trace.
+ * In addition, the SDK's own I/O paths report (with the call site) whenever they find themselves on the main thread.</p>
+ *
+ * <p>The policy is applied by the subsystems' entry points (and the HTTP callbacks), so the public API is covered without
+ * each of its methods having to apply it.  Entry points may be nested, in which case the inner one simply builds on the
+ * policy installed by the outer one, and restores it on exit.</p>
+ *
+ * <p>This is intended as a development aid and should not be enabled in release builds.</p>
+ *
+ * @see Splyt.Core.InitParams#setStrictModeAuditEnabled
+ */
+class StrictModeAudit
+{
+    private static volatile boolean sEnabled = false;
+
+    static void setEnabled(boolean value)
+    {
+        sEnabled = value;
+    }
+
+    static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+
+    /**
+     * Called on entry to an SDK API.  If auditing is enabled and we're on the main thread, this installs a thread
+     * policy that flags any disk or network I/O.
+     *
+     * @return The policy that was in effect before, which must be passed to {@link #exit}.  Null if auditing is disabled
+     *         or we're not on the main thread, in which case nothing was installed.
+     */
+    static StrictMode.ThreadPolicy enter()
+    {
+        if (!sEnabled || !Util.isMainThread())
+        {
+            // Nothing to audit, so don't touch the thread policy at all
+            return null;
+        }
+
+        // Build on top of the app's own policy so we don't lose any detection it has set up
+        StrictMode.ThreadPolicy oldPolicy = StrictMode.getThreadPolicy();
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder(oldPolicy)
+            .detectDiskReads()
+            .detectDiskWrites()
+            .detectNetwork()
+            .penaltyLog()
+            .build());
+
+        return oldPolicy;
+    }
+
+    /**
+     * Called on exit from an SDK API to restore the thread policy returned by {@link #enter}.
+     *
+     * @param oldPolicy The policy to restore.  Nothing is done if null (i.e., {@link #enter} didn't install a policy)
+     */
+    static void exit(StrictMode.ThreadPolicy oldPolicy)
+    {
+        if (null != oldPolicy)
+        {
+            StrictMode.setThreadPolicy(oldPolicy);
+        }
+    }
+
+    /**
+     * Reports any disk or network I/O that the SDK is about to perform on the main thread.
+     *
+     * @param operation A short description of the I/O
+     */
+    static void checkNotMainThread(String operation)
+    {
+        if (sEnabled && Util.isMainThread())
+        {
+            // The exception is never thrown, it simply captures the call site
+            Util.logError("[Audit] " + operation + " performed on the main thread", new Exception("Call site"));
+        }
+    }
+}
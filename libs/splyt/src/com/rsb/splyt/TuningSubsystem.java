@@ -1,17 +1,25 @@
 package com.rsb.splyt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
+import android.os.StrictMode;
 
 import com.rsb.gson.Gson;
 import com.rsb.gson.JsonObject;
@@ -31,7 +39,8 @@ class TuningSubsystem
 
     private static Context sContext;
 
-    private static TuningValues sCacheVars = new TuningValues();
+    // Note that this is replaced on the I/O thread when the cache is read in
+    private static volatile TuningValues sCacheVars = new TuningValues();
 
     private static boolean sInitialized;
 
@@ -40,88 +49,128 @@ class TuningSubsystem
      *
      * @param context Application context to use for caching tuning variable information
      */
-    static void init(Context context, SplytListener listener)
+    static void init(Context context, final SplytListener listener)
     {
-        if (!sInitialized)
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            sContext = context;
-
-            try
+            if (!sInitialized)
             {
-                // Pull in the state data if there is any
-                FileInputStream fis = sContext.openFileInput(CACHE_FILENAME);
-                ObjectInputStream inputStream = new ObjectInputStream(fis);
-                sCacheVars = (TuningValues) inputStream.readObject();
+                sContext = context;
 
-                fis.close();
-            }
-            catch (Exception ex)
-            {
-                // Some error occurred reading the cache file.  It may be that the file simply doesn't exist.
-                // In any case, we can handle this situation, so carry on
+                // Reading the cache file is slow, so do it in the background and call the listener back on the main thread when done
+                Util.runOnIoThread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        readCache();
+
+                        Util.runOnMainThread(new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                sInitialized = true;
+                                listener.onComplete(SplytError.Success);
+                            }
+                        });
+                    }
+                });
             }
-            finally
+            else
             {
-                sInitialized = true;
+                listener.onComplete(SplytError.Success);
             }
         }
+        finally
+        {
+            StrictModeAudit.exit(oldPolicy);
+        }
+    }
 
-        listener.onComplete(SplytError.Success);
+    private static void readCache()
+    {
+        StrictModeAudit.checkNotMainThread("Tuning cache read");
+
+        try
+        {
+            // Pull in the state data if there is any
+            FileInputStream fis = sContext.openFileInput(CACHE_FILENAME);
+            ObjectInputStream inputStream = new ObjectInputStream(fis);
+            TuningValues cacheVars = (TuningValues) inputStream.readObject();
+            cacheVars.estimateHeap();
+            sCacheVars = cacheVars;
+
+            fis.close();
+        }
+        catch (Exception ex)
+        {
+            // Some error occurred reading the cache file.  It may be that the file simply doesn't exist.
+            // In any case, we can handle this situation, so carry on
+        }
     }
 
     static void refresh(SplytListener listener)
     {
-        SplytError ret = SplytError.Success;
-
-        if ((CoreSubsystem.InitializationState.Initialized == CoreSubsystem.getInitializationState()) && (null != sContext))
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        try
         {
-            String url = CoreSubsystem.getHost() + "/isos-personalization/ws/interface/tuner_refresh" + CoreSubsystem.getQueryParms();
+            SplytError ret = SplytError.Success;
 
-            List<Object> allArgs = new ArrayList<Object>(4);
-            Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
-            allArgs.add(curTimeStamp);
-            allArgs.add(curTimeStamp);
-            allArgs.add(CoreSubsystem.getDeviceId());
-            allArgs.add(CoreSubsystem.getRegisteredUsers());
-
-            final SplytListener theListener = listener;
-            RequestListener requestListener = new RequestListener() {
-                @Override
-                public void onComplete(RequestResult result) {
-                    SplytError err = parseRefreshResponse(result);
-                    if(null != theListener)
-                    {
-                        theListener.onComplete(err);
+            if ((CoreSubsystem.InitializationState.Initialized == CoreSubsystem.getInitializationState()) && (null != sContext))
+            {
+                String url = CoreSubsystem.getHost() + "/isos-personalization/ws/interface/tuner_refresh" + CoreSubsystem.getQueryParms();
+
+                List<Object> allArgs = new ArrayList<Object>(4);
+                Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
+                allArgs.add(curTimeStamp);
+                allArgs.add(curTimeStamp);
+                allArgs.add(CoreSubsystem.getDeviceId());
+                allArgs.add(CoreSubsystem.getRegisteredUsers());
+
+                final SplytListener theListener = listener;
+                RequestListener requestListener = new RequestListener() {
+                    @Override
+                    public void onComplete(RequestResult result) {
+                        SdkMetrics.recordLatency(SdkMetrics.LATENCY_TUNER_REFRESH, result.elapsed);
+                        SplytError err = parseRefreshResponse(result);
+                        if(null != theListener)
+                        {
+                            theListener.onComplete(err);
+                        }
                     }
-                }
-            };
+                };
 
-            try
-            {
-                // Create an (async) request to retrieve a device Id.  The callback will be triggered when the request is completed
-                new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), new Gson().toJson(allArgs)).executeAsync(requestListener);
+                try
+                {
+                    // Create an (async) request to retrieve a device Id.  The callback will be triggered when the request is completed
+                    new HttpRequest(new URL(url), CoreSubsystem.getReqTimeout(), Util.getGson().toJson(allArgs)).executeAsync(requestListener);
+                }
+                catch (MalformedURLException e)
+                {
+                    Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values", e);
+                    ret = SplytError.ErrorInvalidArgs;
+                }
+                catch (Exception e)
+                {
+                    Util.logError("Exception during HttpRequest", e);
+                    ret = SplytError.ErrorGeneric;
+                }
             }
-            catch (MalformedURLException e)
+            else
             {
-                Util.logError("MalformedURLException during the HttpRequest.  Check your host and customerId values", e);
-                ret = SplytError.ErrorInvalidArgs;
+                Util.logError("Cannot refresh tuning because Splyt is not initialized");
+                ret = SplytError.ErrorNotInitialized;
             }
-            catch (Exception e)
+
+            // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
+            if(SplytError.Success != ret && null != listener)
             {
-                Util.logError("Exception during HttpRequest", e);
-                ret = SplytError.ErrorGeneric;
+                listener.onComplete(ret);
             }
         }
-        else
+        finally
         {
-            Util.logError("Cannot refresh tuning because Splyt is not initialized");
-            ret = SplytError.ErrorNotInitialized;
-        }
-
-        // if we have an error at this point, then the listener will not get called through the HttpRequest, so call it now
-        if(SplytError.Success != ret && null != listener)
-        {
-            listener.onComplete(ret);
+            StrictModeAudit.exit(oldPolicy);
         }
     }
 
@@ -138,44 +187,156 @@ class TuningSubsystem
      */
     public static Object getVar(String userId, String deviceId, String varName, Object defaultValue)
     {
-        String entityType = SplytConstants.ENTITY_TYPE_DEVICE;
-        String entityId = deviceId;
-        if(null != userId)
+        return getVar(userId, deviceId, varName, defaultValue, true);
+    }
+
+    /**
+     * Get the value of a named variable without letting the SPLYT backend know that it is in use.  This is intended for
+     * variables that the SDK itself consumes (e.g., sample rates), which would otherwise be reported on every event.
+     *
+     * @see #getVar(String, String, String, Object)
+     */
+    static Object peekVar(String userId, String deviceId, String varName, Object defaultValue)
+    {
+        return getVar(userId, deviceId, varName, defaultValue, false);
+    }
+
+    private static Object getVar(String userId, String deviceId, String varName, Object defaultValue, boolean recordUsed)
+    {
+        StrictMode.ThreadPolicy oldPolicy = StrictModeAudit.enter();
+        SplytTrace.begin(SplytTrace.GET_VAR);
+        try
         {
-            entityType = SplytConstants.ENTITY_TYPE_USER;
-            entityId = userId;
-        }
+            String entityType = SplytConstants.ENTITY_TYPE_DEVICE;
+            String entityId = deviceId;
+            if(null != userId)
+            {
+                entityType = SplytConstants.ENTITY_TYPE_USER;
+                entityId = userId;
+            }
 
-        // Assume we're going to return the defaultValue
-        Object retVal = defaultValue;
+            // Assume we're going to return the defaultValue
+            Object retVal = defaultValue;
 
-        // grab the tuning value from cache & try to convert it to the expected type
-        Object tuningVal = sCacheVars.getValue(entityType, entityId, varName, defaultValue);
-        tuningVal = Util.converttype(tuningVal, defaultValue);
-        if (null != tuningVal)
+            // grab the tuning value from cache, converted to the expected type
+            Object tuningVal = sCacheVars.getConvertedValue(entityType, entityId, varName, defaultValue, recordUsed);
+            if (null != tuningVal)
+            {
+                // We successfully converted the retrieved tuning variable to the desired type
+                retVal = tuningVal;
+            }
+
+            return retVal;
+        }
+        finally
         {
-            // We successfully converted the retrieved tuning variable to the desired type
-            retVal = tuningVal;
+            SplytTrace.end();
+            StrictModeAudit.exit(oldPolicy);
         }
+    }
 
-        return retVal;
+    /**
+     * @return An estimate of the heap used by the tuning values, in bytes
+     */
+    static long getHeapEstimate()
+    {
+        return sCacheVars.getHeapEstimate();
+    }
+
+    /**
+     * Drop the tuning values of the entities other than the active user and the device from memory.  Their values are kept in
+     * the cache on disk, so they're read back in the next time the app starts, and fetched again the next time the tuning
+     * variables are refreshed.
+     *
+     * NOTE: This must be called on the main thread, which is where the tuning values are updated
+     */
+    static void trimMemory()
+    {
+        int trimmed = sCacheVars.trimEntities(CoreSubsystem.getUserId(), CoreSubsystem.getDeviceId());
+        if (trimmed > 0)
+        {
+            Util.logDebug("Dropped the tuning values of [{}] inactive entities from memory", Integer.valueOf(trimmed));
+        }
     }
 
     private static void flushCache()
     {
-        // We have some state data, so save it off
+        // Serialize the cache data here so that we write out a consistent snapshot of it, then write it out in the background
+        final byte[] data;
+        final Set<String> trimmed = sCacheVars.getTrimmed();
+        SplytTrace.begin(SplytTrace.FLUSH_TUNING_CACHE);
         try
         {
-            FileOutputStream fos = sContext.openFileOutput(CACHE_FILENAME, Context.MODE_PRIVATE);
-            ObjectOutputStream outputStream = new ObjectOutputStream(fos);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream outputStream = new ObjectOutputStream(bos);
             outputStream.writeObject(sCacheVars);
-            outputStream.flush();
             outputStream.close();
+
+            data = bos.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            Util.logError("Failed to serialize tuning vars for the cache", ex);
+            return;
+        }
+        finally
+        {
+            SplytTrace.end();
+        }
+
+        Util.runOnIoThread(new Runnable() {
+            @Override
+            public void run()
+            {
+                StrictModeAudit.checkNotMainThread("Tuning cache write");
+
+                try
+                {
+                    // Any entities dropped from memory are only in the cache we're about to replace, so carry their values over from it
+                    byte[] cacheData = trimmed.isEmpty() ? data : mergeCache(data, trimmed);
+
+                    FileOutputStream fos = sContext.openFileOutput(CACHE_FILENAME, Context.MODE_PRIVATE);
+                    fos.write(cacheData);
+                    fos.close();
+                }
+                catch (Exception ex)
+                {
+                    Util.logError("Failed to save tuning vars to cache", ex);
+                }
+            }
+        });
+    }
+
+    // Add the values of the given entities from the cache on disk to the serialized cache data.  Returns the data to write
+    private static byte[] mergeCache(byte[] data, Set<String> trimmed) throws IOException, ClassNotFoundException
+    {
+        TuningValues cacheVars = (TuningValues) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+
+        try
+        {
+            FileInputStream fis = sContext.openFileInput(CACHE_FILENAME);
+            try
+            {
+                cacheVars.carryOver((TuningValues) new ObjectInputStream(fis).readObject(), trimmed);
+            }
+            finally
+            {
+                fis.close();
+            }
         }
         catch (Exception ex)
         {
-            Util.logError("Failed to save tuning vars to cache", ex);
+            // There's nothing we can carry over, so write out what's in memory
+            Util.logError("Failed to read the tuning cache to carry over the values dropped from memory", ex);
+            return data;
         }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(bos);
+        outputStream.writeObject(cacheVars);
+        outputStream.close();
+
+        return bos.toByteArray();
     }
 
     // this can't be declared INSIDE parseRefreshResponse (as per http://stackoverflow.com/questions/10927699/simplest-gson-fromjson-example-fails)
@@ -216,7 +377,7 @@ class TuningSubsystem
                 error = SplytError.fromInt(obj.getAsJsonPrimitive("error").getAsInt());
                 if (SplytError.Success == error)
                 {
-                    Gson gson = new Gson();
+                    Gson gson = Util.getGson();
 
                     refreshResponse data = gson.fromJson(obj.getAsJsonObject("data"), refreshResponse.class);
 
@@ -308,16 +469,61 @@ class TuningSubsystem
             {
                 flushCache();
                 mDirty = false;
+
+                // Now that the full set of values has been cached to disk, keep those held in memory within budget
+                long budget = MemoryMonitor.getTuningBudget();
+                if((budget > 0) && (getHeapEstimate() > budget))
+                {
+                    trimMemory();
+                }
             }
         }
     }
 
+    // The result of converting a variable's value to the type it was asked for with
+    private static class Conversion
+    {
+        final String type;
+        final String id;
+        final Object source;            // The value that was converted
+        final Class<?> targetClass;
+        final Object result;            // Null if the value couldn't be converted
+
+        Conversion(String type, String id, Object source, Class<?> targetClass, Object result)
+        {
+            this.type = type;
+            this.id = id;
+            this.source = source;
+            this.targetClass = targetClass;
+            this.result = result;
+        }
+
+        boolean matches(String type, String id, Object source, Class<?> targetClass)
+        {
+            // Note that the source is compared by identity, as any update to the entity replaces its values
+            return (this.source == source) && (this.targetClass == targetClass) && this.type.equals(type) && this.id.equals(id);
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class TuningValues implements java.io.Serializable
     {
         private Map< String, Map<String, Object > > mStorage = new HashMap<String, Map<String, Object> >();
         private Map< String, Double > mUsed = new HashMap<String, Double>();
 
+        // An estimate of the heap used by each entity's values (keyed by type and id), and their total.  These aren't cached to disk,
+        // and are estimated again when the cache is read in
+        private transient Map<String, Long> mHeapEstimates = new HashMap<String, Long>();
+        private transient volatile long mHeapEstimate;
+
+        // The entities (keyed by type and id) whose values have been dropped from memory to keep within budget.  Their values are still
+        // in the cache on disk, and are carried over from it whenever the cache is written.  This isn't cached to disk either
+        private transient Set<String> mTrimmed = new HashSet<String>();
+
+        // The last conversion of each variable, by name, so that repeatedly reading a variable doesn't convert (or parse) it
+        // again.  This isn't cached to disk, and is created on demand as it's not restored when the cache is read in
+        private transient volatile Map<String, Conversion> mConversions;
+
         void updateEntity(String type, String id, Map<String, Object> values)
         {
             if(!mStorage.containsKey(type))
@@ -327,6 +533,10 @@ class TuningSubsystem
 
             Map<String, Object> typeStorage = mStorage.get(type);
             typeStorage.put(id, values);
+            setHeapEstimate(type, id, values);
+            mTrimmed.remove(getKey(type, id));
+
+            clearConversions();
         }
 
         void removeEntity(String type, String id)
@@ -341,13 +551,155 @@ class TuningSubsystem
             {
                 typeStorage.remove(id);
             }
+            setHeapEstimate(type, id, null);
+            mTrimmed.remove(getKey(type, id));
+
+            clearConversions();
+        }
+
+        // Drops all entities but the given user and device.  Returns the number of entities dropped
+        int trimEntities(String userId, String deviceId)
+        {
+            int trimmed = 0;
+            for(Map.Entry<String, Map<String, Object>> typeEntry : mStorage.entrySet())
+            {
+                String type = typeEntry.getKey();
+                String keepId = SplytConstants.ENTITY_TYPE_USER.equals(type) ? userId : deviceId;
+
+                Iterator<String> ids = typeEntry.getValue().keySet().iterator();
+                while(ids.hasNext())
+                {
+                    String id = ids.next();
+                    if(!id.equals(keepId))
+                    {
+                        ids.remove();
+                        setHeapEstimate(type, id, null);
+                        mTrimmed.add(getKey(type, id));
+                        ++trimmed;
+                    }
+                }
+            }
+
+            if(trimmed > 0)
+            {
+                clearConversions();
+            }
+
+            return trimmed;
+        }
+
+        // A copy of the keys of the entities that have been dropped from memory
+        Set<String> getTrimmed()
+        {
+            return new HashSet<String>(mTrimmed);
+        }
+
+        // Add the values of the given entities from another set of values (i.e., those cached on disk), unless we already have them
+        void carryOver(TuningValues cached, Set<String> keys)
+        {
+            for(Map.Entry<String, Map<String, Object>> typeEntry : cached.mStorage.entrySet())
+            {
+                String type = typeEntry.getKey();
+                for(Map.Entry<String, Object> entityEntry : typeEntry.getValue().entrySet())
+                {
+                    if(keys.contains(getKey(type, entityEntry.getKey())))
+                    {
+                        if(!mStorage.containsKey(type))
+                        {
+                            mStorage.put(type, new HashMap<String, Object>());
+                        }
+
+                        Map<String, Object> typeStorage = mStorage.get(type);
+                        if(!typeStorage.containsKey(entityEntry.getKey()))
+                        {
+                            typeStorage.put(entityEntry.getKey(), entityEntry.getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        long getHeapEstimate()
+        {
+            return mHeapEstimate;
+        }
+
+        // Estimate the heap used by all of the entities (e.g., once the values have been read in from the cache, at which point
+        // none of them have been dropped from memory)
+        void estimateHeap()
+        {
+            mHeapEstimates = new HashMap<String, Long>();
+            mHeapEstimate = 0;
+            mTrimmed = new HashSet<String>();
+            for(Map.Entry<String, Map<String, Object>> typeEntry : mStorage.entrySet())
+            {
+                for(Map.Entry<String, Object> entityEntry : typeEntry.getValue().entrySet())
+                {
+                    setHeapEstimate(typeEntry.getKey(), entityEntry.getKey(), entityEntry.getValue());
+                }
+            }
+        }
+
+        // Update the heap estimate of an entity's values (null if the entity has been removed)
+        private void setHeapEstimate(String type, String id, Object values)
+        {
+            String key = getKey(type, id);
+            Long previous = (null != values) ?
+                mHeapEstimates.put(key, Long.valueOf((long) Util.getGson().toJson(values).length() * MemoryMonitor.HEAP_BYTES_PER_JSON_CHAR)) :
+                mHeapEstimates.remove(key);
+
+            long estimate = mHeapEstimate - ((null != previous) ? previous.longValue() : 0);
+            Long current = mHeapEstimates.get(key);
+            mHeapEstimate = estimate + ((null != current) ? current.longValue() : 0);
+        }
+
+        private static String getKey(String type, String id)
+        {
+            return type + "|" + id;
+        }
+
+        private void clearConversions()
+        {
+            Map<String, Conversion> conversions = mConversions;
+            if(null != conversions)
+            {
+                conversions.clear();
+            }
+        }
+
+        Object getConvertedValue(String type, String id, String var, Object defaultValue, boolean recordUsed)
+        {
+            Object value = getValue(type, id, var, defaultValue, recordUsed);
+            if((null == value) || (null == defaultValue) || (null == id))
+            {
+                return null;
+            }
+
+            Map<String, Conversion> conversions = mConversions;
+            if(null == conversions)
+            {
+                conversions = new ConcurrentHashMap<String, Conversion>();
+                mConversions = conversions;
+            }
+
+            Class<?> targetClass = defaultValue.getClass();
+            Conversion conversion = conversions.get(var);
+            if((null == conversion) || !conversion.matches(type, id, value, targetClass))
+            {
+                // Note that a failed conversion is remembered as well, so that a bad value isn't parsed over and over
+                Object result = TypeConverter.convert(TypeConverter.find(value.getClass(), targetClass), value);
+                conversion = new Conversion(type, id, value, targetClass, result);
+                conversions.put(var, conversion);
+            }
+
+            return conversion.result;
         }
 
-        Object getValue(String type, String id, String var, Object defaultValue)
+        Object getValue(String type, String id, String var, Object defaultValue, boolean recordUsed)
         {
             // let the splyt backend know that this request took place
             Double curTimeStamp = Double.valueOf(Util.MicroTimestamp.INSTANCE.get());
-            if(!mUsed.containsKey(var) || curTimeStamp > mUsed.get(var) + SplytConstants.TIME_RECORDAGAIN)
+            if(recordUsed && (!mUsed.containsKey(var) || curTimeStamp > mUsed.get(var) + SplytConstants.TIME_RECORDAGAIN))
             {
                 mUsed.put(var, curTimeStamp);
                 new CoreSubsystem.DataPointBuilder("tuner_recordUsed")
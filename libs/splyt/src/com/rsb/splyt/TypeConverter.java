@@ -0,0 +1,204 @@
+package com.rsb.splyt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>This is an internal class that converts the values of tuning variables (as delivered by the SPLYT backend) to the type
+ * of the default value the app asks for them with.</p>
+ *
+ * <p>The conversions are held in a table keyed by the source class and the target class, so a conversion is resolved with a
+ * couple of lookups rather than a chain of instanceof checks, and the resolved {@link Converter} can be held on to (see
+ * {@link TuningSubsystem}) so that repeated conversions of the same value cost a single call.  Only Booleans, Strings and
+ * Numbers (most subclasses) are handled.</p>
+ */
+class TypeConverter
+{
+    /**
+     * Converts a value from one type to another.
+     */
+    interface Converter
+    {
+        /**
+         * @param src   The value to convert, which is never null
+         *
+         * @return The converted value
+         *
+         * @throws NumberFormatException if the value is a string that can't be parsed
+         */
+        Object convert(Object src);
+    }
+
+    // The converters, by source class and then target class.  Note that all Numbers share the Number converters
+    private static final Map<Class<?>, Map<Class<?>, Converter>> sConverters = new HashMap<Class<?>, Map<Class<?>, Converter>>();
+
+    static
+    {
+        Map<Class<?>, Converter> fromBoolean = new HashMap<Class<?>, Converter>();
+        fromBoolean.put(Boolean.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return src; }
+        });
+        fromBoolean.put(String.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return String.valueOf(((Boolean) src).booleanValue()); }
+        });
+        fromBoolean.put(Byte.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Byte.valueOf((byte) (((Boolean) src).booleanValue() ? 1 : 0)); }
+        });
+        fromBoolean.put(Double.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Double.valueOf(((Boolean) src).booleanValue() ? 1.0d : 0.0d); }
+        });
+        fromBoolean.put(Float.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Float.valueOf(((Boolean) src).booleanValue() ? 1.0f : 0.0f); }
+        });
+        fromBoolean.put(Integer.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Integer.valueOf(((Boolean) src).booleanValue() ? 1 : 0); }
+        });
+        fromBoolean.put(Short.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Short.valueOf((short) (((Boolean) src).booleanValue() ? 1 : 0)); }
+        });
+        fromBoolean.put(Long.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Long.valueOf(((Boolean) src).booleanValue() ? 1L : 0L); }
+        });
+        sConverters.put(Boolean.class, fromBoolean);
+
+        Map<Class<?>, Converter> fromString = new HashMap<Class<?>, Converter>();
+        fromString.put(Boolean.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Boolean.valueOf((String) src); }
+        });
+        fromString.put(String.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return src; }
+        });
+        fromString.put(Byte.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Byte.valueOf((String) src); }
+        });
+        fromString.put(Double.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Double.valueOf((String) src); }
+        });
+        fromString.put(Float.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Float.valueOf((String) src); }
+        });
+        fromString.put(Integer.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Integer.valueOf((String) src); }
+        });
+        fromString.put(Short.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Short.valueOf((String) src); }
+        });
+        fromString.put(Long.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Long.valueOf((String) src); }
+        });
+        sConverters.put(String.class, fromString);
+
+        // Refer to http://docs.oracle.com/javase/tutorial/java/data/numberclasses.html
+        Map<Class<?>, Converter> fromNumber = new HashMap<Class<?>, Converter>();
+        fromNumber.put(Boolean.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Boolean.valueOf(0 != ((Number) src).intValue()); }
+        });
+        fromNumber.put(String.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return String.valueOf(src); }
+        });
+        fromNumber.put(Byte.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Byte.valueOf(((Number) src).byteValue()); }
+        });
+        fromNumber.put(Double.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Double.valueOf(((Number) src).doubleValue()); }
+        });
+        fromNumber.put(Float.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Float.valueOf(((Number) src).floatValue()); }
+        });
+        fromNumber.put(Integer.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Integer.valueOf(((Number) src).intValue()); }
+        });
+        fromNumber.put(Short.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Short.valueOf(((Number) src).shortValue()); }
+        });
+        fromNumber.put(Long.class, new Converter() {
+            @Override
+            public Object convert(Object src) { return Long.valueOf(((Number) src).longValue()); }
+        });
+        sConverters.put(Number.class, fromNumber);
+    }
+
+    /**
+     * @param srcClass      The class of the value to convert
+     * @param targetClass   The class to convert it to
+     *
+     * @return The converter, or null if there's no conversion between the two
+     */
+    static Converter find(Class<?> srcClass, Class<?> targetClass)
+    {
+        Map<Class<?>, Converter> converters = sConverters.get(srcClass);
+        if ((null == converters) && Number.class.isAssignableFrom(srcClass))
+        {
+            converters = sConverters.get(Number.class);
+        }
+
+        return (null != converters) ? converters.get(targetClass) : null;
+    }
+
+    /**
+     * Convert a value to the type of another.
+     *
+     * @param src       The value to convert
+     * @param target    A value of the type to convert to
+     *
+     * @return The converted value, or null if it can't be converted
+     */
+    static Object convert(Object src, Object target)
+    {
+        if ((null == src) || (null == target))
+        {
+            return null;
+        }
+
+        return convert(find(src.getClass(), target.getClass()), src);
+    }
+
+    /**
+     * Convert a value with a converter that has already been resolved.
+     *
+     * @param converter The converter (may be null)
+     * @param src       The value to convert
+     *
+     * @return The converted value, or null if there's no converter or the value can't be parsed
+     */
+    static Object convert(Converter converter, Object src)
+    {
+        if ((null == converter) || (null == src))
+        {
+            return null;
+        }
+
+        try
+        {
+            return converter.convert(src);
+        }
+        catch (NumberFormatException e)
+        {
+            // The string isn't a number (or is out of range for the target type)
+            return null;
+        }
+    }
+}
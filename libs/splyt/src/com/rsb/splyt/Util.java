@@ -2,9 +2,12 @@ package com.rsb.splyt;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.HashMap;
@@ -12,153 +15,103 @@ import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.rsb.gson.Gson;
+import com.rsb.gson.reflect.TypeToken;
+
 /**
  * <p>This is an internal utility class used in the core library for Splyt</p>
  */
 class Util
 {
     private static final String LOG_TAG = "com.rsb.splyt";
+    private static final String DEVICEINFO_FINGERPRINT_KEY_NAME = "deviceInfoFingerprint";
+    private static final String DEVICEINFO_SNAPSHOT_KEY_NAME = "deviceInfoSnapshot";
+    private static final String DEVICEINFO_HASH_KEY_NAME = "deviceInfoHash";
+    private static final String DEVICEINFO_DEVICEID_KEY_NAME = "deviceInfoDeviceId";
     private static boolean sLogEnabled = false;
+
+    // The device and app info that has changed since it was last reported (i.e., what needs to be sent upstream)
     private static Map<String, Object> sDeviceAndAppInfo = new HashMap<String, Object>();
     static Map<String, Object> getDeviceAndAppInfo() { return sDeviceAndAppInfo; }
+
+    // A freshly computed snapshot that has yet to be committed to the shared prefs (null if nothing has changed)
+    private static String sPendingFingerprint;
+    private static String sPendingSnapshot;
+    private static String sPendingHash;
+    private static String sPendingDeviceId;
+    private static boolean sPendingIsComplete;
+
     private static Set<String> sValidCurrencyCodes = new HashSet<String>();
     private static Map<String, Set<String>> sCurrencyCodesBySymbol = new HashMap<String, Set<String>>();
 
+    // A single background thread used for the SDK's disk I/O so that none of it happens on the caller's (often the UI) thread.
+    // Since there's only the one thread, the I/O is performed in the order in which it was requested
+    private static final ExecutorService sIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "SplytIO");
+        }
+    });
+
+    private static Handler sMainHandler;
+
+    // Gson instances are thread-safe but expensive to create (each one builds its own set of type adapters), so we share one
+    private static final Gson sGson = new Gson();
+
+    static Gson getGson()
+    {
+        return sGson;
+    }
+
+    // Whether a value can be held on to as is, since the caller can't change it after the fact (i.e., there's no need for a deep copy)
+    static boolean isImmutableValue(Object value)
+    {
+        return (null == value) || (value instanceof String) || (value instanceof Boolean) || (value instanceof Character) ||
+            (value instanceof Integer) || (value instanceof Long) || (value instanceof Double) || (value instanceof Float) ||
+            (value instanceof Short) || (value instanceof Byte);
+    }
+
     static void setLogEnabled(boolean value)
     {
         sLogEnabled = value;
     }
 
-    // Utility function to handle type juggling
-    // Only handles src and target objects that are Booleans, Strings, Numbers (most subclasses)
-    static Object converttype(Object src, Object target)
+    static boolean isMainThread()
+    {
+        return (Looper.getMainLooper() == Looper.myLooper());
+    }
+
+    // Queue up some (disk) I/O to be performed in the background
+    static void runOnIoThread(Runnable task)
     {
-        Object retObj = null;
-        if ((null != src) && (null != target))
+        sIoExecutor.execute(task);
+    }
+
+    // Queue up a task to be run on the main thread (e.g., to call back into the app once some background I/O has completed)
+    static synchronized void runOnMainThread(Runnable task)
+    {
+        if (null == sMainHandler)
         {
-            try
-            {
-                if (src instanceof Boolean)
-                {
-                    boolean boolVal = ((Boolean)src).booleanValue();
-                    if (target instanceof Boolean)
-                    {
-                        retObj = Boolean.valueOf(boolVal);
-                    }
-                    else if (target instanceof String)
-                    {
-                        retObj = String.valueOf(boolVal);
-                    }
-                    else if (target instanceof Byte)
-                    {
-                        retObj = Byte.valueOf((byte)(boolVal ? 1 : 0));
-                    }
-                    else if (target instanceof Double)
-                    {
-                        retObj = Double.valueOf(boolVal ? 1.0d : 0.0d);
-                    }
-                    else if (target instanceof Float)
-                    {
-                        retObj = Float.valueOf(boolVal ? 1.0f : 0.0f);
-                    }
-                    else if (target instanceof Integer)
-                    {
-                        retObj = Integer.valueOf(boolVal ? 1 : 0);
-                    }
-                    else if (target instanceof Short)
-                    {
-                        retObj = Short.valueOf((short)(boolVal ? 1 : 0));
-                    }
-                    else if (target instanceof Long)
-                    {
-                        retObj = Long.valueOf(boolVal ? 1L : 0L);
-                    }
-                }
-                else if (src instanceof String)
-                {
-                    String stringVal = (String)src;
-                    if (target instanceof Boolean)
-                    {
-                        retObj = Boolean.valueOf(stringVal);
-                    }
-                    else if (target instanceof String)
-                    {
-                        retObj = String.valueOf(stringVal);
-                    }
-                    else if (target instanceof Byte)
-                    {
-                        retObj = Byte.valueOf(stringVal);
-                    }
-                    else if (target instanceof Double)
-                    {
-                        retObj = Double.valueOf(stringVal);
-                    }
-                    else if (target instanceof Float)
-                    {
-                        retObj = Float.valueOf(stringVal);
-                    }
-                    else if (target instanceof Integer)
-                    {
-                        retObj = Integer.valueOf(stringVal);
-                    }
-                    else if (target instanceof Short)
-                    {
-                        retObj = Short.valueOf(stringVal);
-                    }
-                    else if (target instanceof Long)
-                    {
-                        retObj = Long.valueOf(stringVal);
-                    }
-                }
-                else if (src instanceof Number)
-                {
-                    // Refer to http://docs.oracle.com/javase/tutorial/java/data/numberclasses.html
-                    if (target instanceof Boolean)
-                    {
-                        retObj = Boolean.valueOf((0 == ((Number)src).intValue()) ? false : true);
-                    }
-                    else if (target instanceof String)
-                    {
-                        retObj = String.valueOf(src);
-                    }
-                    else if (target instanceof Byte)
-                    {
-                        retObj = Byte.valueOf(((Number)src).byteValue());
-                    }
-                    else if (target instanceof Double)
-                    {
-                        retObj = Double.valueOf(((Number)src).doubleValue());
-                    }
-                    else if (target instanceof Float)
-                    {
-                        retObj = Float.valueOf(((Number)src).floatValue());
-                    }
-                    else if (target instanceof Integer)
-                    {
-                        retObj = Integer.valueOf(((Number)src).intValue());
-                    }
-                    else if (target instanceof Short)
-                    {
-                        retObj = Short.valueOf(((Number)src).shortValue());
-                    }
-                    else if (target instanceof Long)
-                    {
-                        retObj = Long.valueOf(((Number)src).longValue());
-                    }
-                }
-            }
-            catch (Exception e) { } // Trap any error and just return null
+            sMainHandler = new Handler(Looper.getMainLooper());
         }
 
-        return retObj;
+        sMainHandler.post(task);
     }
 
     // Utility method that performs a deep copy of a java Object (typically a Map)
@@ -211,13 +164,45 @@ class Util
         return null;
     }
 
-    // Internal logging.  These can be enabled by calling Util.setLogEnabled(true)
+    // Internal logging.  These can be enabled by calling Util.setLogEnabled(true), and are also kept in the diagnostic log if it's enabled
+    // (see DiagnosticLog).  The parameterized variants only build the message if it's going somewhere, with each {} in the format
+    // replaced by the next argument.  For messages that are expensive to build (or that box their arguments), check isLogEnabled() first
+    static boolean isLogEnabled()
+    {
+        return sLogEnabled || DiagnosticLog.isEnabled();
+    }
+
     static void logDebug(String msg)
     {
         if (sLogEnabled)
         {
             Log.d(LOG_TAG, msg);
         }
+        DiagnosticLog.record(Log.DEBUG, msg, null);
+    }
+
+    static void logDebug(String format, Object arg)
+    {
+        if (isLogEnabled())
+        {
+            logDebug(formatMessage(format, arg));
+        }
+    }
+
+    static void logDebug(String format, Object arg1, Object arg2)
+    {
+        if (isLogEnabled())
+        {
+            logDebug(formatMessage(format, arg1, arg2));
+        }
+    }
+
+    static void logDebug(String format, Object arg1, Object arg2, Object arg3)
+    {
+        if (isLogEnabled())
+        {
+            logDebug(formatMessage(format, arg1, arg2, arg3));
+        }
     }
 
     static void logError(String msg, Exception e)
@@ -226,6 +211,7 @@ class Util
         {
             Log.e(LOG_TAG, msg, e);
         }
+        DiagnosticLog.record(Log.ERROR, msg, e);
     }
 
     static void logError(String msg)
@@ -234,58 +220,235 @@ class Util
         {
             Log.e(LOG_TAG, msg);
         }
+        DiagnosticLog.record(Log.ERROR, msg, null);
     }
 
-    @SuppressWarnings("deprecation")
-    static void cacheDeviceAndAppInfo(Context context)
+    static void logError(String format, Object arg)
+    {
+        if (isLogEnabled())
+        {
+            logError(formatMessage(format, arg));
+        }
+    }
+
+    static void logError(String format, Object arg1, Object arg2)
+    {
+        if (isLogEnabled())
+        {
+            logError(formatMessage(format, arg1, arg2));
+        }
+    }
+
+    private static String formatMessage(String format, Object... args)
+    {
+        StringBuilder msg = new StringBuilder(format.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args)
+        {
+            int placeholder = format.indexOf("{}", start);
+            if (placeholder < 0)
+            {
+                break;
+            }
+            msg.append(format, start, placeholder).append(arg);
+            start = placeholder + 2;
+        }
+
+        return msg.append(format, start, format.length()).toString();
+    }
+
+    /**
+     * Caches the device and app info that has changed since it was last reported to Splyt.
+     * The full snapshot is only recomputed (i.e., the PackageManager is only queried) when the app has been updated or
+     * the OS has changed since the last launch.  Otherwise, there is nothing new to report and the cached info is left empty.
+     *
+     * @param context   The application context
+     * @param deviceId  The device Id that we expect to report the info for (may be null if not yet known)
+     */
+    static void cacheDeviceAndAppInfo(Context context, String deviceId)
     {
         if (null != context)
         {
+            StrictModeAudit.checkNotMainThread("Device and app info collection");
+
             // Clear out any previously set data
             sDeviceAndAppInfo.clear();
+            sPendingFingerprint = null;
+            sPendingSnapshot = null;
+            sPendingHash = null;
+            sPendingDeviceId = deviceId;
+            sPendingIsComplete = false;
+
+            SharedPreferences sharedPrefs = context.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE);
 
-            // Get the "platform".  All kindle devices have Amazon listed as the manufacturer.  All others are "normal" android devices.
-            String manufacturer = Build.MANUFACTURER;
-            if (manufacturer.equals("Amazon"))
+            // If the last snapshot was reported for a different device, we can't send just the changes
+            boolean sameDevice = (null != deviceId) && deviceId.equals(sharedPrefs.getString(DEVICEINFO_DEVICEID_KEY_NAME, null));
+
+            // The fingerprint is cheap to compute and changes whenever the app is updated or the OS changes
+            String fingerprint = getDeviceAndAppFingerprint(context);
+            if (sameDevice && fingerprint.equals(sharedPrefs.getString(DEVICEINFO_FINGERPRINT_KEY_NAME, null)))
             {
-                sDeviceAndAppInfo.put("splyt.platform", "kindle");
+                // Nothing has changed since the last snapshot was reported, so there's nothing to send
+                return;
             }
-            else
+
+            Map<String, Object> info = collectDeviceAndAppInfo(context);
+
+            // Encode each of the values so that we can compare them with those in the previous snapshot regardless of type
+            Gson gson = sGson;
+            Map<String, String> encodedInfo = new TreeMap<String, String>();
+            for (Map.Entry<String, Object> entry : info.entrySet())
             {
-                sDeviceAndAppInfo.put("splyt.platform", "android");
+                encodedInfo.put(entry.getKey(), gson.toJson(entry.getValue()));
             }
+            String snapshot = gson.toJson(encodedInfo);
+            String hash = hashString(snapshot);
 
-            // Get the rest of the information about the device
-            sDeviceAndAppInfo.put("splyt.deviceinfo.manufacturer", manufacturer);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.model", Build.MODEL);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.product", Build.PRODUCT);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.brand", Build.BRAND);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.device", Build.DEVICE);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.cpu_abi", Build.CPU_ABI);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.cpu_abi2", Build.CPU_ABI2);
-            sDeviceAndAppInfo.put("splyt.deviceinfo.osversion", "Android " + Build.VERSION.RELEASE);
-
-            // Get some interesting information about the app
-            String packageName = context.getPackageName();
-            PackageManager pm = context.getPackageManager();
-            try
+            if (!sameDevice || !hash.equals(sharedPrefs.getString(DEVICEINFO_HASH_KEY_NAME, null)))
             {
-                PackageInfo info = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                sDeviceAndAppInfo.put("splyt.appinfo.versionCode", info.versionCode);
-                sDeviceAndAppInfo.put("splyt.appinfo.versionName", info.versionName);
-                sDeviceAndAppInfo.put("splyt.appinfo.firstInstallTime", info.firstInstallTime);
-                sDeviceAndAppInfo.put("splyt.appinfo.lastUpdateTime", info.lastUpdateTime);
-                sDeviceAndAppInfo.put("splyt.appinfo.requestedPermissions", Arrays.toString(info.requestedPermissions));
+                Map<String, String> prevInfo = null;
+                if (sameDevice)
+                {
+                    try
+                    {
+                        prevInfo = gson.fromJson(sharedPrefs.getString(DEVICEINFO_SNAPSHOT_KEY_NAME, null), new TypeToken<Map<String, String>>(){}.getType());
+                    }
+                    catch (Exception e)
+                    {
+                        // The previous snapshot is unreadable, so just send everything
+                    }
+                }
+
+                // Only send the keys that have changed
+                for (Map.Entry<String, String> entry : encodedInfo.entrySet())
+                {
+                    if ((null == prevInfo) || !entry.getValue().equals(prevInfo.get(entry.getKey())))
+                    {
+                        sDeviceAndAppInfo.put(entry.getKey(), info.get(entry.getKey()));
+                    }
+                }
             }
-            catch (NameNotFoundException e)
+
+            sPendingFingerprint = fingerprint;
+            sPendingSnapshot = snapshot;
+            sPendingHash = hash;
+            sPendingIsComplete = (sDeviceAndAppInfo.size() == info.size());
+        }
+        else
+        {
+            logError("Invalid context passed to cacheDeviceAndAppInfo");
+        }
+    }
+
+    /**
+     * Records the snapshot computed in {@link #cacheDeviceAndAppInfo} as reported, so that it is not sent again on the next launch.
+     * This should only be called once the device and app info has been handed off to the event depot.
+     *
+     * @param context   The application context
+     * @param deviceId  The device Id the info was reported for
+     */
+    static void commitDeviceAndAppInfo(Context context, String deviceId)
+    {
+        // If the device Id changed out from under us (e.g., it was assigned by the server) and we only reported the changes, don't commit.
+        // The full snapshot will then be reported on the next launch.
+        boolean validForDevice = (null != deviceId) && (deviceId.equals(sPendingDeviceId) || sPendingIsComplete);
+        if ((null != context) && (null != sPendingFingerprint) && validForDevice)
+        {
+            SharedPreferences.Editor editor = context.getSharedPreferences(SplytConstants.PREFS_FILENAME, Context.MODE_PRIVATE).edit();
+            editor.putString(DEVICEINFO_FINGERPRINT_KEY_NAME, sPendingFingerprint)
+                  .putString(DEVICEINFO_SNAPSHOT_KEY_NAME, sPendingSnapshot)
+                  .putString(DEVICEINFO_HASH_KEY_NAME, sPendingHash)
+                  .putString(DEVICEINFO_DEVICEID_KEY_NAME, deviceId)
+                  .apply();
+
+            sPendingFingerprint = null;
+            sPendingSnapshot = null;
+            sPendingHash = null;
+        }
+    }
+
+    // Builds a string that changes whenever the app is updated or the OS changes.
+    // Note that we use the modification time of the installed package (which is updated along with PackageInfo.lastUpdateTime)
+    // since it is available without querying the PackageManager
+    private static String getDeviceAndAppFingerprint(Context context)
+    {
+        long packageModified = 0;
+        String sourceDir = context.getApplicationInfo().sourceDir;
+        if (null != sourceDir)
+        {
+            packageModified = new File(sourceDir).lastModified();
+        }
+
+        return Build.VERSION.RELEASE + "|" + Build.FINGERPRINT + "|" + packageModified;
+    }
+
+    // Computes a content hash for a string
+    private static String hashString(String value)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
             {
-                Util.logError("Unexpected NameNotFoundException during cacheDeviceAndAppInfo.");
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
             }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return Integer.toHexString(value.hashCode());
+        }
+        catch (IOException e)
+        {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Map<String, Object> collectDeviceAndAppInfo(Context context)
+    {
+        Map<String, Object> info = new HashMap<String, Object>();
+
+        // Get the "platform".  All kindle devices have Amazon listed as the manufacturer.  All others are "normal" android devices.
+        String manufacturer = Build.MANUFACTURER;
+        if (manufacturer.equals("Amazon"))
+        {
+            info.put("splyt.platform", "kindle");
         }
         else
         {
-            logError("Invalid context passed to cacheDeviceAndAppInfo");
+            info.put("splyt.platform", "android");
         }
+
+        // Get the rest of the information about the device
+        info.put("splyt.deviceinfo.manufacturer", manufacturer);
+        info.put("splyt.deviceinfo.model", Build.MODEL);
+        info.put("splyt.deviceinfo.product", Build.PRODUCT);
+        info.put("splyt.deviceinfo.brand", Build.BRAND);
+        info.put("splyt.deviceinfo.device", Build.DEVICE);
+        info.put("splyt.deviceinfo.cpu_abi", Build.CPU_ABI);
+        info.put("splyt.deviceinfo.cpu_abi2", Build.CPU_ABI2);
+        info.put("splyt.deviceinfo.osversion", "Android " + Build.VERSION.RELEASE);
+
+        // Get some interesting information about the app
+        String packageName = context.getPackageName();
+        PackageManager pm = context.getPackageManager();
+        try
+        {
+            PackageInfo packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+            info.put("splyt.appinfo.versionCode", packageInfo.versionCode);
+            info.put("splyt.appinfo.versionName", packageInfo.versionName);
+            info.put("splyt.appinfo.firstInstallTime", packageInfo.firstInstallTime);
+            info.put("splyt.appinfo.lastUpdateTime", packageInfo.lastUpdateTime);
+            info.put("splyt.appinfo.requestedPermissions", Arrays.toString(packageInfo.requestedPermissions));
+        }
+        catch (NameNotFoundException e)
+        {
+            Util.logError("Unexpected NameNotFoundException during cacheDeviceAndAppInfo.");
+        }
+
+        return info;
     }
 
     static void cacheCurrencyInfo()
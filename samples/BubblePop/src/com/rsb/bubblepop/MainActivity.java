@@ -38,7 +38,8 @@ public class MainActivity extends Activity implements GameBoard.GameOverListener
         // Initialize Splyt with logging enabled.
         // Note that one should only enable logging when debugging an issue
         Splyt.Core.InitParams initParams = Splyt.Core.createInitParams(this, SPLYT_CUSTOMER_ID)
-            .setLogEnabled(true);
+            .setLogEnabled(true)
+            .setBackgroundUploadEnabled(true);
 
         // Set up notification-specific initialization parameters
         initParams.Notification
@@ -99,6 +100,7 @@ public class MainActivity extends Activity implements GameBoard.GameOverListener
         super.onPause();
 
         // This activity is being paused; inform Splyt so that it can save off any events queued up to reduce the risk of losing data
+        // Note that on Android 4.0 and later, Splyt tracks when the app goes into the background on its own and ignores this call
         Splyt.Core.pause();
     }
 
@@ -119,6 +121,7 @@ public class MainActivity extends Activity implements GameBoard.GameOverListener
         super.onResume();
 
         // This activity is resuming; tell Splyt to resume normal operations
+        // Note that on Android 4.0 and later, Splyt tracks when the app comes into the foreground on its own and ignores this call
         Splyt.Core.resume();
     }
 